@@ -0,0 +1,32 @@
+package advise.counter;
+
+/**
+ * 功能: 用合成数据估算计数器的内存占用, 不随 beancounter 发布
+ * <p>运行方式: java -cp (beancounter 依赖 + 本目录编译输出) advise.counter.FootprintBenchmark [方法个数] [每个类的方法个数] [有调用的方法比例 %] [不同方法名的个数]</p>
+ * <p>不同方法名的个数默认等于每个类的方法个数, 即所有类共用同一组方法名; 等于方法个数时所有方法名都不相同</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class FootprintBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int methods = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int methodsPerClass = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int activePercent = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int distinctNames = args.length > 3 ? Integer.parseInt(args[3]) : methodsPerClass;
+
+        GeneralCounter generalCounter = new GeneralCounter();
+        RateTracker.start(generalCounter.getRegistry(), 1024);
+        for (int i = 0; i < methods; i++) {
+            ClassCounter classCounter = generalCounter.putIfAbsent("demo.Service" + i / methodsPerClass);
+            MethodCounter methodCounter = classCounter.putIfAbsent("method" + i % distinctNames);
+            if (i % 100 < activePercent){
+                methodCounter.update();
+            }
+        }
+        // 等待一次收割, 为有调用的方法创建环形桶
+        Thread.sleep(2_000L);
+        System.out.println(FootprintReport.of(generalCounter));
+    }
+}
@@ -0,0 +1,77 @@
+package advise.proxy;
+
+import advise.counter.ClassCounter;
+import advise.counter.GeneralCounter;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 功能: 代理引擎基准测试, 比较直接调用 / Spring AOP 引擎 / 字节码引擎的单次调用耗时与内存分配, 不随 beancounter 发布
+ * <p>运行方式: java -cp (beancounter + spring 依赖 + 本目录编译输出) advise.proxy.ProxyEngineBenchmark [每轮调用次数] [轮数]</p>
+ * <p>每个引擎先预热一轮, 之后取多轮中的最小值, 内存分配来自 com.sun.management.ThreadMXBean</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class ProxyEngineBenchmark {
+
+    /**
+     * 防止调用结果被 JIT 消除
+     */
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        GeneralCounter generalCounter = new GeneralCounter();
+        ClassCounter classCounter = generalCounter.putIfAbsent(BenchmarkService.class);
+
+        BenchmarkService direct = new BenchmarkService();
+        BenchmarkService spring = (BenchmarkService) new SpringProxyEngine().createProxy(new BenchmarkService(), BenchmarkService.class, classCounter);
+        BenchmarkService bytecode = (BenchmarkService) new BytecodeProxyEngine().createProxy(new BenchmarkService(), BenchmarkService.class, classCounter);
+
+        System.out.println(String.format("%-10s %12s %14s", "engine", "ns/op", "bytes/op"));
+        run("direct", direct, iterations, rounds);
+        run("spring", spring, iterations, rounds);
+        run("bytecode", bytecode, iterations, rounds);
+        System.out.println("count: " + classCounter.getCount());
+    }
+
+    private static void run(String name, BenchmarkService service, int iterations, int rounds){
+        measure(service, iterations);
+
+        double bestNanos = Double.MAX_VALUE;
+        double bestBytes = Double.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            measure(service, iterations);
+            bestNanos = Math.min(bestNanos, (System.nanoTime() - start) / (double) iterations);
+            bestBytes = Math.min(bestBytes, (allocatedBytes() - bytes) / (double) iterations);
+        }
+        System.out.println(String.format("%-10s %12.2f %14.2f", name, bestNanos, bestBytes));
+    }
+
+    private static void measure(BenchmarkService service, int iterations){
+        long result = 0L;
+        for (int i = 0; i < iterations; i++) {
+            result += service.add(i, 1);
+        }
+        sink = result;
+    }
+
+    private static long allocatedBytes(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * 被代理的示例 Bean
+     */
+    public static class BenchmarkService {
+
+        public long add(long a, long b){
+            return a + b;
+        }
+    }
+}
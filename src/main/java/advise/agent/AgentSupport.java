@@ -0,0 +1,28 @@
+package advise.agent;
+
+import advise.counter.CounterRegistry;
+import advise.counter.GeneralCounter;
+import advise.interceptor.CounterSupport;
+
+/**
+ * 功能: Java Agent 织入代码的计数入口
+ * <p>织入的字节码只有 "计数槽 id 常量 + 一次静态调用", 会被 JIT 内联</p>
+ * <p>织入只发生在方法入口, 没有对应的出口, 所以不记录耗时与调用关系</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public final class AgentSupport {
+
+    private static final CounterRegistry registry = GeneralCounter.getInstance().getRegistry();
+
+    private AgentSupport() { }
+
+    /**
+     * 调用次数 + 1
+     * @param id 计数槽 id
+     */
+    public static void update(int id){
+        CounterSupport.count(registry, id);
+    }
+}
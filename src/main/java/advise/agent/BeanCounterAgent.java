@@ -0,0 +1,69 @@
+package advise.agent;
+
+import config.PackageMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 功能: Java Agent 入口, 在类加载时为扫描路径下的类织入计数代码
+ * <p>启动方式: -javaagent:beancounter.jar=扫描路径 (多个扫描路径用 , 隔离), 没有参数时读取系统属性 beancounter.path</p>
+ * <p>织入的类不需要再创建代理, final 类 / final 方法 / 自调用也会被统计</p>
+ * <p>计数器写入全局 {@link advise.counter.GeneralCounter}, 查询与持久化与代理模式一致</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class BeanCounterAgent {
+
+    private static final Logger logger = LoggerFactory.getLogger(BeanCounterAgent.class);
+
+    /**
+     * 是否以 Java Agent 模式启动
+     */
+    private static volatile boolean active;
+
+    /**
+     * 已经织入计数代码的类名
+     */
+    private static final Set<String> instrumentedClasses = ConcurrentHashMap.newKeySet();
+
+    public static void premain(String agentArgs, Instrumentation instrumentation){
+        String scanPath = agentArgs == null || agentArgs.trim().isEmpty() ? System.getProperty("beancounter.path") : agentArgs;
+        if (scanPath == null || scanPath.trim().isEmpty()){
+            logger.error("[beancounter-agent] No scan path for the agent, use -javaagent:beancounter.jar=<scan path> or -Dbeancounter.path");
+            return;
+        }
+
+        PackageMatcher scanMatcher = PackageMatcher.compile(scanPath);
+        instrumentation.addTransformer(new CounterTransformer(scanMatcher));
+        active = true;
+        logger.warn("[beancounter-agent] Agent started, instrument classes in " + scanMatcher);
+    }
+
+    /**
+     * @return 是否以 Java Agent 模式启动
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+    /**
+     * 标记已经织入计数代码的类
+     * @param className 类名
+     */
+    static void markInstrumented(String className){
+        instrumentedClasses.add(className);
+    }
+
+    /**
+     * @param className 类名
+     * @return 是否已经织入计数代码, 织入的类不需要再创建代理
+     */
+    public static boolean isInstrumented(String className){
+        return instrumentedClasses.contains(className);
+    }
+}
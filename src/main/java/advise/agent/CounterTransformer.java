@@ -0,0 +1,170 @@
+package advise.agent;
+
+import advise.counter.ClassCounter;
+import advise.counter.GeneralCounter;
+import config.BeanCounterExclude;
+import config.PackageMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.asm.AnnotationVisitor;
+import org.springframework.asm.ClassReader;
+import org.springframework.asm.ClassVisitor;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.asm.Type;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+/**
+ * 功能: 类加载时织入计数代码
+ * <p>在每个方法的第一条指令之前插入 AgentSupport.update(id), id 在织入时分配并以常量写入</p>
+ * <p>跳过构造方法 / 静态初始化 / 抽象 / native / 桥接 / 合成方法 (lambda), 以及接口、注解和生成的代理类</p>
+ * <p>标注了 {@link BeanCounterExclude} 的类不会被织入</p>
+ * <p>类加载时还无法知道哪些类会成为 Bean, 所以扫描路径下的所有类都会被织入, 包括 DTO 的 getter / setter 等非 Bean 方法:
+ * 每个方法占用一个计数槽, 每次调用多一次静态调用; 不需要统计的包应当用 ! 前缀从扫描路径中排除</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterTransformer implements ClassFileTransformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CounterTransformer.class);
+
+    private static final String SUPPORT = Type.getInternalName(AgentSupport.class);
+
+    private static final String EXCLUDE_DESC = Type.getDescriptor(BeanCounterExclude.class);
+
+    private static final int SKIPPED_METHOD = Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_BRIDGE | Opcodes.ACC_SYNTHETIC;
+
+    private static final int SKIPPED_CLASS = Opcodes.ACC_INTERFACE | Opcodes.ACC_ANNOTATION | Opcodes.ACC_SYNTHETIC;
+
+    /**
+     * 使用的 ASM API 版本, 取 Spring 内置 ASM 支持的最新版本
+     * <p>低于 ASM7 时 visitNestHost / visitNestMember 等 (Java 11+ 的嵌套类、record、sealed 类) 会抛出 UnsupportedOperationException</p>
+     */
+    private static final int ASM_API = latestApi();
+
+    /**
+     * 扫描路径, 直接匹配内部类名格式 (com/demo/Foo)
+     */
+    private final PackageMatcher scanMatcher;
+
+    public CounterTransformer(PackageMatcher scanMatcher) {
+        this.scanMatcher = scanMatcher;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // 只织入扫描路径下首次加载的类, 生成的代理类 (CGLIB / 字节码代理引擎) 不需要织入
+        if (className == null || classBeingRedefined != null || className.contains("$$") || !scanMatcher.matches(className)){
+            return null;
+        }
+
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            if ((reader.getAccess() & SKIPPED_CLASS) != 0){
+                return null;
+            }
+            ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+            CounterClassVisitor visitor = new CounterClassVisitor(writer, className.replace('/', '.'));
+            reader.accept(visitor, 0);
+            if (!visitor.instrumented){
+                return null;
+            }
+            byte[] bytecode = writer.toByteArray();
+            BeanCounterAgent.markInstrumented(visitor.className);
+            return bytecode;
+        }catch (Throwable t){
+            logger.error("[beancounter-agent] Instrument class[" + className + "] fail, it will not be counted", t);
+            return null;
+        }
+    }
+
+    /**
+     * 按从新到旧的顺序查找 Opcodes 中的 ASM API 常量, 兼容不同 Spring 版本内置的 ASM
+     * @return 最新的 ASM API 版本
+     */
+    private static int latestApi(){
+        for (int version = 9; version > 5; version--) {
+            try {
+                return Opcodes.class.getField("ASM" + version).getInt(null);
+            }catch (NoSuchFieldException | IllegalAccessException e){
+                // 当前版本的 ASM 没有该常量, 继续查找更早的版本
+            }
+        }
+        return Opcodes.ASM5;
+    }
+
+    /**
+     * 类访问器: 类注解在方法之前访问, 所以可以先判断是否被人工排除
+     */
+    private static final class CounterClassVisitor extends ClassVisitor {
+
+        private final String className;
+
+        private boolean excluded;
+
+        private boolean instrumented;
+
+        /**
+         * 第一个需要织入的方法出现时才创建
+         */
+        private ClassCounter classCounter;
+
+        private CounterClassVisitor(ClassVisitor classVisitor, String className) {
+            super(ASM_API, classVisitor);
+            this.className = className;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            if (EXCLUDE_DESC.equals(descriptor)){
+                excluded = true;
+            }
+            return super.visitAnnotation(descriptor, visible);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+            if (excluded || name.charAt(0) == '<' || (access & SKIPPED_METHOD) != 0){
+                return methodVisitor;
+            }
+
+            if (classCounter == null){
+                classCounter = GeneralCounter.getInstance().putIfAbsent(className);
+            }
+            // 重载方法共用同一个方法计数器, 与代理模式一致
+            int id = classCounter.putIfAbsent(name).getId();
+            instrumented = true;
+            return new CounterMethodVisitor(methodVisitor, id);
+        }
+    }
+
+    /**
+     * 方法访问器: 在第一条指令之前插入计数调用, 不改变局部变量与栈帧
+     */
+    private static final class CounterMethodVisitor extends MethodVisitor {
+
+        private final int id;
+
+        private CounterMethodVisitor(MethodVisitor methodVisitor, int id) {
+            super(ASM_API, methodVisitor);
+            this.id = id;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            if (id <= Short.MAX_VALUE){
+                super.visitIntInsn(Opcodes.SIPUSH, id);
+            }else {
+                super.visitLdcInsn(id);
+            }
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, "update", "(I)V", false);
+        }
+    }
+}
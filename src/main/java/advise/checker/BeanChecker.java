@@ -3,7 +3,11 @@ package advise.checker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 功能: 负责对依赖图进行检查 \ 添加 \ 排除 bean
@@ -19,12 +23,17 @@ public class BeanChecker {
     /**
      * 排除掉的 Bean
      */
-    private static final Set<String> ignoreBeanName = new HashSet<>();
+    private static final Set<String> ignoreBeanName = ConcurrentHashMap.newKeySet();
 
     /**
      * 检查过的 Bean (有一些 Bean 不会经过 BeanFactoryPostProcessor 但会经过 BeanPostProcessor 造成了这个问题)
      */
-    private static final Set<String> checkedBeanName = new HashSet<>();
+    private static final Set<String> checkedBeanName = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 因为循环依赖被排除的 Bean
+     */
+    private static final Set<String> circularBeanName = ConcurrentHashMap.newKeySet();
 
     /**
      * 是否需要忽略该 Bean
@@ -54,85 +63,50 @@ public class BeanChecker {
         checkedBeanName.add(beanName);
     }
 
+    /**
+     * 批量标记忽略
+     */
+    public static void ignoredBeans(Collection<String> beanNames){
+        ignoreBeanName.addAll(beanNames);
+    }
+
+    /**
+     * 批量标记检查
+     */
+    public static void checkedBeans(Collection<String> beanNames){
+        checkedBeanName.addAll(beanNames);
+    }
+
     /**
      * <p>循环依赖检查</p>
-     * <p>核心思想是 DFS 检查</p>
+     * <p>依赖图在添加依赖时增量维护强连通分量, 这里只排除新出现在环中的 Bean, 没有新的环时为 O(1)</p>
      */
     public static void circularCheck(){
         Map<String, BeanWrapperNode> allBeans = circularMap.getBeanMap();
-        // 通过的 Bean
-        Set<BeanWrapperNode> acceptBeans = new HashSet<>();
-        // 拒绝的 Bean
-        Set<BeanWrapperNode> rejectBeans = new HashSet<>();
-        // 依赖链条
-        LinkedList<BeanWrapperNode> dependencyLine = new LinkedList<>();
-
-        // 对每个 bean 进行检查
-        for (BeanWrapperNode bean : allBeans.values()) {
-            // 如果没有被依赖, 则证明是 "头结点"
-            if (bean.getBeDependencyMap().size() == 0){
-                dependencyLine.add(bean);
-                // 开始递归搜索, 结果保存在 acceptBeans 和 rejectBeans 中
-                findDependencyFromBean(dependencyLine, acceptBeans, rejectBeans);
-            }
+        for (String beanName : circularMap.getCycleDetector().drainCyclic()) {
+            logger.warn("[beancounter-start] Exclude bean[" + beanName + "] because it's in a circular dependence");
+            ignoreBeanName.add(beanName);
+            circularBeanName.add(beanName);
+            allBeans.remove(beanName);
         }
+    }
 
-        Iterator<Map.Entry<String, BeanWrapperNode>> allBeansIterator = allBeans.entrySet().iterator();
+    public static Set<String> getIgnoredBeans(){
+        return Collections.unmodifiableSet(ignoreBeanName);
+    }
 
-        // 将结果保存进 ignoredBeanName 中
-        while (allBeansIterator.hasNext()) {
-            Map.Entry<String, BeanWrapperNode> entry = allBeansIterator.next();
-            if (!acceptBeans.contains(entry.getValue())){
-                logger.warn("[beancounter-start] Exclude bean[" + entry.getKey() + "] because it's in a circular dependence");
-                ignoreBeanName.add(entry.getKey());
-                allBeansIterator.remove();
-            }
-        }
+    public static Set<String> getCheckedBeans(){
+        return Collections.unmodifiableSet(checkedBeanName);
+    }
+
+    public static Set<String> getCircularBeans(){
+        return Collections.unmodifiableSet(circularBeanName);
     }
 
     /**
-     * 递归对以来进行检查
-     * @param dependencyLine 依赖链
-     * @param acceptBeans 通过的 Bean
-     * @param rejectBeans 不通过的 Bean
+     * 是否在循环依赖中
      */
-    private static void findDependencyFromBean(LinkedList<BeanWrapperNode> dependencyLine, Set<BeanWrapperNode> acceptBeans, Set<BeanWrapperNode> rejectBeans) {
-        // 获取当前 Bean
-        BeanWrapperNode currentNode = dependencyLine.getLast();
-
-        // 如果发现 ignored 中包含了, 那么之后就必然走向循环依赖, 直接排除
-        if (ignoreBeanName.contains(currentNode.getBeanName())){
-            dependencyLine.removeLast();
-        }
-
-        // 如果当前的 Bean 依赖为空, 则直接弹出, 走到下一个依赖去(没有依赖就不会有循环依赖)
-        if (currentNode.getDependencyMap().isEmpty()){
-            acceptBeans.add(currentNode);
-            dependencyLine.removeLast();
-            return;
-        }
-
-        // 遍历他的依赖
-        for (Map.Entry<String, BeanWrapperNode> entry : currentNode.getDependencyMap().entrySet()) {
-            // 如果他的依赖之前有过, 那证明这里有循环依赖了
-            if (dependencyLine.contains(entry.getValue())){
-                // 找到循环依赖的位置
-                int index = dependencyLine.indexOf(entry.getValue());
-                // 中间的所有 Bean 都会被 Reject
-                for (int i = index; i < dependencyLine.size(); i++) {
-                    rejectBeans.add(dependencyLine.get(i));
-                }
-            }
-            // 如果不包含, 则通过该 Bean 进行递归前进
-            else{
-                dependencyLine.addLast(entry.getValue());
-                findDependencyFromBean(dependencyLine, acceptBeans, rejectBeans);
-            }
-        }
-
-        // 如果整个一圈下来, 该 Bean 都没有被排除, 则证明该 Bean 不存在循环依赖
-        if (!rejectBeans.contains(currentNode)){
-            acceptBeans.add(currentNode);
-        }
+    public static boolean isCircular(String beanName){
+        return circularMap.getCycleDetector().isCyclic(beanName);
     }
 }
@@ -1,23 +1,34 @@
 package advise.checker;
 
+import advise.counter.StartupReport;
 import advise.map.ProxyMappingUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.PropertyValue;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanReference;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import util.ConvertUtil;
 
 import javax.annotation.Resource;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * 功能: 依赖图实现类
  * <p>1. 实例化 BeanWrapper</p>
  * <p>2. 填充 DependsOn 依赖</p>
- * <p>3. 填充 @Resource 和 @Autowired 依赖</p>
+ * <p>3. 填充 Spring 注册的依赖 (字段 / 构造器 / setter 注入与 BeanDefinition 中的引用), 没有注册信息时退回反射扫描 @Resource 和 @Autowired 字段</p>
+ * <p>每添加一条依赖都会同步更新 {@link CycleDetector}, 循环依赖检查不需要重新遍历依赖图</p>
  * @author unknown100name
  * @date 2021.10.06
  */
@@ -41,6 +52,31 @@ public class CircularMap {
      */
     private final Map<String, BeanWrapperNode> beanMap = new HashMap<>();
 
+    /**
+     * 增量强连通分量检测
+     */
+    private final CycleDetector cycleDetector = new CycleDetector();
+
+    /**
+     * Simple Bean Name -> Full Bean Name
+     */
+    private final Map<String, String> fullBeanNames = new HashMap<>();
+
+    /**
+     * 添加过的全部依赖 (包括不在依赖图中的 Bean), 用于写入启动缓存
+     * Full Bean Name -> 被依赖的 Full Bean Name
+     */
+    private final Map<String, Set<String>> dependencies = new LinkedHashMap<>();
+
+    /**
+     * 记录 Bean 简称与全量名的对应关系, Spring 注册的依赖只有 Bean 简称
+     * @param simpleBeanName Bean 简称
+     * @param fullBeanName Bean 全量名
+     */
+    public void registerBeanName(String simpleBeanName, String fullBeanName){
+        fullBeanNames.put(simpleBeanName, fullBeanName);
+    }
+
     /**
      * 通过　Full Bean Name 构建 BeanWrarpper 并添加进 BeanWrapper 中
      * @param fullBeanName Bean 全量名
@@ -66,21 +102,81 @@ public class CircularMap {
         String[] dependsOn= beanDefinition.getDependsOn();
         if (dependsOn != null){
             for (String dependsOnBeanName : dependsOn) {
-                // 获取依赖的 BeanWrapper
-                BeanWrapperNode dependsOnBeanWrapper = initBeanWrapper(dependsOnBeanName);
+                // 获取依赖的 BeanWrapper, DependsOn 中是 Bean 简称
+                String dependsOnFullBeanName = resolveFullBeanName(dependsOnBeanName, beanFactory);
+                BeanWrapperNode dependsOnBeanWrapper = initBeanWrapper(dependsOnFullBeanName);
                 // 添加映射关系
-                currentBeanWrapper.getDependencyMap().put(dependsOnBeanName, dependsOnBeanWrapper);
-                dependsOnBeanWrapper.getBeDependencyMap().put(fullBeanName, currentBeanWrapper);
+                addDependency(fullBeanName, currentBeanWrapper, dependsOnFullBeanName, dependsOnBeanWrapper);
             }
         }
     }
 
+    /**
+     * 添加 Spring 在创建 Bean 时注册的依赖, 并添加进 BeanWrapper 中, 不需要反射
+     * <p>BeanPostProcessor 执行时属性已经注入完成, 字段 / 构造器 / setter 注入的依赖都已经注册到 BeanFactory 中</p>
+     * <p>没有任何注册信息时 (例如依赖不是由 Spring 注入的) 退回反射扫描 @Resource 和 @Autowired 字段</p>
+     * @param simpleBeanName Bean 简称
+     * @param fullBeanName Bean 全量名
+     * @param bean Bean 实例
+     * @param beanFactory BeanFactory
+     */
+    public void populateRegisteredDependence(String simpleBeanName, String fullBeanName, Object bean, ConfigurableListableBeanFactory beanFactory){
+        // 获取当前的 BeanWrapper
+        BeanWrapperNode currentBeanWrapper = beanMap.get(fullBeanName);
+
+        // 排除没有被扫描到的 Bean
+        if (currentBeanWrapper == null){
+            logger.warn("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's not in the beanMap, so that it may cause circular dependency");
+            return;
+        }
+        if (bean == null){
+            return;
+        }
+        currentBeanWrapper.setBean(bean);
+
+        Set<String> dependencies = new LinkedHashSet<>();
+        try {
+            dependencies.addAll(Arrays.asList(beanFactory.getDependenciesForBean(simpleBeanName)));
+            collectDefinitionReferences(beanFactory.getMergedBeanDefinition(simpleBeanName), dependencies);
+        }catch (Throwable t){
+            logger.error("[beancounter-start] Bean[" + fullBeanName + "] read registered dependencies fail", t);
+        }
+
+        // 反射兜底
+        if (dependencies.isEmpty()){
+            populateBeanInstance(fullBeanName, bean);
+            return;
+        }
+
+        for (String dependency : dependencies) {
+            String dependencyFullBeanName = resolveFullBeanName(dependency, beanFactory);
+            addDependency(fullBeanName, currentBeanWrapper, dependencyFullBeanName, beanMap.get(dependencyFullBeanName));
+        }
+        // 先于当前 Bean 创建的依赖方 (例如提前暴露引用的循环依赖) 同样加入
+        for (String dependent : beanFactory.getDependentBeans(simpleBeanName)) {
+            String dependentFullBeanName = resolveFullBeanName(dependent, beanFactory);
+            addDependency(dependentFullBeanName, beanMap.get(dependentFullBeanName), fullBeanName, currentBeanWrapper);
+        }
+    }
+
     /**
      * 添加 Bean @Resource 和 @Autowired 依赖, 并添加进 BeanWrapper 中
      * @param fullBeanName Bean 全量名
      * @param bean Bean 实例
      */
     public void populateBeanInstance(String fullBeanName, Object bean){
+        long start = System.nanoTime();
+        try {
+            populateInstance(fullBeanName, bean);
+        }finally {
+            StartupReport.getInstance().record(StartupReport.Phase.POPULATE_INSTANCE, start);
+        }
+    }
+
+    /**
+     * 反射扫描依赖, 递归扫描注入的 Bean
+     */
+    private void populateInstance(String fullBeanName, Object bean){
         // 获取当前的 BeanWrapper
         BeanWrapperNode currentBeanWrapper = beanMap.get(fullBeanName);
 
@@ -140,10 +236,9 @@ public class CircularMap {
                     }
 
                     // 否则添加关系
-                    currentBeanWrapper.getDependencyMap().put(injectFullBeanName, injectBeanWrapper);
-                    injectBeanWrapper.getBeDependencyMap().put(fullBeanName, currentBeanWrapper);
+                    addDependency(fullBeanName, currentBeanWrapper, injectFullBeanName, injectBeanWrapper);
                     // 递归查询
-                    this.populateBeanInstance(injectFullBeanName, injectBean);
+                    this.populateInstance(injectFullBeanName, injectBean);
                 }catch (Throwable t){
                     logger.error("[beancounter-start] Bean[" + fullBeanName + "] occurs error", t);
                 }
@@ -151,11 +246,86 @@ public class CircularMap {
         }
     }
 
+    /**
+     * 添加依赖关系 from -> to, 不在依赖图中的 Bean (没有被扫描) 只参与环检测
+     * @param from 依赖方全量名
+     * @param fromWrapper 依赖方, 可以为 null
+     * @param to 被依赖方全量名
+     * @param toWrapper 被依赖方, 可以为 null
+     */
+    private void addDependency(String from, BeanWrapperNode fromWrapper, String to, BeanWrapperNode toWrapper){
+        if (fromWrapper != null && toWrapper != null){
+            fromWrapper.getDependencyMap().put(to, toWrapper);
+            toWrapper.getBeDependencyMap().put(from, fromWrapper);
+        }
+        dependencies.computeIfAbsent(from, key -> new LinkedHashSet<>()).add(to);
+        cycleDetector.addEdge(from, to);
+    }
+
+    /**
+     * 恢复启动缓存中的依赖, 环检测随之恢复
+     * @param restoredDependencies Full Bean Name -> 被依赖的 Full Bean Name
+     */
+    public void restoreDependencies(Map<String, ? extends Collection<String>> restoredDependencies){
+        for (Map.Entry<String, ? extends Collection<String>> entry : restoredDependencies.entrySet()) {
+            String from = entry.getKey();
+            for (String to : entry.getValue()) {
+                addDependency(from, beanMap.get(from), to, beanMap.get(to));
+            }
+        }
+    }
+
+    /**
+     * 收集 BeanDefinition 中构造器参数与属性里的 Bean 引用 (XML / 编程式注册)
+     */
+    private void collectDefinitionReferences(BeanDefinition beanDefinition, Set<String> dependencies){
+        ConstructorArgumentValues constructorArgumentValues = beanDefinition.getConstructorArgumentValues();
+        for (ConstructorArgumentValues.ValueHolder valueHolder : constructorArgumentValues.getIndexedArgumentValues().values()) {
+            collectReference(valueHolder.getValue(), dependencies);
+        }
+        for (ConstructorArgumentValues.ValueHolder valueHolder : constructorArgumentValues.getGenericArgumentValues()) {
+            collectReference(valueHolder.getValue(), dependencies);
+        }
+        for (PropertyValue propertyValue : beanDefinition.getPropertyValues().getPropertyValues()) {
+            collectReference(propertyValue.getValue(), dependencies);
+        }
+    }
+
+    private void collectReference(Object value, Set<String> dependencies){
+        if (value instanceof BeanReference){
+            dependencies.add(((BeanReference) value).getBeanName());
+        }
+    }
+
+    /**
+     * Bean 简称转换为全量名, 没有全量名时 (不是注解定义的 Bean) 使用简称
+     */
+    private String resolveFullBeanName(String simpleBeanName, ConfigurableListableBeanFactory beanFactory){
+        String fullBeanName = fullBeanNames.get(simpleBeanName);
+        if (fullBeanName == null){
+            fullBeanName = Optional.ofNullable(ConvertUtil.convertToFullName(simpleBeanName, beanFactory)).orElse(simpleBeanName);
+            fullBeanNames.put(simpleBeanName, fullBeanName);
+        }
+        return fullBeanName;
+    }
+
     public Map<String, BeanWrapperNode> getBeanMap() {
         return beanMap;
     }
 
+    public Map<String, String> getFullBeanNames() {
+        return fullBeanNames;
+    }
+
+    public Map<String, Set<String>> getDependencies() {
+        return dependencies;
+    }
+
+    public CycleDetector getCycleDetector() {
+        return cycleDetector;
+    }
+
     private BeanWrapperNode getOrCreateBeanWrapperNode(String fullBeanName) {
-        return Optional.of(beanMap.get(fullBeanName)).orElse(new BeanWrapperNode(fullBeanName));
+        return Optional.ofNullable(beanMap.get(fullBeanName)).orElseGet(() -> new BeanWrapperNode(fullBeanName));
     }
 }
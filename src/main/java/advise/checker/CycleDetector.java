@@ -0,0 +1,297 @@
+package advise.checker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 功能: 增量强连通分量检测, 依赖图每添加一条边就更新一次, 查询某个 Bean 是否在环中为 O(1)
+ * <p>强连通分量用并查集合并, 分量之间维护一个拓扑序 (Pearce-Kelly 动态拓扑排序):
+ * 新边 u -> v 满足 ord(u) < ord(v) 时不需要任何处理, 否则只在 [ord(v), ord(u)] 区间内向前 / 向后搜索</p>
+ * <p>向前搜索到达 u 说明出现了环: 两次搜索的交集 (既能从 v 到达, 又能到达 u) 就是新的强连通分量, 合并为一个节点;
+ * 其余节点按 向后集合 -> 新分量 -> 向前集合 的顺序重新分配原有的拓扑序位置</p>
+ * <p>只有新边违反拓扑序时才会搜索, 且搜索范围限制在受影响的区间内, 依赖图基本按顺序添加时接近线性</p>
+ * <p>自依赖 (u -> u) 同样视为环</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CycleDetector {
+
+    /**
+     * Bean 名称 -> 节点 id
+     */
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * 节点 id -> Bean 名称
+     */
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * 分量的出边 (分量代表节点 id), 合并后可能包含过期的 id, 使用时通过 find 解析
+     */
+    private final List<Set<Integer>> outs = new ArrayList<>();
+
+    /**
+     * 分量的入边
+     */
+    private final List<Set<Integer>> ins = new ArrayList<>();
+
+    /**
+     * 分量包含的节点
+     */
+    private final List<List<Integer>> members = new ArrayList<>();
+
+    /**
+     * 新出现在环中, 还没有被取走的 Bean
+     */
+    private final List<String> pendingCyclic = new ArrayList<>();
+
+    /**
+     * 并查集父节点
+     */
+    private int[] parents = new int[16];
+
+    /**
+     * 分量的拓扑序
+     */
+    private int[] orders = new int[16];
+
+    /**
+     * 分量是否在环中
+     */
+    private boolean[] cyclic = new boolean[16];
+
+    /**
+     * 搜索标记, 与 epoch 相等表示本轮已经访问过
+     */
+    private int[] forwardMarks = new int[16];
+
+    private int[] backwardMarks = new int[16];
+
+    private int epoch;
+
+    /**
+     * 下一个可用的拓扑序
+     */
+    private int nextOrder;
+
+    /**
+     * 添加依赖 from -> to
+     * @param from 依赖方
+     * @param to 被依赖方
+     */
+    public void addEdge(String from, String to){
+        int u = find(node(from));
+        int v = find(node(to));
+        if (u == v){
+            markCyclic(u);
+            return;
+        }
+        if (!outs.get(u).add(v)){
+            return;
+        }
+        ins.get(v).add(u);
+        if (orders[u] < orders[v]){
+            return;
+        }
+
+        epoch++;
+        List<Integer> forward = search(v, orders[u], true);
+        List<Integer> backward = search(u, orders[v], false);
+
+        // 可用的拓扑序位置
+        int[] slots = new int[forward.size() + backward.size()];
+        int index = 0;
+        for (int id : backward) {
+            slots[index++] = orders[id];
+        }
+        for (int id : forward) {
+            if (backwardMarks[id] != epoch){
+                slots[index++] = orders[id];
+            }
+        }
+        slots = Arrays.copyOf(slots, index);
+        Arrays.sort(slots);
+
+        // 向后集合只会前移, 使用最小的位置; 向前集合只会后移, 使用最大的位置; 新分量排在两者之间
+        backward.sort((a, b) -> Integer.compare(orders[a], orders[b]));
+        forward.sort((a, b) -> Integer.compare(orders[a], orders[b]));
+        List<Integer> component = new ArrayList<>();
+        int low = 0;
+        for (int id : backward) {
+            if (forwardMarks[id] == epoch){
+                component.add(id);
+            }else {
+                orders[id] = slots[low++];
+            }
+        }
+        int high = slots.length;
+        for (int i = forward.size() - 1; i >= 0; i--) {
+            int id = forward.get(i);
+            if (backwardMarks[id] != epoch){
+                orders[id] = slots[--high];
+            }
+        }
+        if (!component.isEmpty()){
+            orders[merge(component)] = slots[low];
+        }
+    }
+
+    /**
+     * @param beanName Bean 名称
+     * @return 是否在环中 (属于多个节点的强连通分量或自依赖)
+     */
+    public boolean isCyclic(String beanName){
+        Integer id = ids.get(beanName);
+        return id != null && cyclic[find(id)];
+    }
+
+    /**
+     * 取走上一次调用之后新出现在环中的 Bean
+     * @return Bean 名称
+     */
+    public List<String> drainCyclic(){
+        if (pendingCyclic.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<String> drained = new ArrayList<>(pendingCyclic);
+        pendingCyclic.clear();
+        return drained;
+    }
+
+    /**
+     * 在拓扑序区间内搜索, 向前搜索不超过 bound, 向后搜索不低于 bound
+     * @return 访问到的分量
+     */
+    private List<Integer> search(int start, int bound, boolean forward){
+        int[] marks = forward ? forwardMarks : backwardMarks;
+        List<Set<Integer>> edges = forward ? outs : ins;
+        List<Integer> visited = new ArrayList<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        marks[start] = epoch;
+        stack.push(start);
+        while (!stack.isEmpty()){
+            int current = stack.pop();
+            visited.add(current);
+            for (int edge : edges.get(current)) {
+                int next = find(edge);
+                if (next == current || marks[next] == epoch){
+                    continue;
+                }
+                if (forward ? orders[next] <= bound : orders[next] >= bound){
+                    marks[next] = epoch;
+                    stack.push(next);
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * 合并为一个强连通分量
+     * @param component 分量代表节点
+     * @return 合并后的代表节点
+     */
+    private int merge(List<Integer> component){
+        int root = component.get(0);
+        for (int id : component) {
+            if (members.get(id).size() > members.get(root).size()){
+                root = id;
+            }
+        }
+        for (int id : component) {
+            if (!cyclic[id]){
+                for (int member : members.get(id)) {
+                    pendingCyclic.add(names.get(member));
+                }
+            }
+        }
+        for (int id : component) {
+            if (id == root){
+                continue;
+            }
+            parents[id] = root;
+            outs.get(root).addAll(outs.get(id));
+            ins.get(root).addAll(ins.get(id));
+            members.get(root).addAll(members.get(id));
+            outs.set(id, null);
+            ins.set(id, null);
+            members.set(id, null);
+        }
+        cyclic[root] = true;
+        outs.set(root, resolve(outs.get(root), root));
+        ins.set(root, resolve(ins.get(root), root));
+        return root;
+    }
+
+    private void markCyclic(int id){
+        if (cyclic[id]){
+            return;
+        }
+        cyclic[id] = true;
+        for (int member : members.get(id)) {
+            pendingCyclic.add(names.get(member));
+        }
+    }
+
+    /**
+     * 把边集合中过期的 id 解析为代表节点, 并去掉分量内部的边
+     */
+    private Set<Integer> resolve(Set<Integer> edges, int root){
+        Set<Integer> resolved = new HashSet<>();
+        for (int edge : edges) {
+            int target = find(edge);
+            if (target != root){
+                resolved.add(target);
+            }
+        }
+        return resolved;
+    }
+
+    private int node(String beanName){
+        Integer id = ids.get(beanName);
+        if (id != null){
+            return id;
+        }
+        int newId = names.size();
+        if (newId == parents.length){
+            int capacity = newId * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            orders = Arrays.copyOf(orders, capacity);
+            cyclic = Arrays.copyOf(cyclic, capacity);
+            forwardMarks = Arrays.copyOf(forwardMarks, capacity);
+            backwardMarks = Arrays.copyOf(backwardMarks, capacity);
+        }
+        ids.put(beanName, newId);
+        names.add(beanName);
+        outs.add(new HashSet<>());
+        ins.add(new HashSet<>());
+        members.add(new ArrayList<>(Collections.singletonList(newId)));
+        parents[newId] = newId;
+        // 新节点没有任何边, 排在最后即可
+        orders[newId] = nextOrder++;
+        return newId;
+    }
+
+    private int find(int id){
+        int root = id;
+        while (parents[root] != root){
+            root = parents[root];
+        }
+        while (parents[id] != root){
+            int next = parents[id];
+            parents[id] = root;
+            id = next;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,48 @@
+package advise.counter;
+
+/**
+ * 功能: 方法之间的一条调用边, 用于调用关系查询
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CallEdge {
+
+    /**
+     * 调用方: 类名#方法名, 没有调用方时为 [root]
+     */
+    private final String caller;
+
+    /**
+     * 被调用方: 类名#方法名
+     */
+    private final String callee;
+
+    /**
+     * 调用次数
+     */
+    private final long count;
+
+    public CallEdge(String caller, String callee, long count) {
+        this.caller = caller;
+        this.callee = callee;
+        this.count = count;
+    }
+
+    public String getCaller() {
+        return caller;
+    }
+
+    public String getCallee() {
+        return callee;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return caller + " -> " + callee + " " + count;
+    }
+}
@@ -0,0 +1,330 @@
+package advise.counter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 功能: 调用关系统计, 记录每一条调用路径 (调用上下文树) 的调用次数
+ * <p>每个线程维护一个计数槽 id 栈, 进入方法时以 (父节点, 计数槽 id) 查找或创建子节点并计数</p>
+ * <p>节点保存在固定容量的开放寻址表中, 键为原始 long, 查找与插入都不加锁, 也不创建对象</p>
+ * <p>节点用完后新的调用路径统一记录到 [overflow] 节点, 超过最大深度的调用记录到 [truncated], 两者都会在导出时给出</p>
+ * <p>方法之间的调用边 (caller -> callee) 与火焰图格式 (collapsed stack) 都由调用上下文树汇总得到</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CallGraph {
+
+    /**
+     * 根节点, 没有调用方的调用挂在根节点下
+     */
+    private static final int ROOT = 0;
+
+    /**
+     * 溢出节点, 节点用完之后的新调用路径都记录在这里
+     */
+    private static final int OVERFLOW = 1;
+
+    public static final String ROOT_NAME = "[root]";
+
+    public static final String OVERFLOW_NAME = "[overflow]";
+
+    public static final String TRUNCATED_NAME = "[truncated]";
+
+    /**
+     * 全局实例, 没有开启时为 null
+     */
+    private static volatile CallGraph instance;
+
+    /**
+     * 最大节点个数
+     */
+    private final int capacity;
+
+    /**
+     * 最大调用深度
+     */
+    private final int maxDepth;
+
+    /**
+     * 开放寻址表的键: (父节点 + 1) << 32 | 计数槽 id, 0 表示空位
+     */
+    private final AtomicLongArray keys;
+
+    /**
+     * 开放寻址表的值: 节点 id, 0 表示插入还没有完成
+     */
+    private final AtomicIntegerArray values;
+
+    private final int mask;
+
+    /**
+     * 节点的父节点, 在节点 id 发布之前写入
+     */
+    private final int[] parents;
+
+    /**
+     * 节点对应的计数槽 id, 在节点 id 发布之前写入
+     */
+    private final int[] methods;
+
+    /**
+     * 节点的调用次数
+     */
+    private final AtomicLongArray counts;
+
+    /**
+     * 已分配的节点个数
+     */
+    private final AtomicInteger size = new AtomicInteger(OVERFLOW + 1);
+
+    /**
+     * 超过最大深度而没有记录的调用次数
+     */
+    private final LongAdder truncated = new LongAdder();
+
+    /**
+     * 线程调用栈
+     */
+    private final ThreadLocal<Frames> frames;
+
+    private CallGraph(int capacity, int maxDepth) {
+        this.capacity = Math.max(capacity, OVERFLOW + 1);
+        this.maxDepth = Math.max(maxDepth, 1);
+        int tableSize = Integer.highestOneBit(this.capacity - 1) << 2;
+        this.keys = new AtomicLongArray(tableSize);
+        this.values = new AtomicIntegerArray(tableSize);
+        this.mask = tableSize - 1;
+        this.parents = new int[this.capacity];
+        this.methods = new int[this.capacity];
+        this.counts = new AtomicLongArray(this.capacity);
+        this.frames = ThreadLocal.withInitial(() -> new Frames(this.maxDepth));
+    }
+
+    /**
+     * 开启调用关系统计, 重复调用不会重复创建
+     * @param capacity 最大节点个数
+     * @param maxDepth 最大调用深度
+     */
+    public static synchronized void enable(int capacity, int maxDepth){
+        if (instance == null){
+            instance = new CallGraph(capacity, maxDepth);
+        }
+    }
+
+    /**
+     * @return 全局实例, 没有开启时为 null
+     */
+    public static CallGraph getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return 是否开启了调用关系统计
+     */
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /**
+     * 进入方法
+     * @param id 计数槽 id
+     */
+    public void enter(int id){
+        Frames current = frames.get();
+        if (current.depth >= maxDepth){
+            truncated.increment();
+            current.depth++;
+            return;
+        }
+        int parent = current.depth == 0 ? ROOT : current.nodes[current.depth - 1];
+        int node = child(parent, id);
+        counts.incrementAndGet(node);
+        current.nodes[current.depth++] = node;
+    }
+
+    /**
+     * 退出方法, 必须与 {@link #enter} 成对调用 (包括抛出异常的情况)
+     */
+    public void exit(){
+        Frames current = frames.get();
+        if (current.depth > 0){
+            current.depth--;
+        }
+    }
+
+    /**
+     * 查找或创建子节点
+     */
+    private int child(int parent, int id){
+        long key = ((long) (parent + 1) << 32) | (id & 0xFFFFFFFFL);
+        int index = mix(key) & mask;
+        for (int probe = 0; probe <= mask; probe++) {
+            long current = keys.get(index);
+            if (current == 0L){
+                // 节点已经用完, 不再占用新的空位, 表的装载率始终不超过 1/2
+                if (size.get() >= capacity){
+                    return OVERFLOW;
+                }
+                if (keys.compareAndSet(index, 0L, key)){
+                    int node = size.getAndIncrement();
+                    if (node >= capacity){
+                        values.set(index, OVERFLOW);
+                        return OVERFLOW;
+                    }
+                    parents[node] = parent;
+                    methods[node] = id;
+                    values.set(index, node);
+                    return node;
+                }
+                current = keys.get(index);
+            }
+            if (current == key){
+                return awaitValue(index);
+            }
+            index = (index + 1) & mask;
+        }
+        return OVERFLOW;
+    }
+
+    /**
+     * 等待其他线程完成插入
+     */
+    private int awaitValue(int index){
+        int node;
+        while ((node = values.get(index)) == 0){
+            Thread.yield();
+        }
+        return node;
+    }
+
+    private static int mix(long key){
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * 汇总方法之间的调用边
+     * @param names 计数槽 id -> 名称
+     * @return 调用边, 按调用次数倒序
+     */
+    public List<CallEdge> getEdges(Map<Integer, String> names){
+        Map<Long, long[]> aggregated = new HashMap<>();
+        int nodes = Math.min(size.get(), capacity);
+        for (int node = OVERFLOW + 1; node < nodes; node++) {
+            long count = counts.get(node);
+            if (count == 0L){
+                continue;
+            }
+            int parent = parents[node];
+            long caller = parent <= OVERFLOW ? -1L : methods[parent];
+            long edge = (caller << 32) | (methods[node] & 0xFFFFFFFFL);
+            aggregated.computeIfAbsent(edge, key -> new long[1])[0] += count;
+        }
+
+        List<CallEdge> edges = new ArrayList<>(aggregated.size());
+        for (Map.Entry<Long, long[]> entry : aggregated.entrySet()) {
+            int caller = (int) (entry.getKey() >> 32);
+            int callee = (int) entry.getKey().longValue();
+            edges.add(new CallEdge(caller < 0 ? ROOT_NAME : nameOf(names, caller), nameOf(names, callee), entry.getValue()[0]));
+        }
+        edges.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+        return edges;
+    }
+
+    /**
+     * 导出火焰图格式 (collapsed stack): 每行为 "调用路径 次数", 路径用 ; 分隔
+     * <p>每行的次数为该路径自身的调用次数减去子路径的调用次数, 从而火焰图中每一帧的宽度等于该路径的调用次数</p>
+     * @param names 计数槽 id -> 名称
+     * @return 火焰图格式文本
+     */
+    public String getCollapsedStacks(Map<Integer, String> names){
+        int nodes = Math.min(size.get(), capacity);
+        long[] self = new long[nodes];
+        for (int node = OVERFLOW + 1; node < nodes; node++) {
+            long count = counts.get(node);
+            self[node] += count;
+            if (parents[node] > OVERFLOW){
+                self[parents[node]] -= count;
+            }
+        }
+
+        // 父节点总是先于子节点创建, 所以按 id 顺序即可拼出路径
+        String[] paths = new String[nodes];
+        StringBuilder result = new StringBuilder();
+        for (int node = OVERFLOW + 1; node < nodes; node++) {
+            if (counts.get(node) == 0L){
+                continue;
+            }
+            int parent = parents[node];
+            String name = nameOf(names, methods[node]);
+            paths[node] = parent <= OVERFLOW || paths[parent] == null ? name : paths[parent] + ";" + name;
+            if (self[node] > 0L){
+                result.append(paths[node]).append(' ').append(self[node]).append('\n');
+            }
+        }
+        if (getOverflowCount() > 0L){
+            result.append(OVERFLOW_NAME).append(' ').append(getOverflowCount()).append('\n');
+        }
+        if (getTruncatedCount() > 0L){
+            result.append(TRUNCATED_NAME).append(' ').append(getTruncatedCount()).append('\n');
+        }
+        return result.toString();
+    }
+
+    private static String nameOf(Map<Integer, String> names, int id){
+        String name = names.get(id);
+        return name == null ? "[" + id + "]" : name;
+    }
+
+    /**
+     * @return 节点用完之后没有单独记录路径的调用次数
+     */
+    public long getOverflowCount(){
+        return counts.get(OVERFLOW);
+    }
+
+    /**
+     * @return 超过最大深度而没有记录的调用次数
+     */
+    public long getTruncatedCount(){
+        return truncated.sum();
+    }
+
+    /**
+     * @return 已使用的节点个数
+     */
+    public int getNodeCount(){
+        return Math.min(size.get(), capacity) - OVERFLOW - 1;
+    }
+
+    /**
+     * @return 估算的占用字节数, 不包括各线程的调用栈
+     */
+    long footprint(){
+        return FootprintReport.atomicArray(keys.length(), FootprintReport.LONG)
+                + FootprintReport.atomicArray(values.length(), FootprintReport.INT)
+                + 2 * FootprintReport.array(capacity, FootprintReport.INT)
+                + FootprintReport.atomicArray(capacity, FootprintReport.LONG);
+    }
+
+    /**
+     * 线程调用栈, 保存节点 id
+     */
+    private static final class Frames {
+
+        private final int[] nodes;
+
+        private int depth;
+
+        private Frames(int maxDepth) {
+            this.nodes = new int[maxDepth];
+        }
+    }
+}
@@ -5,15 +5,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.Set;
 
 /**
  * 功能: 内存中使用, 类调用次数计数器
+ * <p>类调用次数 = 自身计数槽 (继承而来的方法调用) + 下属所有方法计数槽之和</p>
+ * <p>方法计数器保存在 {@link MethodCounterMap} 中 (方法名数组 + 计数槽数组), 排除的方法集合只有存在 final 方法时才创建</p>
  * @author unknown100name
  * @date 2021.10.06
  */
@@ -25,14 +26,16 @@ public class ClassCounter implements Serializable {
     private static final Logger logger = LoggerFactory.getLogger(ClassCounter.class);
 
     /**
-     * 类调用次数
+     * 自身计数槽 id, 只记录没有对应方法计数器的调用
      */
-    private LongAdder count;
+    @JSONField(serialize = false)
+    private final int id;
 
     /**
-     * 类最近调用时间
+     * 所属的计数器注册表
      */
-    private Long lastCallTime;
+    @JSONField(serialize = false)
+    private final transient CounterRegistry registry;
 
     /**
      * 对应的 Class
@@ -43,71 +46,176 @@ public class ClassCounter implements Serializable {
     /**
      * 下属的方法计数器
      */
-    private ConcurrentHashMap<String, MethodCounter> methodCounters;
+    private final MethodCounterMap methodCounters;
 
     /**
-     * 排出的方法
+     * 排出的方法, 没有时为 null
      */
-    private HashSet<String> ignoredSet;
+    private Set<String> ignoredSet;
 
-    public ClassCounter() {
+    /**
+     * 是否已经和数据库校对过
+     */
+    @JSONField(serialize = false)
+    private transient volatile boolean proofread;
+
+    public ClassCounter(CounterRegistry registry) {
+        this.registry = registry;
+        this.id = registry.register();
+        this.methodCounters = new MethodCounterMap(registry);
+    }
+
+    public ClassCounter(CounterRegistry registry, Class<?> klass) {
+        this(registry, klass, MethodTable.of(klass));
     }
 
-    public ClassCounter(Class<?> klass) {
+    /**
+     * @param registry 计数器注册表
+     * @param klass 类
+     * @param methodTable 类的方法表, 可以来自启动缓存
+     */
+    public ClassCounter(CounterRegistry registry, Class<?> klass, MethodTable methodTable) {
+        this(registry);
         this.klass = klass;
-        this.initEmpty();
+        this.initEmpty(methodTable);
     }
 
     /**
      * 初始化 ClassCounter
      */
-    private void initEmpty() {
-        this.count = new LongAdder();
-        this.methodCounters = new ConcurrentHashMap<>();
-        this.ignoredSet = new HashSet<>();
-
-        Method[] methods = klass.getDeclaredMethods();
-        for (Method method : methods) {
-            // Final 方法无法被 CGLIB 代理, 所以无法进行统计
-            if (Modifier.isFinal(method.getModifiers())){
-                logger.warn("[beancounter-start] Exclude bean[" + klass + "]#[" + method.getName() + "] because it's a final method");
-                this.ignoredSet.add(method.getName());
-            }else {
-                this.methodCounters.put(method.getName(), new MethodCounter(method));
+    private void initEmpty(MethodTable methodTable) {
+        // Final 方法无法被 CGLIB 代理, 所以无法进行统计
+        for (String finalName : methodTable.getFinalNames()) {
+            logger.warn("[beancounter-start] Exclude bean[" + klass + "]#[" + finalName + "] because it's a final method");
+            this.ignore(finalName);
+        }
+        for (String countedName : methodTable.getCountedNames()) {
+            if (!this.methodCounters.containsKey(countedName)){
+                this.methodCounters.put(countedName, new MethodCounter(registry, this.id));
             }
         }
     }
 
     /**
-     * 更新 method 数据 (调用次数 + 1)
-     * @param method 调用的方法
+     * 按方法名添加方法计数器, 用于类加载之前就需要分配计数槽的场景 (Java Agent)
+     * @param methodName 方法名
+     * @return 方法计数器, 重载方法共用同一个
+     */
+    public MethodCounter putIfAbsent(String methodName){
+        return this.methodCounters.computeIfAbsent(methodName, name -> new MethodCounter(registry, this.id));
+    }
+
+    /**
+     * 排除方法
+     * @param methodName 方法名
+     */
+    private synchronized void ignore(String methodName){
+        if (this.ignoredSet == null){
+            this.ignoredSet = new HashSet<>(2);
+        }
+        this.ignoredSet.add(methodName.intern());
+    }
+
+    /**
+     * 标记为已经和数据库校对过
+     * @return 是否是第一次标记, 只有第一次标记的调用方需要进行校对
      */
-    public void update(Method method){
-        this.count.increment();
-        this.lastCallTime = System.currentTimeMillis();
-        if (!this.ignoredSet.contains(method.getName())){
-            this.methodCounters.get(method.getName()).update();
+    public synchronized boolean markProofread(){
+        if (this.proofread){
+            return false;
         }
+        this.proofread = true;
+        return true;
+    }
+
+    @JSONField(serialize = false)
+    public boolean isProofread() {
+        return proofread;
+    }
+
+    /**
+     * 更新 class 数据 (调用次数 + 1), 用于没有对应方法计数器的调用
+     */
+    public void update(){
+        this.registry.update(this.id);
+    }
+
+    /**
+     * 增加类自身的调用次数 (不属于任何方法)
+     * @param delta 增加的次数
+     */
+    public void addCount(long delta){
+        this.registry.add(this.id, delta);
     }
 
     public static Logger getLogger() {
         return logger;
     }
 
-    public LongAdder getCount() {
+    public int getId() {
+        return id;
+    }
+
+    public CounterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return 类调用次数, 由计数槽汇总得到
+     */
+    public long getCount() {
+        long count = registry.sum(this.id);
+        for (MethodCounter methodCounter : methodCounters.values()) {
+            count += methodCounter.getCount();
+        }
         return count;
     }
 
-    public void setCount(LongAdder count) {
-        this.count = count;
+    /**
+     * @return 采样带来的调用次数误差 (95% 置信区间半宽), 精确计数时为 null
+     */
+    public Long getCountError() {
+        long variance = registry.variance(this.id);
+        for (MethodCounter methodCounter : methodCounters.values()) {
+            variance += registry.variance(methodCounter.getId());
+        }
+        return CounterRegistry.errorOf(variance);
+    }
+
+    /**
+     * @return 类调用频率, 由计数槽汇总得到, 没有开启调用频率统计时为 null
+     */
+    @JSONField(serialize = false)
+    public RateSummary getRates() {
+        RateTracker rateTracker = RateTracker.getInstance();
+        if (rateTracker == null){
+            return null;
+        }
+        int[] ids = new int[methodCounters.size() + 1];
+        int index = 0;
+        ids[index++] = this.id;
+        for (MethodCounter methodCounter : methodCounters.values()) {
+            if (index == ids.length){
+                break;
+            }
+            ids[index++] = methodCounter.getId();
+        }
+        return rateTracker.getRates(registry, Arrays.copyOf(ids, index));
     }
 
+    /**
+     * @return 类最近调用时间, 由计数槽汇总得到
+     */
     public Long getLastCallTime() {
-        return lastCallTime;
+        long lastCallTime = registry.lastCallTime(this.id);
+        for (MethodCounter methodCounter : methodCounters.values()) {
+            lastCallTime = Math.max(lastCallTime, registry.lastCallTime(methodCounter.getId()));
+        }
+        return lastCallTime == 0L ? null : lastCallTime;
     }
 
     public void setLastCallTime(Long lastCallTime) {
-        this.lastCallTime = lastCallTime;
+        registry.setLastCallTime(this.id, lastCallTime == null ? 0L : lastCallTime);
     }
 
     public Class<?> getKlass() {
@@ -118,35 +226,72 @@ public class ClassCounter implements Serializable {
         this.klass = klass;
     }
 
-    public ConcurrentHashMap<String, MethodCounter> getMethodCounters() {
+    public Map<String, MethodCounter> getMethodCounters() {
         return methodCounters;
     }
 
-    public void setMethodCounters(ConcurrentHashMap<String, MethodCounter> methodCounters) {
-        this.methodCounters = methodCounters;
+    /**
+     * 放入方法计数器, 方法计数器必须属于同一个注册表
+     * @param methodCounters 方法名 -> 方法计数器
+     */
+    public void setMethodCounters(Map<String, MethodCounter> methodCounters) {
+        this.methodCounters.putAll(methodCounters);
     }
 
-    public HashSet<String> getIgnoredSet() {
-        return ignoredSet;
+    /**
+     * @return 排出的方法, 没有时为空集合
+     */
+    public synchronized Set<String> getIgnoredSet() {
+        return ignoredSet == null ? Collections.emptySet() : Collections.unmodifiableSet(ignoredSet);
+    }
+
+    public synchronized void setIgnoredSet(Set<String> ignoredSet) {
+        this.ignoredSet = null;
+        for (String methodName : ignoredSet) {
+            this.ignore(methodName);
+        }
     }
 
-    public void setIgnoredSet(HashSet<String> ignoredSet) {
-        this.ignoredSet = ignoredSet;
+    /**
+     * 收集方法名与排除的方法名字符串, 用于估算字符串占用
+     * @param names 按对象身份去重的集合
+     */
+    void collectNames(Set<String> names){
+        methodCounters.collectNames(names);
+        synchronized (this){
+            if (ignoredSet != null){
+                names.addAll(ignoredSet);
+            }
+        }
     }
 
-    @Override
-    protected ClassCounter clone() throws CloneNotSupportedException {
-        ClassCounter clone = new ClassCounter();
-        LongAdder cloneCount = new LongAdder();
-        cloneCount.add(this.count.longValue());
-        clone.setCount(cloneCount);
-        clone.setKlass(this.klass);
-        clone.setLastCallTime(this.lastCallTime);
-        clone.setMethodCounters(new ConcurrentHashMap<>(this.methodCounters.size()));
+    /**
+     * @return 估算的占用字节数, 不包括注册表中的计数槽与方法名字符串
+     */
+    long footprint(){
+        long footprint = FootprintReport.object(FootprintReport.INT + 4 * FootprintReport.REFERENCE + 1) + methodCounters.footprint();
+        synchronized (this){
+            if (ignoredSet != null){
+                footprint += FootprintReport.hashSet(ignoredSet.size());
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * 复制到另一个计数器注册表中
+     * @param target 目标注册表
+     * @return 复制后的类计数器
+     */
+    protected ClassCounter copyTo(CounterRegistry target) {
+        ClassCounter copy = new ClassCounter(target);
+        copy.setKlass(this.klass);
+        copy.addCount(registry.sum(this.id));
+        copy.registry.setLastCallTime(copy.id, registry.lastCallTime(this.id));
         for (Map.Entry<String, MethodCounter> entry : methodCounters.entrySet()) {
-            clone.getMethodCounters().put(entry.getKey(), entry.getValue().clone());
+            copy.getMethodCounters().put(entry.getKey(), entry.getValue().copyTo(target, copy.id));
         }
-        clone.setIgnoredSet(new HashSet<>(this.ignoredSet));
-        return clone;
+        copy.setIgnoredSet(this.getIgnoredSet());
+        return copy;
     }
 }
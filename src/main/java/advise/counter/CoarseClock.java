@@ -0,0 +1,47 @@
+package advise.counter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 功能: 粗粒度时钟, 由后台线程每毫秒刷新一次
+ * <p>调用过程中读取最近调用时间只需要读一个 volatile long, 不需要系统调用</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public final class CoarseClock {
+
+    /**
+     * 刷新间隔 (ms)
+     */
+    private static final long TICK_MILLIS = 1L;
+
+    /**
+     * 当前时间 (ms)
+     */
+    private static volatile long now = System.currentTimeMillis();
+
+    /**
+     * 时钟刷新执行器, 使用守护线程防止影响应用退出
+     */
+    private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "beancounter-clock");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(), TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private CoarseClock() { }
+
+    /**
+     * @return 当前时间 (ms), 误差在一个刷新间隔以内
+     */
+    public static long currentTimeMillis(){
+        return now;
+    }
+}
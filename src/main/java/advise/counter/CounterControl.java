@@ -0,0 +1,165 @@
+package advise.counter;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 功能: 运行时计数开关, 按 类#方法 / 类 / 包前缀 切换 关闭 / 计数 / 计数 + 耗时
+ * <p>开关直接写入计数槽模式 ({@link CounterMode#OFF} 与耗时标记), 调用时仍然只读取一次模式, 关闭后不做任何写入</p>
+ * <p>设置过的规则会被保留, 之后才创建的计数器在绑定时同样按规则设置</p>
+ * <p>多条规则同时命中时, 方法规则优先, 其次是最长的类 / 包前缀规则</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterControl {
+
+    private static final Logger logger = LoggerFactory.getLogger(CounterControl.class);
+
+    /**
+     * 全局计数器
+     */
+    private final GeneralCounter generalCounter;
+
+    /**
+     * 规则: 目标 -> 状态, 按设置顺序排列
+     */
+    private final Map<String, CounterState> rules = new LinkedHashMap<>();
+
+    public CounterControl(GeneralCounter generalCounter) {
+        this.generalCounter = generalCounter;
+    }
+
+    /**
+     * 设置计数状态, 立即对已有的计数器生效
+     * @param target 类名#方法名 / 类名 / 包前缀 (可以以 .* 结尾)
+     * @param state 计数状态
+     * @return 受影响的计数槽个数
+     */
+    public synchronized int apply(String target, CounterState state){
+        String normalized = normalize(target);
+        if (StringUtils.isBlank(normalized) || state == null){
+            throw new IllegalArgumentException("Illegal counter control target[" + target + "] or state[" + state + "]");
+        }
+        rules.remove(normalized);
+        rules.put(normalized, state);
+
+        int affected = 0;
+        for (Map.Entry<String, ClassCounter> entry : generalCounter.getClassCounters().entrySet()) {
+            if (covers(normalized, entry.getKey())){
+                affected += applyRules(entry.getKey(), entry.getValue());
+            }
+        }
+        logger.warn("[beancounter-main] Counter control [" + normalized + "] -> " + state + ", " + affected + " counters affected");
+        return affected;
+    }
+
+    /**
+     * 按已有规则设置一个类计数器, 在计数器绑定时调用
+     * @param className 类名
+     * @param classCounter 类计数器
+     * @return 受影响的计数槽个数
+     */
+    public synchronized int applyRules(String className, ClassCounter classCounter){
+        if (rules.isEmpty()){
+            return 0;
+        }
+        int affected = 0;
+        CounterState classState = resolve(className, null);
+        if (classState != null){
+            // 类计数槽只计数, 没有耗时
+            classCounter.getRegistry().setOff(classCounter.getId(), classState == CounterState.OFF);
+            affected++;
+        }
+        for (Map.Entry<String, MethodCounter> entry : classCounter.getMethodCounters().entrySet()) {
+            CounterState methodState = resolve(className, entry.getKey());
+            if (methodState != null){
+                setState(entry.getValue(), methodState);
+                affected++;
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * @return 当前规则, 格式为 目标=状态, 按设置顺序排列
+     */
+    public synchronized List<String> getRules(){
+        List<String> result = new ArrayList<>(rules.size());
+        for (Map.Entry<String, CounterState> entry : rules.entrySet()) {
+            result.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return result;
+    }
+
+    private static void setState(MethodCounter methodCounter, CounterState state){
+        switch (state){
+            case OFF:
+                methodCounter.getRegistry().setOff(methodCounter.getId(), true);
+                break;
+            case COUNT:
+                methodCounter.disableTiming();
+                methodCounter.getRegistry().setOff(methodCounter.getId(), false);
+                break;
+            case TIMING:
+                methodCounter.enableTiming();
+                methodCounter.getRegistry().setOff(methodCounter.getId(), false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 查找命中的规则: 方法规则优先, 其次是最长的类 / 包前缀规则
+     * @param className 类名
+     * @param methodName 方法名, 为 null 时只查找类 / 包前缀规则
+     * @return 计数状态, 没有命中时为 null
+     */
+    private CounterState resolve(String className, String methodName){
+        if (methodName != null){
+            CounterState methodState = rules.get(className + "#" + methodName);
+            if (methodState != null){
+                return methodState;
+            }
+        }
+        String longest = null;
+        for (String target : rules.keySet()) {
+            if (target.indexOf('#') < 0 && covers(target, className) && (longest == null || target.length() > longest.length())){
+                longest = target;
+            }
+        }
+        return longest == null ? null : rules.get(longest);
+    }
+
+    /**
+     * @return 规则是否可能影响该类: 类本身 / 类的方法 / 包前缀 / 内部类
+     */
+    private static boolean covers(String target, String className){
+        int hash = target.indexOf('#');
+        String targetClass = hash < 0 ? target : target.substring(0, hash);
+        if (hash >= 0){
+            return targetClass.equals(className);
+        }
+        return className.equals(targetClass) || className.startsWith(targetClass + ".") || className.startsWith(targetClass + "$");
+    }
+
+    private static String normalize(String target){
+        if (target == null){
+            return null;
+        }
+        String normalized = target.trim();
+        if (normalized.endsWith(".*")){
+            normalized = normalized.substring(0, normalized.length() - 2);
+        }else if (normalized.endsWith(".")){
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,125 @@
+package advise.counter;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * 功能: 增量快照, 只包含自消费方上一次提交之后发生了变化的计数槽
+ * <p>数据保存在并列的原始数组中: 计数槽 id / 调用次数增量 / 最近调用时间, 下标 0 ~ size - 1 有效</p>
+ * <p>由 {@link CounterWatermark#snapshot()} 创建, 消费成功后通过 {@link CounterWatermark#commit(CounterDelta)} 提交</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterDelta {
+
+    private int[] ids;
+
+    private long[] deltas;
+
+    private long[] lastCallTimes;
+
+    /**
+     * 快照时的调用次数, 提交时写入消费方的水位
+     */
+    private long[] totals;
+
+    private int size;
+
+    CounterDelta(int capacity) {
+        this.ids = new int[capacity];
+        this.deltas = new long[capacity];
+        this.lastCallTimes = new long[capacity];
+        this.totals = new long[capacity];
+    }
+
+    void add(int id, long delta, long lastCallTime, long total){
+        if (size == ids.length){
+            int capacity = Math.max(16, size * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            deltas = Arrays.copyOf(deltas, capacity);
+            lastCallTimes = Arrays.copyOf(lastCallTimes, capacity);
+            totals = Arrays.copyOf(totals, capacity);
+        }
+        ids[size] = id;
+        deltas[size] = delta;
+        lastCallTimes[size] = lastCallTime;
+        totals[size] = total;
+        size++;
+    }
+
+    long getTotal(int index){
+        return totals[index];
+    }
+
+    /**
+     * 只保留部分计数槽, 例如只提交这一次真正消费了的计数槽, 其余的在下一次快照时仍然会被发现
+     * @param keep 需要保留的计数槽 id
+     * @return 新的增量快照, 全部保留时为自身
+     */
+    public CounterDelta retain(IntPredicate keep){
+        CounterDelta retained = new CounterDelta(size);
+        for (int i = 0; i < size; i++) {
+            if (keep.test(ids[i])){
+                retained.add(ids[i], deltas[i], lastCallTimes[i], totals[i]);
+            }
+        }
+        return retained.size == size ? this : retained;
+    }
+
+    /**
+     * @return 发生了变化的计数槽个数
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param index 下标
+     * @return 计数槽 id
+     */
+    public int getId(int index){
+        return ids[index];
+    }
+
+    /**
+     * @param index 下标
+     * @return 调用次数增量
+     */
+    public long getDelta(int index){
+        return deltas[index];
+    }
+
+    /**
+     * @param index 下标
+     * @return 最近调用时间 (ms), 从未调用过时为 0
+     */
+    public long getLastCallTime(int index){
+        return lastCallTimes[index];
+    }
+
+    /**
+     * @return 计数槽 id 数组, 长度等于 size
+     */
+    public int[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return 调用次数增量数组, 长度等于 size
+     */
+    public long[] getDeltas() {
+        return Arrays.copyOf(deltas, size);
+    }
+
+    /**
+     * @return 最近调用时间数组, 长度等于 size
+     */
+    public long[] getLastCallTimes() {
+        return Arrays.copyOf(lastCallTimes, size);
+    }
+}
@@ -0,0 +1,93 @@
+package advise.counter;
+
+/**
+ * 功能: 计数槽模式, 使用一个 int 表示, 调用时只需要读取一次
+ * <p>低 29 位: 采样率 N, 0 / 1 表示精确计数</p>
+ * <p>第 29 位: 是否关闭计数, 关闭时调用只读取一次模式, 不做任何写入</p>
+ * <p>第 30 位: 是否统计耗时</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public final class CounterMode {
+
+    /**
+     * 统计耗时标记
+     */
+    public static final int TIMING = 1 << 30;
+
+    /**
+     * 关闭计数标记
+     */
+    public static final int OFF = 1 << 29;
+
+    /**
+     * 采样率掩码
+     */
+    public static final int RATE_MASK = OFF - 1;
+
+    private CounterMode() { }
+
+    /**
+     * @param mode 模式
+     * @return 采样率 N, 小于等于 1 表示精确计数
+     */
+    public static int sampleRate(int mode){
+        return mode & RATE_MASK;
+    }
+
+    /**
+     * @param mode 模式
+     * @return 是否统计耗时
+     */
+    public static boolean isTiming(int mode){
+        return (mode & TIMING) != 0;
+    }
+
+    /**
+     * @param mode 模式
+     * @return 是否关闭计数
+     */
+    public static boolean isOff(int mode){
+        return (mode & OFF) != 0;
+    }
+
+    /**
+     * @param mode 模式
+     * @param off 是否关闭计数
+     * @return 替换关闭标记后的模式
+     */
+    public static int withOff(int mode, boolean off){
+        return off ? mode | OFF : mode & ~OFF;
+    }
+
+    /**
+     * @param mode 模式
+     * @param sampleRate 采样率
+     * @return 替换采样率后的模式
+     */
+    public static int withSampleRate(int mode, int sampleRate){
+        return (mode & ~RATE_MASK) | (sampleRate & RATE_MASK);
+    }
+
+    /**
+     * @param mode 模式
+     * @param timing 是否统计耗时
+     * @return 替换耗时标记后的模式
+     */
+    public static int withTiming(int mode, boolean timing){
+        return timing ? mode | TIMING : mode & ~TIMING;
+    }
+
+    /**
+     * @param mode 模式
+     * @return 可读的模式描述, 例如 TIMING,COUNT / COUNT / SAMPLED(1/100) / OFF
+     */
+    public static String describe(int mode){
+        if (isOff(mode)){
+            return "OFF";
+        }
+        String counting = sampleRate(mode) <= 1 ? "COUNT" : "SAMPLED(1/" + sampleRate(mode) + ")";
+        return isTiming(mode) ? "TIMING," + counting : counting;
+    }
+}
@@ -0,0 +1,619 @@
+package advise.counter;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 功能: 计数器注册表, 为每一个被统计的方法分配一个连续的 int id
+ * <p>调用次数保存在按 id 分段的原始 long 数组中, 不再为每个方法创建 LongAdder / Long 对象</p>
+ * <p>计数槽默认只写入紧凑的基础数组; 某个计数槽发生 CAS 竞争后, 只有它所在的计数块 (8 个计数槽, 即基础数组中的一个缓存行) 按线程散列到多条计数带上,
+ * 计数带个数从 2 开始, 再次冲突时翻倍并重新散列当前线程 (与 LongAdder 思路一致)</p>
+ * <p>基础数组没有填充, 相邻计数槽共享缓存行; 每条计数带只保存一个计数块, 前后各填充一个缓存行, 所以不同线程的计数带之间不会伪共享, 同一条计数带内的计数槽只被散列到这里的线程写入</p>
+ * <p>计数槽可以设置采样率 N, 此时只有 1/N 的调用会被记录, 每次记录增加 N, 并累计方差用于给出误差范围</p>
+ * <p>每个计数槽的采样率 / 耗时开关 / 关闭标记合并为一个 {@link CounterMode}, 调用时只需要读取一次</p>
+ * <p>通过 {@link #add} 写入的次数 (数据库校对 / 复制) 单独累计, 调用频率统计会将其扣除</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterRegistry {
+
+    /**
+     * 每个分段包含的 id 个数 (1024)
+     */
+    private static final int SEGMENT_SHIFT = 10;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * 每个计数块包含的计数槽个数 (8 个 long = 64 字节, 一个缓存行)
+     */
+    private static final int BLOCK_SHIFT = 3;
+
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    /**
+     * 计数带前后的填充长度 (8 个 long = 64 字节, 一个缓存行)
+     */
+    private static final int PAD = 8;
+
+    /**
+     * 最大计数带个数, 不小于 CPU 个数的 2 的幂
+     */
+    private static final int MAX_STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 分段数组, 注册时整体替换
+     */
+    private volatile Segment[] segments = new Segment[0];
+
+    /**
+     * 已分配的 id 个数
+     */
+    private volatile int size;
+
+    /**
+     * 注册一个新的类计数槽, 所属的类计数槽为自身
+     * @return 计数槽 id
+     */
+    public synchronized int register(){
+        return register(size);
+    }
+
+    /**
+     * 注册一个新的计数槽
+     * @param owner 所属的类计数槽 id
+     * @return 计数槽 id
+     */
+    public synchronized int register(int owner){
+        int id = size;
+        int segmentIndex = id >>> SEGMENT_SHIFT;
+        if (segmentIndex >= segments.length){
+            Segment[] grown = Arrays.copyOf(segments, segmentIndex + 1);
+            grown[segmentIndex] = new Segment();
+            segments = grown;
+        }
+        segments[segmentIndex].owners[id & SEGMENT_MASK] = owner;
+        size = id + 1;
+        return id;
+    }
+
+    /**
+     * 调用次数 + 1, 并更新最近调用时间
+     * @param id 计数槽 id
+     */
+    public void update(int id){
+        update(id, mode(id));
+    }
+
+    /**
+     * 调用次数 + 1, 并更新最近调用时间
+     * <p>最近调用时间来自 {@link CoarseClock}, 只有时间前进时才会写入, 同一毫秒内的调用只读不写</p>
+     * <p>设置了采样率 N 的计数槽只按 1/N 的概率记录, 每次记录增加 N</p>
+     * @param id 计数槽 id
+     * @param mode 调用方已经读取的计数槽模式
+     */
+    public void update(int id, int mode){
+        Segment segment = segments[id >>> SEGMENT_SHIFT];
+        int index = id & SEGMENT_MASK;
+
+        int sampleRate = CounterMode.sampleRate(mode);
+        if (sampleRate <= 1){
+            segment.add(index, 1L);
+        }else if (ThreadLocalRandom.current().nextInt(sampleRate) == 0){
+            segment.add(index, sampleRate);
+            segment.variances().getAndAdd(index, (long) sampleRate * (sampleRate - 1));
+        }else {
+            return;
+        }
+
+        long now = CoarseClock.currentTimeMillis();
+        long lastCallTime = segment.lastCallTimes.get(index);
+        // CAS 失败说明其他线程已经推进了时间, 不需要重试
+        if (now > lastCallTime){
+            segment.lastCallTimes.compareAndSet(index, lastCallTime, now);
+        }
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 所属的类计数槽 id, 类计数槽返回自身
+     */
+    public int owner(int id){
+        return segments[id >>> SEGMENT_SHIFT].owners[id & SEGMENT_MASK];
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 计数槽模式, 见 {@link CounterMode}
+     */
+    public int mode(int id){
+        return segments[id >>> SEGMENT_SHIFT].modes.get(id & SEGMENT_MASK);
+    }
+
+    /**
+     * 设置计数槽模式
+     * @param id 计数槽 id
+     * @param mode 计数槽模式, 见 {@link CounterMode}
+     */
+    public void setMode(int id, int mode){
+        segments[id >>> SEGMENT_SHIFT].modes.set(id & SEGMENT_MASK, mode);
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 采样率 N (1/N 的调用会被记录), 小于等于 1 表示精确计数
+     */
+    public int sampleRate(int id){
+        return CounterMode.sampleRate(mode(id));
+    }
+
+    /**
+     * 设置采样率, 不影响耗时开关
+     * @param id 计数槽 id
+     * @param sampleRate 采样率 N, 小于等于 1 表示精确计数
+     */
+    public void setSampleRate(int id, int sampleRate){
+        AtomicIntegerArray modes = segments[id >>> SEGMENT_SHIFT].modes;
+        int index = id & SEGMENT_MASK;
+        int mode;
+        do {
+            mode = modes.get(index);
+        }while (!modes.compareAndSet(index, mode, CounterMode.withSampleRate(mode, sampleRate)));
+    }
+
+    /**
+     * 设置耗时开关, 不影响采样率
+     * @param id 计数槽 id
+     * @param timing 是否统计耗时
+     */
+    public void setTiming(int id, boolean timing){
+        AtomicIntegerArray modes = segments[id >>> SEGMENT_SHIFT].modes;
+        int index = id & SEGMENT_MASK;
+        int mode;
+        do {
+            mode = modes.get(index);
+        }while (!modes.compareAndSet(index, mode, CounterMode.withTiming(mode, timing)));
+    }
+
+    /**
+     * 设置关闭标记, 不影响采样率与耗时开关
+     * @param id 计数槽 id
+     * @param off 是否关闭计数
+     */
+    public void setOff(int id, boolean off){
+        AtomicIntegerArray modes = segments[id >>> SEGMENT_SHIFT].modes;
+        int index = id & SEGMENT_MASK;
+        int mode;
+        do {
+            mode = modes.get(index);
+        }while (!modes.compareAndSet(index, mode, CounterMode.withOff(mode, off)));
+    }
+
+    /**
+     * 采样带来的调用次数方差, 精确计数的部分方差为 0
+     * <p>每次以采样率 N 记录的调用贡献 N * (N - 1) 的方差</p>
+     * @param id 计数槽 id
+     * @return 方差
+     */
+    public long variance(int id){
+        AtomicLongArray variances = segments[id >>> SEGMENT_SHIFT].variances;
+        return variances == null ? 0L : variances.get(id & SEGMENT_MASK);
+    }
+
+    /**
+     * 增加调用次数, 不是由调用产生的次数 (例如从数据库中读取的次数)
+     * @param id 计数槽 id
+     * @param delta 增加的次数
+     */
+    public void add(int id, long delta){
+        Segment segment = segments[id >>> SEGMENT_SHIFT];
+        segment.add(id & SEGMENT_MASK, delta);
+        segment.adjustments().getAndAdd(id & SEGMENT_MASK, delta);
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 通过 {@link #add} 增加的次数
+     */
+    public long adjustment(int id){
+        AtomicLongArray adjustments = segments[id >>> SEGMENT_SHIFT].adjustments;
+        return adjustments == null ? 0L : adjustments.get(id & SEGMENT_MASK);
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 由调用产生的次数, 即调用次数减去通过 {@link #add} 增加的次数
+     */
+    public long calls(int id){
+        return sum(id) - adjustment(id);
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 调用次数
+     */
+    public long sum(int id){
+        return segments[id >>> SEGMENT_SHIFT].sum(id & SEGMENT_MASK);
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 最近调用时间 (ms), 从未调用过时为 0
+     */
+    public long lastCallTime(int id){
+        return segments[id >>> SEGMENT_SHIFT].lastCallTimes.get(id & SEGMENT_MASK);
+    }
+
+    /**
+     * 设置最近调用时间
+     * @param id 计数槽 id
+     * @param lastCallTime 最近调用时间 (ms)
+     */
+    public void setLastCallTime(int id, long lastCallTime){
+        segments[id >>> SEGMENT_SHIFT].lastCallTimes.set(id & SEGMENT_MASK, lastCallTime);
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 耗时直方图, 没有开启过耗时统计时为 null
+     */
+    public LatencyHistogram histogram(int id){
+        AtomicReferenceArray<LatencyHistogram> histograms = segments[id >>> SEGMENT_SHIFT].histograms;
+        return histograms == null ? null : histograms.get(id & SEGMENT_MASK);
+    }
+
+    /**
+     * 获取或创建耗时直方图
+     * @param id 计数槽 id
+     * @return 耗时直方图
+     */
+    public LatencyHistogram histogramIfAbsent(int id){
+        AtomicReferenceArray<LatencyHistogram> histograms = segments[id >>> SEGMENT_SHIFT].histograms();
+        int index = id & SEGMENT_MASK;
+        LatencyHistogram histogram = histograms.get(index);
+        if (histogram == null){
+            histograms.compareAndSet(index, null, new LatencyHistogram());
+            histogram = histograms.get(index);
+        }
+        return histogram;
+    }
+
+    /**
+     * @param id 计数槽 id
+     * @return 从数据库中读取的耗时摘要, 没有时为 null
+     */
+    public LatencySummary persistedLatency(int id){
+        AtomicReferenceArray<LatencySummary> persistedLatencies = segments[id >>> SEGMENT_SHIFT].persistedLatencies;
+        return persistedLatencies == null ? null : persistedLatencies.get(id & SEGMENT_MASK);
+    }
+
+    /**
+     * 设置从数据库中读取的耗时摘要
+     * @param id 计数槽 id
+     * @param persistedLatency 耗时摘要
+     */
+    public void setPersistedLatency(int id, LatencySummary persistedLatency){
+        Segment segment = segments[id >>> SEGMENT_SHIFT];
+        if (persistedLatency == null && segment.persistedLatencies == null){
+            return;
+        }
+        segment.persistedLatencies().set(id & SEGMENT_MASK, persistedLatency);
+    }
+
+    /**
+     * @return 估算的占用字节数, 包括耗时直方图
+     */
+    public long footprint(){
+        Segment[] current = segments;
+        long footprint = FootprintReport.array(current.length, FootprintReport.REFERENCE);
+        for (Segment segment : current) {
+            footprint += segment.footprint();
+        }
+        return footprint;
+    }
+
+    /**
+     * @return 耗时直方图个数
+     */
+    public int histogramCount(){
+        int count = 0;
+        for (Segment segment : segments) {
+            AtomicReferenceArray<LatencyHistogram> histograms = segment.histograms;
+            for (int i = 0; histograms != null && i < SEGMENT_SIZE; i++) {
+                if (histograms.get(i) != null){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 将方差转换为调用次数误差
+     * @param variance 方差
+     * @return 95% 置信区间半宽 (1.96 倍标准差), 方差为 0 时为 null
+     */
+    public static Long errorOf(long variance){
+        return variance <= 0L ? null : (long) Math.ceil(1.96 * Math.sqrt(variance));
+    }
+
+    /**
+     * @return 已分配的 id 个数
+     */
+    public int size(){
+        return size;
+    }
+
+    private static int stripeCount(int processors){
+        int stripes = 1;
+        while (stripes < processors){
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * 线程的散列值, 在计数带上冲突时重新散列; 只有发生过竞争的计数块会读取
+     */
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> {
+        int probe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+        return new int[]{probe == 0 ? 1 : probe};
+    });
+
+    /**
+     * xorshift 重新散列
+     */
+    private static int rehash(int probe){
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    /**
+     * 分段: 固定 SEGMENT_SIZE 个计数槽
+     */
+    private static final class Segment {
+
+        /**
+         * 基础计数数组, 没有竞争的计数块只写入这里
+         */
+        private final AtomicLongArray base = new AtomicLongArray(SEGMENT_SIZE);
+
+        /**
+         * 发生过竞争的计数块, 第一次竞争时创建
+         */
+        private volatile AtomicReferenceArray<ContendedBlock> blocks;
+
+        /**
+         * 最近调用时间
+         */
+        private final AtomicLongArray lastCallTimes = new AtomicLongArray(SEGMENT_SIZE);
+
+        /**
+         * 所属的类计数槽 id, 注册时写入, 通过 size 的 volatile 写发布
+         */
+        private final int[] owners = new int[SEGMENT_SIZE];
+
+        /**
+         * 计数槽模式, 0 表示精确计数且不统计耗时
+         */
+        private final AtomicIntegerArray modes = new AtomicIntegerArray(SEGMENT_SIZE);
+
+        /**
+         * 采样方差, 只有发生过采样时才创建
+         */
+        private volatile AtomicLongArray variances;
+
+        /**
+         * 通过 add 增加的次数, 只有发生过时才创建
+         */
+        private volatile AtomicLongArray adjustments;
+
+        /**
+         * 耗时直方图, 只有开启过耗时统计时才创建
+         */
+        private volatile AtomicReferenceArray<LatencyHistogram> histograms;
+
+        /**
+         * 从数据库中读取的耗时摘要, 只有读取过时才创建
+         */
+        private volatile AtomicReferenceArray<LatencySummary> persistedLatencies;
+
+        private void add(int index, long delta){
+            AtomicReferenceArray<ContendedBlock> currentBlocks = blocks;
+            ContendedBlock block = currentBlocks == null ? null : currentBlocks.get(index >>> BLOCK_SHIFT);
+            if (block == null){
+                long current = base.get(index);
+                if (base.compareAndSet(index, current, current + delta)){
+                    return;
+                }
+                block = contendedBlock(index >>> BLOCK_SHIFT);
+            }
+            block.add(index & BLOCK_MASK, delta);
+        }
+
+        private long sum(int index){
+            long sum = base.get(index);
+            AtomicReferenceArray<ContendedBlock> currentBlocks = blocks;
+            ContendedBlock block = currentBlocks == null ? null : currentBlocks.get(index >>> BLOCK_SHIFT);
+            return block == null ? sum : sum + block.sum(index & BLOCK_MASK);
+        }
+
+        private ContendedBlock contendedBlock(int blockIndex){
+            AtomicReferenceArray<ContendedBlock> currentBlocks = blocks;
+            if (currentBlocks == null){
+                synchronized (this){
+                    if (blocks == null){
+                        blocks = new AtomicReferenceArray<>(SEGMENT_SIZE >>> BLOCK_SHIFT);
+                    }
+                    currentBlocks = blocks;
+                }
+            }
+            ContendedBlock block = currentBlocks.get(blockIndex);
+            if (block == null){
+                currentBlocks.compareAndSet(blockIndex, null, new ContendedBlock());
+                block = currentBlocks.get(blockIndex);
+            }
+            return block;
+        }
+
+        private AtomicLongArray variances(){
+            AtomicLongArray current = variances;
+            if (current == null){
+                synchronized (this){
+                    if (variances == null){
+                        variances = new AtomicLongArray(SEGMENT_SIZE);
+                    }
+                    current = variances;
+                }
+            }
+            return current;
+        }
+
+        private AtomicLongArray adjustments(){
+            AtomicLongArray current = adjustments;
+            if (current == null){
+                synchronized (this){
+                    if (adjustments == null){
+                        adjustments = new AtomicLongArray(SEGMENT_SIZE);
+                    }
+                    current = adjustments;
+                }
+            }
+            return current;
+        }
+
+        private synchronized AtomicReferenceArray<LatencyHistogram> histograms(){
+            if (histograms == null){
+                histograms = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            }
+            return histograms;
+        }
+
+        private synchronized AtomicReferenceArray<LatencySummary> persistedLatencies(){
+            if (persistedLatencies == null){
+                persistedLatencies = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            }
+            return persistedLatencies;
+        }
+
+        private long footprint(){
+            long footprint = FootprintReport.object(9 * FootprintReport.REFERENCE)
+                    + 2 * FootprintReport.atomicArray(SEGMENT_SIZE, FootprintReport.LONG)
+                    + FootprintReport.array(SEGMENT_SIZE, FootprintReport.INT)
+                    + FootprintReport.atomicArray(SEGMENT_SIZE, FootprintReport.INT);
+            AtomicReferenceArray<ContendedBlock> currentBlocks = blocks;
+            if (currentBlocks != null){
+                footprint += FootprintReport.atomicArray(currentBlocks.length(), FootprintReport.REFERENCE);
+                for (int i = 0; i < currentBlocks.length(); i++) {
+                    ContendedBlock block = currentBlocks.get(i);
+                    if (block != null){
+                        footprint += block.footprint();
+                    }
+                }
+            }
+            if (variances != null){
+                footprint += FootprintReport.atomicArray(SEGMENT_SIZE, FootprintReport.LONG);
+            }
+            if (adjustments != null){
+                footprint += FootprintReport.atomicArray(SEGMENT_SIZE, FootprintReport.LONG);
+            }
+            AtomicReferenceArray<LatencyHistogram> currentHistograms = histograms;
+            if (currentHistograms != null){
+                footprint += FootprintReport.atomicArray(SEGMENT_SIZE, FootprintReport.REFERENCE);
+                for (int i = 0; i < SEGMENT_SIZE; i++) {
+                    if (currentHistograms.get(i) != null){
+                        footprint += LatencyHistogram.footprint();
+                    }
+                }
+            }
+            AtomicReferenceArray<LatencySummary> currentPersistedLatencies = persistedLatencies;
+            if (currentPersistedLatencies != null){
+                footprint += FootprintReport.atomicArray(SEGMENT_SIZE, FootprintReport.REFERENCE);
+                for (int i = 0; i < SEGMENT_SIZE; i++) {
+                    if (currentPersistedLatencies.get(i) != null){
+                        footprint += FootprintReport.object(3 * FootprintReport.REFERENCE) + 3 * FootprintReport.object(FootprintReport.LONG);
+                    }
+                }
+            }
+            return footprint;
+        }
+    }
+
+    /**
+     * 发生过竞争的计数块: 按线程散列到多条计数带上, 每条计数带只保存这一个计数块
+     */
+    private static final class ContendedBlock {
+
+        /**
+         * 计数带, 按需创建
+         */
+        private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(MAX_STRIPES);
+
+        /**
+         * 正在使用的计数带个数 (2 的幂), 冲突时翻倍, 不超过 MAX_STRIPES
+         */
+        private volatile int active = Math.min(2, MAX_STRIPES);
+
+        private void add(int offset, long delta){
+            int[] probe = PROBE.get();
+            while (true){
+                int current = active;
+                AtomicLongArray stripe = stripe(probe[0] & (current - 1));
+                long count = stripe.get(PAD + offset);
+                if (stripe.compareAndSet(PAD + offset, count, count + delta)){
+                    return;
+                }
+                // 冲突: 增加计数带并重新散列当前线程
+                grow(current);
+                probe[0] = rehash(probe[0]);
+            }
+        }
+
+        private long sum(int offset){
+            long sum = 0L;
+            for (int i = 0; i < MAX_STRIPES; i++) {
+                AtomicLongArray stripe = stripes.get(i);
+                if (stripe != null){
+                    sum += stripe.get(PAD + offset);
+                }
+            }
+            return sum;
+        }
+
+        private synchronized void grow(int current){
+            if (active == current && current < MAX_STRIPES){
+                active = current << 1;
+            }
+        }
+
+        private AtomicLongArray stripe(int stripeIndex){
+            AtomicLongArray stripe = stripes.get(stripeIndex);
+            if (stripe == null){
+                stripes.compareAndSet(stripeIndex, null, new AtomicLongArray(PAD + BLOCK_SIZE + PAD));
+                stripe = stripes.get(stripeIndex);
+            }
+            return stripe;
+        }
+
+        private long footprint(){
+            long footprint = FootprintReport.object(FootprintReport.REFERENCE + FootprintReport.INT)
+                    + FootprintReport.atomicArray(MAX_STRIPES, FootprintReport.REFERENCE);
+            for (int i = 0; i < MAX_STRIPES; i++) {
+                if (stripes.get(i) != null){
+                    footprint += FootprintReport.atomicArray(PAD + BLOCK_SIZE + PAD, FootprintReport.LONG);
+                }
+            }
+            return footprint;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package advise.counter;
+
+import java.util.Arrays;
+
+/**
+ * 功能: 运行时开关设置的计数状态
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public enum CounterState {
+
+    /**
+     * 关闭计数
+     */
+    OFF(1, "OFF"),
+
+    /**
+     * 只计数, 不统计耗时
+     */
+    COUNT(2, "COUNT"),
+
+    /**
+     * 计数并统计耗时
+     */
+    TIMING(3, "TIMING");
+
+    private final Integer id;
+    private final String state;
+
+    CounterState(Integer id, String state) {
+        this.id = id;
+        this.state = state;
+    }
+
+    /**
+     * 根据状态名称获取对应的枚举值
+     * @param state 状态名称
+     * @return 枚举值
+     */
+    public static CounterState get(String state){
+        return Arrays.stream(values())
+                .filter(value -> value.state.equalsIgnoreCase(state)).findFirst()
+                .orElse(null);
+    }
+}
@@ -0,0 +1,64 @@
+package advise.counter;
+
+import java.util.Arrays;
+
+/**
+ * 功能: 消费水位 (游标), 每个持久化方式 / 导出方各自持有一个
+ * <p>记录上一次成功消费时每个计数槽的调用次数, 快照时与当前调用次数比较即可得到发生了变化的计数槽及其增量</p>
+ * <p>调用过程中不需要写入任何标记, 快照只读取计数槽, 不会阻塞调用方; 脏数据的判断完全由消费线程完成</p>
+ * <p>快照只为发生了变化的计数槽分配空间, 分配与活跃的计数槽个数成正比; 但每次快照都要读取全部计数槽, 读取成本与计数槽个数成正比
+ * (每个计数槽读取基础数组, 发生过竞争的计数块再读取各条计数带)</p>
+ * <p>同一个水位只能由一个线程使用</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterWatermark {
+
+    /**
+     * 计数器注册表
+     */
+    private final CounterRegistry registry;
+
+    /**
+     * 上一次成功消费时的调用次数, 下标为计数槽 id
+     */
+    private long[] committed = new long[0];
+
+    public CounterWatermark(CounterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 创建增量快照: 读取所有计数槽, 只保留和上一次提交相比发生了变化的部分
+     * @return 增量快照, 没有提交之前重复快照会得到累积的增量
+     */
+    public CounterDelta snapshot(){
+        int size = registry.size();
+        if (committed.length < size){
+            committed = Arrays.copyOf(committed, size);
+        }
+        CounterDelta delta = new CounterDelta(16);
+        for (int id = 0; id < size; id++) {
+            long total = registry.sum(id);
+            if (total != committed[id]){
+                delta.add(id, total - committed[id], registry.lastCallTime(id), total);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * 消费成功后提交快照, 快照之后发生的调用会在下一次快照时被发现
+     * @param delta 增量快照
+     */
+    public void commit(CounterDelta delta){
+        for (int i = 0; i < delta.size(); i++) {
+            committed[delta.getId(i)] = delta.getTotal(i);
+        }
+    }
+
+    public CounterRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -0,0 +1,258 @@
+package advise.counter;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 功能: 计数器内存占用估算, 输出每个被统计方法占用的字节数
+ * <p>按 64 位 HotSpot 开启压缩指针的布局估算: 对象头 12 字节, 数组头 16 字节, 引用 4 字节, 按 8 字节对齐</p>
+ * <p>方法名字符串只被类计数器引用, 按对象身份去重后计入 (不同类的同名方法 intern 后共用一个字符串), 按 JDK 9+ 的紧凑字符串估算;
+ * 类名是 Class 对象缓存的名称, 类卸载前始终存在, 不计入</p>
+ * <p>耗时直方图与调用关系统计单独列出, 不计入每方法字节数</p>
+ * <p>运行中的占用通过 BeanCounterService#getFootprint 查询, 合成数据的估算见 src/benchmark/java 中的 FootprintBenchmark</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class FootprintReport {
+
+    static final int HEADER = 12;
+
+    static final int ARRAY_HEADER = 16;
+
+    static final int ALIGNMENT = 8;
+
+    static final int REFERENCE = 4;
+
+    static final int INT = 4;
+
+    static final int LONG = 8;
+
+    /**
+     * 类计数器个数
+     */
+    private final int classes;
+
+    /**
+     * 方法计数器个数
+     */
+    private final int methods;
+
+    /**
+     * 计数器注册表 (不包括耗时直方图)
+     */
+    private final long registryBytes;
+
+    /**
+     * 类计数器 + 方法计数器映射
+     */
+    private final long classBytes;
+
+    /**
+     * 方法名字符串, 按对象身份去重
+     */
+    private final long nameBytes;
+
+    /**
+     * 去重后的方法名字符串个数
+     */
+    private final int names;
+
+    /**
+     * 调用频率环形桶 + 前 N 名统计
+     */
+    private final long rateBytes;
+
+    /**
+     * 创建了环形桶的计数槽个数
+     */
+    private final int activeRates;
+
+    /**
+     * 耗时直方图
+     */
+    private final long timingBytes;
+
+    /**
+     * 耗时直方图个数
+     */
+    private final int histograms;
+
+    /**
+     * 调用关系统计, 容量固定
+     */
+    private final long callGraphBytes;
+
+    private FootprintReport(int classes, int methods, long registryBytes, long classBytes, long nameBytes, int names,
+                            long rateBytes, int activeRates, long timingBytes, int histograms, long callGraphBytes) {
+        this.classes = classes;
+        this.methods = methods;
+        this.registryBytes = registryBytes;
+        this.classBytes = classBytes;
+        this.nameBytes = nameBytes;
+        this.names = names;
+        this.rateBytes = rateBytes;
+        this.activeRates = activeRates;
+        this.timingBytes = timingBytes;
+        this.histograms = histograms;
+        this.callGraphBytes = callGraphBytes;
+    }
+
+    /**
+     * 估算计数器的内存占用
+     * @param generalCounter 计数器
+     * @return 内存占用报告
+     */
+    public static FootprintReport of(GeneralCounter generalCounter){
+        CounterRegistry registry = generalCounter.getRegistry();
+        Map<String, ClassCounter> classCounters = generalCounter.getClassCounters();
+        int methods = 0;
+        long classBytes = hashMap(classCounters.size(), 0L);
+        Set<String> names = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ClassCounter classCounter : classCounters.values()) {
+            methods += classCounter.getMethodCounters().size();
+            classBytes += classCounter.footprint();
+            classCounter.collectNames(names);
+        }
+        long nameBytes = 0L;
+        for (String name : names) {
+            nameBytes += string(name);
+        }
+
+        int histograms = registry.histogramCount();
+        long timingBytes = histograms * LatencyHistogram.footprint();
+
+        RateTracker rateTracker = RateTracker.getInstance();
+        boolean tracked = rateTracker != null && rateTracker.getRegistry() == registry;
+        CallGraph callGraph = CallGraph.getInstance();
+        return new FootprintReport(classCounters.size(), methods, registry.footprint() - timingBytes, classBytes, nameBytes, names.size(),
+                tracked ? rateTracker.footprint() : 0L, tracked ? rateTracker.getActive() : 0,
+                timingBytes, histograms, callGraph == null ? 0L : callGraph.footprint());
+    }
+
+    /**
+     * @return 每个方法计数器占用的字节数 (注册表 + 类计数器 + 方法名 + 调用频率), 类计数器与共用方法名的开销均摊到方法上
+     */
+    public double getBytesPerMethod(){
+        return methods == 0 ? 0D : (registryBytes + classBytes + nameBytes + rateBytes) / (double) methods;
+    }
+
+    public long getTotalBytes(){
+        return registryBytes + classBytes + nameBytes + rateBytes + timingBytes + callGraphBytes;
+    }
+
+    public int getClasses() {
+        return classes;
+    }
+
+    public int getMethods() {
+        return methods;
+    }
+
+    public long getRegistryBytes() {
+        return registryBytes;
+    }
+
+    public long getClassBytes() {
+        return classBytes;
+    }
+
+    public long getNameBytes() {
+        return nameBytes;
+    }
+
+    public int getNames() {
+        return names;
+    }
+
+    public long getRateBytes() {
+        return rateBytes;
+    }
+
+    public int getActiveRates() {
+        return activeRates;
+    }
+
+    public long getTimingBytes() {
+        return timingBytes;
+    }
+
+    public int getHistograms() {
+        return histograms;
+    }
+
+    public long getCallGraphBytes() {
+        return callGraphBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("classes: %d, methods: %d%n", classes, methods)
+                + String.format("%-12s %14d%n", "registry", registryBytes)
+                + String.format("%-12s %14d%n", "classes", classBytes)
+                + String.format("%-12s %14d  (distinct: %d)%n", "names", nameBytes, names)
+                + String.format("%-12s %14d  (active: %d)%n", "rate", rateBytes, activeRates)
+                + String.format("%-12s %14d  (histograms: %d)%n", "timing", timingBytes, histograms)
+                + String.format("%-12s %14d%n", "call-graph", callGraphBytes)
+                + String.format("%-12s %14d%n", "total", getTotalBytes())
+                + String.format("%-12s %14.2f", "bytes/method", getBytesPerMethod());
+    }
+
+    /**
+     * @param fieldBytes 字段占用的字节数
+     * @return 对象占用的字节数
+     */
+    static long object(int fieldBytes){
+        return align(HEADER + fieldBytes);
+    }
+
+    /**
+     * @param length 数组长度
+     * @param elementBytes 元素占用的字节数
+     * @return 数组占用的字节数
+     */
+    static long array(int length, int elementBytes){
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    /**
+     * @return 字符串占用的字节数 (String 对象 + byte[]), Latin-1 字符串每个字符 1 字节, 否则 2 字节
+     */
+    static long string(String value){
+        boolean latin1 = true;
+        for (int i = 0; i < value.length() && latin1; i++) {
+            latin1 = value.charAt(i) <= 0xFF;
+        }
+        return object(REFERENCE + INT + 2) + array(value.length(), latin1 ? 1 : 2);
+    }
+
+    /**
+     * @return AtomicXxxArray 占用的字节数 (包装对象 + 数组)
+     */
+    static long atomicArray(int length, int elementBytes){
+        return object(REFERENCE) + array(length, elementBytes);
+    }
+
+    /**
+     * @param size 条目个数
+     * @param entryBytes 每个条目额外占用的字节数 (键值对象)
+     * @return HashMap / ConcurrentHashMap 占用的字节数
+     */
+    static long hashMap(int size, long entryBytes){
+        int tableSize = size == 0 ? 0 : Math.max(16, Integer.highestOneBit((int) (size / 0.75F)) << 1);
+        return object(4 * REFERENCE + 4 * INT) + array(tableSize, REFERENCE) + size * (object(INT + 3 * REFERENCE) + entryBytes);
+    }
+
+    /**
+     * @return HashSet 占用的字节数, 不包括元素
+     */
+    static long hashSet(int size){
+        return object(REFERENCE) + hashMap(size, 0L);
+    }
+
+    private static long align(long bytes){
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -5,7 +5,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -21,26 +22,64 @@ public class GeneralCounter implements Serializable {
     @JSONField(serialize = false)
     private static final Logger logger = LoggerFactory.getLogger(GeneralCounter.class);
 
+    /**
+     * 全局计数器, 代理与 Java Agent 共用
+     */
+    @JSONField(serialize = false)
+    private static final GeneralCounter instance = new GeneralCounter();
+
+    /**
+     * 计数器注册表, 所有类与方法的计数数据都保存在这里
+     */
+    @JSONField(serialize = false)
+    private final transient CounterRegistry registry = new CounterRegistry();
+
+    /**
+     * 名称不完整时 (计数槽已经注册但还没有放入类计数器, 或者被替换掉的计数槽) 重新汇总的最小间隔 (ms)
+     */
+    private static final long INCOMPLETE_NAMES_TTL = 1000L;
+
+    /**
+     * 计数槽名称缓存
+     */
+    @JSONField(serialize = false)
+    private transient volatile CounterNames counterNames;
+
     /**
      * 下属的类计数器
      */
     private ConcurrentHashMap<String, ClassCounter> classCounters = new ConcurrentHashMap<>();
 
+    public static GeneralCounter getInstance() {
+        return instance;
+    }
+
+    /**
+     * 按类名添加新的类, 不扫描方法, 用于类加载之前就需要分配计数槽的场景 (Java Agent)
+     * @param className 类名
+     * @return 类计数器
+     */
+    public ClassCounter putIfAbsent(String className){
+        return this.classCounters.computeIfAbsent(className, name -> new ClassCounter(registry));
+    }
+
     /**
-     * 添加新的类
+     * 添加新的类, 如果已经存在则直接返回已有的类计数器
      * @param klass class
+     * @return 类计数器
      */
-    public void put(Class<?> klass){
-        this.classCounters.put(klass.getName(), new ClassCounter(klass));
+    public ClassCounter putIfAbsent(Class<?> klass){
+        return this.classCounters.computeIfAbsent(klass.getName(), name -> new ClassCounter(registry, klass));
     }
 
     /**
-     * 更新 class 和 method 数据 (调用次数 + 1)
-     * @param klass 调用类
-     * @param method 调用方法
+     * 添加新的类, 使用已有的方法表, 不再反射
+     * @param klass class
+     * @param methodTable 类的方法表
+     * @return 类计数器
      */
-    public void update(Class<?> klass, Method method){
-        this.classCounters.get(klass.getName()).update(method);
+    public ClassCounter putIfAbsent(Class<?> klass, MethodTable methodTable){
+        return this.classCounters.computeIfAbsent(klass.getName(), name -> new ClassCounter(registry, klass, methodTable));
     }
 
     /**
@@ -52,6 +91,56 @@ public class GeneralCounter implements Serializable {
         return this.classCounters.containsKey(klass.getName());
     }
 
+    /**
+     * 获取增量快照中发生了变化的类计数器, 按计数槽所属的类查找, 不遍历所有类
+     * @param delta 增量快照
+     * @return 类名 -> 发生了变化的类计数器
+     */
+    public Map<String, ClassCounter> getChangedClassCounters(CounterDelta delta){
+        Map<String, ClassCounter> changed = new HashMap<>();
+        if (delta.isEmpty()){
+            return changed;
+        }
+        Map<Integer, String> names = getCounterNames();
+        for (int i = 0; i < delta.size(); i++) {
+            String className = names.get(registry.owner(delta.getId(i)));
+            ClassCounter classCounter = className == null ? null : classCounters.get(className);
+            if (classCounter != null){
+                changed.put(className, classCounter);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 计数槽 id -> 名称, 类计数槽为类名, 方法计数槽为 类名#方法名
+     * <p>注册表没有新增计数槽时复用上一次的结果, 供频繁轮询的查询使用; 名称少于计数槽个数时最多每秒重新汇总一次</p>
+     * @return 计数槽名称, 只读
+     */
+    public Map<Integer, String> getCounterNames(){
+        CounterNames current = counterNames;
+        int registered = registry.size();
+        long now = CoarseClock.currentTimeMillis();
+        if (current != null && current.registered == registered && (current.complete || now - current.createTime < INCOMPLETE_NAMES_TTL)){
+            return current.names;
+        }
+        Map<Integer, String> names = new HashMap<>();
+        for (Map.Entry<String, ClassCounter> entry : classCounters.entrySet()) {
+            names.put(entry.getValue().getId(), entry.getKey());
+            for (Map.Entry<String, MethodCounter> method : entry.getValue().getMethodCounters().entrySet()) {
+                names.put(method.getValue().getId(), entry.getKey() + "#" + method.getKey());
+            }
+        }
+        names = Collections.unmodifiableMap(names);
+        // 计数槽已经注册但还没有放入类计数器, 或者计数槽被替换 (不再属于任何类) 时名称不完整, 同样缓存, 过期后重新汇总
+        counterNames = new CounterNames(names, registered, names.size() >= registered, now);
+        return names;
+    }
+
+    public CounterRegistry getRegistry() {
+        return registry;
+    }
+
     public ConcurrentHashMap<String, ClassCounter> getClassCounters() {
         return classCounters;
     }
@@ -63,10 +152,33 @@ public class GeneralCounter implements Serializable {
     @Override
     protected Object clone() throws CloneNotSupportedException {
         GeneralCounter clone = new GeneralCounter();
-        clone.setClassCounters(new ConcurrentHashMap<>());
         for (Map.Entry<String, ClassCounter> entry : classCounters.entrySet()) {
-            clone.getClassCounters().put(entry.getKey(), entry.getValue().clone());
+            clone.getClassCounters().put(entry.getKey(), entry.getValue().copyTo(clone.getRegistry()));
         }
         return clone;
     }
+
+    /**
+     * 计数槽名称缓存, 以及缓存时注册表中的计数槽个数
+     */
+    private static final class CounterNames {
+
+        private final Map<Integer, String> names;
+
+        private final int registered;
+
+        /**
+         * 是否每个计数槽都有名称
+         */
+        private final boolean complete;
+
+        private final long createTime;
+
+        private CounterNames(Map<Integer, String> names, int registered, boolean complete, long createTime) {
+            this.names = names;
+            this.registered = registered;
+            this.complete = complete;
+            this.createTime = createTime;
+        }
+    }
 }
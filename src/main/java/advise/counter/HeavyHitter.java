@@ -0,0 +1,53 @@
+package advise.counter;
+
+/**
+ * 功能: 调用次数最多的计数槽中的一个条目
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class HeavyHitter {
+
+    /**
+     * 计数槽 id
+     */
+    private final int id;
+
+    /**
+     * 估计次数, 不低于真实次数
+     */
+    private final long count;
+
+    /**
+     * 误差上界, 真实次数不低于 count - error
+     */
+    private final long error;
+
+    /**
+     * 是否一定属于真实的前 N 名
+     */
+    private final boolean guaranteed;
+
+    public HeavyHitter(int id, long count, long error, boolean guaranteed) {
+        this.id = id;
+        this.count = count;
+        this.error = error;
+        this.guaranteed = guaranteed;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getError() {
+        return error;
+    }
+
+    public boolean isGuaranteed() {
+        return guaranteed;
+    }
+}
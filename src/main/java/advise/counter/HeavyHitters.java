@@ -0,0 +1,172 @@
+package advise.counter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 功能: 调用次数最多的计数槽 (Space-Saving 算法, 带权重)
+ * <p>最多保存 capacity 个计数槽, 按估计次数组织为最小堆; 新的计数槽在表满时替换估计次数最小的计数槽,
+ * 并继承其估计次数作为误差上界</p>
+ * <p>估计次数不会低于真实次数, 真实次数不低于 估计次数 - 误差; 不在表中的计数槽真实次数不超过堆顶的估计次数</p>
+ * <p>由 {@link RateTracker} 每秒用调用次数差值更新, 查询只需要对 capacity 个条目排序, 与计数槽总数无关</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class HeavyHitters {
+
+    /**
+     * 最大条目个数
+     */
+    private final int capacity;
+
+    /**
+     * 最小堆: 计数槽 id
+     */
+    private final int[] keys;
+
+    /**
+     * 最小堆: 估计次数
+     */
+    private final long[] counts;
+
+    /**
+     * 最小堆: 误差上界
+     */
+    private final long[] errors;
+
+    /**
+     * 计数槽 id -> 堆下标
+     */
+    private final Map<Integer, Integer> positions = new HashMap<>();
+
+    private int size;
+
+    public HeavyHitters(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.keys = new int[this.capacity];
+        this.counts = new long[this.capacity];
+        this.errors = new long[this.capacity];
+    }
+
+    /**
+     * 增加计数槽的次数
+     * @param id 计数槽 id
+     * @param weight 增加的次数, 不大于 0 时忽略
+     */
+    public synchronized void offer(int id, long weight){
+        if (weight <= 0L){
+            return;
+        }
+        Integer position = positions.get(id);
+        if (position != null){
+            counts[position] += weight;
+            siftDown(position);
+            return;
+        }
+        if (size < capacity){
+            keys[size] = id;
+            counts[size] = weight;
+            errors[size] = 0L;
+            positions.put(id, size);
+            siftUp(size++);
+            return;
+        }
+        // 替换估计次数最小的条目, 被替换条目的次数成为新条目的误差上界
+        positions.remove(keys[0]);
+        keys[0] = id;
+        errors[0] = counts[0];
+        counts[0] += weight;
+        positions.put(id, 0);
+        siftDown(0);
+    }
+
+    /**
+     * 查询估计次数最多的 n 个计数槽
+     * @param n 个数, 不能超过 capacity
+     * @return 按估计次数倒序
+     */
+    public synchronized List<HeavyHitter> top(int n){
+        List<HeavyHitter> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new HeavyHitter(keys[i], counts[i], errors[i], false));
+        }
+        entries.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+
+        int limit = Math.min(n, entries.size());
+        // 下界不低于第 n + 1 名的估计次数时, 一定属于真实的前 n 名
+        long threshold = limit < entries.size() ? entries.get(limit).getCount() : 0L;
+        List<HeavyHitter> result = new ArrayList<>(limit);
+        for (HeavyHitter entry : entries.subList(0, limit)) {
+            result.add(new HeavyHitter(entry.getId(), entry.getCount(), entry.getError(), entry.getCount() - entry.getError() >= threshold));
+        }
+        return result;
+    }
+
+    /**
+     * @return 不在表中的计数槽的次数上界, 表没有满时为 0
+     */
+    public synchronized long getMissedBound(){
+        return size < capacity ? 0L : counts[0];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 估算的占用字节数
+     */
+    synchronized long footprint(){
+        return FootprintReport.object(2 * FootprintReport.INT + 4 * FootprintReport.REFERENCE)
+                + FootprintReport.array(capacity, FootprintReport.INT)
+                + 2 * FootprintReport.array(capacity, FootprintReport.LONG)
+                + FootprintReport.hashMap(size, 2 * FootprintReport.object(FootprintReport.INT));
+    }
+
+    private void siftUp(int index){
+        while (index > 0){
+            int parent = (index - 1) >>> 1;
+            if (counts[parent] <= counts[index]){
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index){
+        while (true){
+            int smallest = index;
+            int left = index * 2 + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]){
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]){
+                smallest = right;
+            }
+            if (smallest == index){
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j){
+        int key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        long error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        positions.put(keys[i], i);
+        positions.put(keys[j], j);
+    }
+}
@@ -0,0 +1,140 @@
+package advise.counter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 功能: 方法耗时直方图 (ns), 无锁且记录时不分配任何对象
+ * <p>按 2 的幂分档, 每档再等分为 8 个子桶, 分位数的相对误差不超过 12.5%</p>
+ * <p>超过 2^40 ns (约 18 分钟) 的耗时记录在最后一个桶中</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class LatencyHistogram {
+
+    /**
+     * 每档子桶个数 = 2^SUB_BITS
+     */
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private static final int SUB_MASK = SUB_COUNT - 1;
+
+    /**
+     * 可以精确区分的最大耗时 (ns)
+     */
+    private static final long MAX_TRACKABLE = (1L << 40) - 1;
+
+    /**
+     * 桶个数
+     */
+    private static final int BUCKET_COUNT = indexOf(MAX_TRACKABLE) + 1;
+
+    /**
+     * 各个桶的记录次数
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * 最大耗时 (ns)
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     * @param nanos 耗时 (ns)
+     */
+    public void record(long nanos){
+        if (nanos < 0L){
+            nanos = 0L;
+        }
+        buckets.getAndIncrement(indexOf(Math.min(nanos, MAX_TRACKABLE)));
+
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)){
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * 获取分位数
+     * @param quantile 分位 (0, 1]
+     * @return 分位数耗时 (ns), 没有记录时为 null
+     */
+    public Long percentile(double quantile){
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L){
+            return null;
+        }
+
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank){
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return 最大耗时 (ns), 没有记录时为 null
+     */
+    public Long getMax(){
+        long currentMax = max.get();
+        return currentMax == 0L && totalCount() == 0L ? null : currentMax;
+    }
+
+    /**
+     * @return 记录次数
+     */
+    public long totalCount(){
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += buckets.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return 估算的占用字节数
+     */
+    static long footprint(){
+        return FootprintReport.object(2 * FootprintReport.REFERENCE)
+                + FootprintReport.atomicArray(BUCKET_COUNT, FootprintReport.LONG)
+                + FootprintReport.object(FootprintReport.LONG);
+    }
+
+    /**
+     * @return 当前的耗时摘要 (p50 / p99 / max)
+     */
+    public LatencySummary summary(){
+        return new LatencySummary(percentile(0.50), percentile(0.99), getMax());
+    }
+
+    private static int indexOf(long nanos){
+        if (nanos < SUB_COUNT){
+            return (int) nanos;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = msb - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((nanos >>> shift) & SUB_MASK);
+    }
+
+    private static long upperBoundOf(int index){
+        if (index < SUB_COUNT){
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lower = ((long) SUB_COUNT + (index & SUB_MASK)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,47 @@
+package advise.counter;
+
+import java.io.Serializable;
+
+/**
+ * 功能: 方法耗时摘要 (ns), 用于查询与持久化
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class LatencySummary implements Serializable {
+
+    private static final long serialVersionUID = 3190563052245839527L;
+
+    /**
+     * 耗时中位数 (ns)
+     */
+    private final Long p50;
+
+    /**
+     * 耗时 99 分位数 (ns)
+     */
+    private final Long p99;
+
+    /**
+     * 最大耗时 (ns)
+     */
+    private final Long max;
+
+    public LatencySummary(Long p50, Long p99, Long max) {
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public Long getP50() {
+        return p50;
+    }
+
+    public Long getP99() {
+        return p99;
+    }
+
+    public Long getMax() {
+        return max;
+    }
+}
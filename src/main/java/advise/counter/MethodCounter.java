@@ -5,11 +5,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 功能: 内存中使用, 方法调用次数计数器
+ * <p>计数数据 (包括耗时直方图与持久化的耗时摘要) 保存在 {@link CounterRegistry} 中, 这里只保存计数槽 id</p>
+ * <p>方法计数器只是计数槽的视图, 同一个计数槽可以有多个实例, 按 注册表 + id 判断相等</p>
  *
  * @author unknown100name
  * @date 2021.10.06
@@ -22,73 +22,178 @@ public class MethodCounter implements Serializable {
     private static final Logger logger = LoggerFactory.getLogger(MethodCounter.class);
 
     /**
-     * 方法调用次数
+     * 计数槽 id
      */
-    private LongAdder count;
+    @JSONField(serialize = false)
+    private final int id;
 
     /**
-     * 方法最近调用时间
+     * 所属的计数器注册表
      */
-    private Long lastCallTime;
+    @JSONField(serialize = false)
+    private final transient CounterRegistry registry;
+
+    public MethodCounter(CounterRegistry registry) {
+        this.registry = registry;
+        this.id = registry.register();
+    }
 
     /**
-     * 对应的 method
+     * @param registry 计数器注册表
+     * @param owner 所属的类计数槽 id
      */
-    @JSONField(serialize = false)
-    private Method method;
+    public MethodCounter(CounterRegistry registry, int owner) {
+        this.registry = registry;
+        this.id = registry.register(owner);
+    }
 
-    public MethodCounter() {
+    private MethodCounter(CounterRegistry registry, int id, boolean registered) {
+        this.registry = registry;
+        this.id = id;
     }
 
-    public MethodCounter(Method method) {
-        this.method = method;
-        this.count = new LongAdder();
+    /**
+     * 已经注册的计数槽的视图, 不会注册新的计数槽
+     * @param registry 计数器注册表
+     * @param id 计数槽 id
+     * @return 方法计数器
+     */
+    static MethodCounter view(CounterRegistry registry, int id){
+        return new MethodCounter(registry, id, true);
     }
 
     /**
      * 更新 method 数据 (调用次数 + 1)
      */
     public void update() {
-        this.count.increment();
-        this.lastCallTime = System.currentTimeMillis();
+        this.registry.update(this.id);
+    }
+
+    /**
+     * 增加调用次数
+     * @param delta 增加的次数
+     */
+    public void addCount(long delta) {
+        this.registry.add(this.id, delta);
+    }
+
+    /**
+     * 开启耗时统计
+     * @return 耗时直方图
+     */
+    public LatencyHistogram enableTiming() {
+        LatencyHistogram histogram = this.registry.histogramIfAbsent(this.id);
+        this.registry.setTiming(this.id, true);
+        return histogram;
+    }
+
+    /**
+     * 关闭耗时统计, 已经记录的耗时数据保留
+     */
+    public void disableTiming() {
+        this.registry.setTiming(this.id, false);
     }
 
     public static Logger getLogger() {
         return logger;
     }
 
-    public LongAdder getCount() {
-        return count;
+    public int getId() {
+        return id;
+    }
+
+    public CounterRegistry getRegistry() {
+        return registry;
     }
 
-    public void setCount(LongAdder count) {
-        this.count = count;
+    public long getCount() {
+        return registry.sum(this.id);
+    }
+
+    /**
+     * @return 采样带来的调用次数误差 (95% 置信区间半宽), 精确计数时为 null
+     */
+    public Long getCountError() {
+        return CounterRegistry.errorOf(registry.variance(this.id));
     }
 
     public Long getLastCallTime() {
-        return lastCallTime;
+        long lastCallTime = registry.lastCallTime(this.id);
+        return lastCallTime == 0L ? null : lastCallTime;
     }
 
     public void setLastCallTime(Long lastCallTime) {
-        this.lastCallTime = lastCallTime;
+        registry.setLastCallTime(this.id, lastCallTime == null ? 0L : lastCallTime);
     }
 
-    public Method getMethod() {
-        return method;
+    /**
+     * @return 调用频率, 没有开启调用频率统计时为 null
+     */
+    @JSONField(serialize = false)
+    public RateSummary getRates() {
+        RateTracker rateTracker = RateTracker.getInstance();
+        return rateTracker == null ? null : rateTracker.getRates(registry, this.id);
     }
 
-    public void setMethod(Method method) {
-        this.method = method;
+    /**
+     * @return 耗时摘要, 没有开启耗时统计且没有持久化数据时为 null
+     */
+    public LatencySummary getLatency() {
+        LatencyHistogram currentHistogram = registry.histogram(this.id);
+        if (currentHistogram != null && currentHistogram.totalCount() > 0L){
+            return currentHistogram.summary();
+        }
+        return registry.persistedLatency(this.id);
+    }
+
+    public void setPersistedLatency(LatencySummary persistedLatency) {
+        registry.setPersistedLatency(this.id, persistedLatency);
+    }
+
+    /**
+     * @return 当前计数模式, 例如 TIMING,COUNT / COUNT / SAMPLED(1/100)
+     */
+    @JSONField(serialize = false)
+    public String getMode() {
+        return CounterMode.describe(registry.mode(this.id));
+    }
+
+    @JSONField(serialize = false)
+    public LatencyHistogram getHistogram() {
+        return registry.histogram(this.id);
+    }
+
+    /**
+     * 同一个注册表中的同一个计数槽视为同一个方法计数器
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o){
+            return true;
+        }
+        if (!(o instanceof MethodCounter)){
+            return false;
+        }
+        MethodCounter that = (MethodCounter) o;
+        return id == that.id && registry == that.registry;
     }
 
     @Override
-    protected MethodCounter clone() throws CloneNotSupportedException {
-        MethodCounter clone = new MethodCounter();
-        LongAdder cloneCount = new LongAdder();
-        cloneCount.add(this.count.longValue());
-        clone.setCount(cloneCount);
-        clone.setLastCallTime(this.lastCallTime);
-        clone.setMethod(this.method);
-        return clone;
+    public int hashCode() {
+        return id;
+    }
+
+    /**
+     * 复制到另一个计数器注册表中
+     * @param target 目标注册表
+     * @param owner 目标注册表中所属的类计数槽 id
+     * @return 复制后的方法计数器
+     */
+    protected MethodCounter copyTo(CounterRegistry target, int owner) {
+        MethodCounter copy = new MethodCounter(target, owner);
+        copy.addCount(this.getCount());
+        copy.setLastCallTime(this.getLastCallTime());
+        copy.setPersistedLatency(this.getLatency());
+        return copy;
     }
 }
@@ -0,0 +1,170 @@
+package advise.counter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 功能: 类下属的方法计数器, 方法名 -> 方法计数器
+ * <p>按方法名排序的 String[] 与计数槽 int[] 两个数组, 每个方法只占用一个引用和一个 int, 方法计数器在读取时按计数槽创建视图</p>
+ * <p>方法名统一 intern, 不同类的同名方法共用同一个字符串; 字符串只被这里引用, 计入内存占用</p>
+ * <p>读取不加锁 (二分查找), 写入加锁并整体替换数组; 方法只在类初始化时批量注册, 写入很少</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class MethodCounterMap extends AbstractMap<String, MethodCounter> {
+
+    private static final Table EMPTY = new Table(new String[0], new int[0]);
+
+    /**
+     * 所属的计数器注册表
+     */
+    private final CounterRegistry registry;
+
+    /**
+     * 当前数组, 写入时整体替换
+     */
+    private volatile Table table = EMPTY;
+
+    public MethodCounterMap(CounterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public MethodCounter get(Object key) {
+        if (!(key instanceof String)){
+            return null;
+        }
+        Table current = table;
+        int index = Arrays.binarySearch(current.names, key);
+        return index < 0 ? null : MethodCounter.view(registry, current.ids[index]);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && Arrays.binarySearch(table.names, key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return table.names.length;
+    }
+
+    /**
+     * 放入方法计数器, 方法计数器必须属于同一个注册表
+     */
+    @Override
+    public synchronized MethodCounter put(String name, MethodCounter methodCounter) {
+        if (methodCounter.getRegistry() != registry){
+            throw new IllegalArgumentException("MethodCounter[" + name + "] belongs to another registry");
+        }
+        Table current = table;
+        int index = Arrays.binarySearch(current.names, name);
+        if (index >= 0){
+            int[] ids = Arrays.copyOf(current.ids, current.ids.length);
+            ids[index] = methodCounter.getId();
+            table = new Table(current.names, ids);
+            return MethodCounter.view(registry, current.ids[index]);
+        }
+        table = current.insert(-index - 1, name.intern(), methodCounter.getId());
+        return null;
+    }
+
+    @Override
+    public synchronized MethodCounter computeIfAbsent(String name, Function<? super String, ? extends MethodCounter> mappingFunction) {
+        MethodCounter existing = get(name);
+        if (existing != null){
+            return existing;
+        }
+        MethodCounter methodCounter = mappingFunction.apply(name);
+        if (methodCounter != null){
+            put(name, methodCounter);
+        }
+        return methodCounter;
+    }
+
+    @Override
+    public Set<Entry<String, MethodCounter>> entrySet() {
+        final Table current = table;
+        return new AbstractSet<Entry<String, MethodCounter>>() {
+            @Override
+            public Iterator<Entry<String, MethodCounter>> iterator() {
+                return new Iterator<Entry<String, MethodCounter>>() {
+
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < current.names.length;
+                    }
+
+                    @Override
+                    public Entry<String, MethodCounter> next() {
+                        if (index >= current.names.length){
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, MethodCounter> entry = new SimpleImmutableEntry<>(current.names[index],
+                                MethodCounter.view(registry, current.ids[index]));
+                        index++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return current.names.length;
+            }
+        };
+    }
+
+    /**
+     * 收集方法名字符串, 用于估算字符串占用
+     * @param names 按对象身份去重的集合
+     */
+    void collectNames(Set<String> names){
+        Collections.addAll(names, table.names);
+    }
+
+    /**
+     * @return 估算的占用字节数 (两个数组, 不包括方法名字符串)
+     */
+    long footprint(){
+        Table current = table;
+        return FootprintReport.array(current.names.length, FootprintReport.REFERENCE) + FootprintReport.array(current.ids.length, FootprintReport.INT)
+                + FootprintReport.object(2 * FootprintReport.REFERENCE);
+    }
+
+    /**
+     * 方法名与计数槽 id, 两个数组一起替换
+     */
+    private static final class Table {
+
+        private final String[] names;
+
+        private final int[] ids;
+
+        private Table(String[] names, int[] ids) {
+            this.names = names;
+            this.ids = ids;
+        }
+
+        private Table insert(int index, String name, int id){
+            String[] newNames = new String[names.length + 1];
+            int[] newIds = new int[ids.length + 1];
+            System.arraycopy(names, 0, newNames, 0, index);
+            System.arraycopy(ids, 0, newIds, 0, index);
+            newNames[index] = name;
+            newIds[index] = id;
+            System.arraycopy(names, index, newNames, index + 1, names.length - index);
+            System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+            return new Table(newNames, newIds);
+        }
+    }
+}
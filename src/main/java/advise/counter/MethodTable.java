@@ -0,0 +1,88 @@
+package advise.counter;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 功能: 类的方法表, 一次反射得到计数与代理需要的全部方法名
+ * <p>重载方法按方法名合并; 同一个方法名既有 final 又有非 final 重载时两边都会出现, 与逐个反射的结果一致</p>
+ * <p>可以被启动缓存序列化, 类没有变化时下一次启动不需要再反射</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class MethodTable {
+
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * 需要计数的方法名 (非 final)
+     */
+    private String[] countedNames = EMPTY;
+
+    /**
+     * final 方法名, 无法被 CGLIB 代理
+     */
+    private String[] finalNames = EMPTY;
+
+    /**
+     * 可以被代理拦截的方法名 (非 private / static / final)
+     */
+    private String[] bindableNames = EMPTY;
+
+    public MethodTable() {
+    }
+
+    /**
+     * 反射类中声明的方法
+     * @param klass 类
+     * @return 方法表
+     */
+    public static MethodTable of(Class<?> klass){
+        Set<String> counted = new LinkedHashSet<>();
+        Set<String> finals = new LinkedHashSet<>();
+        Set<String> bindable = new LinkedHashSet<>();
+        for (Method method : klass.getDeclaredMethods()) {
+            int modifiers = method.getModifiers();
+            if (Modifier.isFinal(modifiers)){
+                finals.add(method.getName());
+                continue;
+            }
+            counted.add(method.getName());
+            if (!Modifier.isPrivate(modifiers) && !Modifier.isStatic(modifiers)){
+                bindable.add(method.getName());
+            }
+        }
+        MethodTable methodTable = new MethodTable();
+        methodTable.setCountedNames(counted.toArray(EMPTY));
+        methodTable.setFinalNames(finals.toArray(EMPTY));
+        methodTable.setBindableNames(bindable.toArray(EMPTY));
+        return methodTable;
+    }
+
+    public String[] getCountedNames() {
+        return countedNames;
+    }
+
+    public void setCountedNames(String[] countedNames) {
+        this.countedNames = countedNames == null ? EMPTY : countedNames;
+    }
+
+    public String[] getFinalNames() {
+        return finalNames;
+    }
+
+    public void setFinalNames(String[] finalNames) {
+        this.finalNames = finalNames == null ? EMPTY : finalNames;
+    }
+
+    public String[] getBindableNames() {
+        return bindableNames;
+    }
+
+    public void setBindableNames(String[] bindableNames) {
+        this.bindableNames = bindableNames == null ? EMPTY : bindableNames;
+    }
+}
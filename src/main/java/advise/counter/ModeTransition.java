@@ -0,0 +1,68 @@
+package advise.counter;
+
+/**
+ * 功能: 计数槽模式切换记录, 用于日志与查询
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class ModeTransition {
+
+    /**
+     * 切换时间 (ms)
+     */
+    private final Long time;
+
+    /**
+     * 计数器名称: 类名#方法名
+     */
+    private final String counterName;
+
+    /**
+     * 切换前的模式
+     */
+    private final String fromMode;
+
+    /**
+     * 切换后的模式
+     */
+    private final String toMode;
+
+    /**
+     * 切换原因
+     */
+    private final String reason;
+
+    public ModeTransition(Long time, String counterName, String fromMode, String toMode, String reason) {
+        this.time = time;
+        this.counterName = counterName;
+        this.fromMode = fromMode;
+        this.toMode = toMode;
+        this.reason = reason;
+    }
+
+    public Long getTime() {
+        return time;
+    }
+
+    public String getCounterName() {
+        return counterName;
+    }
+
+    public String getFromMode() {
+        return fromMode;
+    }
+
+    public String getToMode() {
+        return toMode;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "Counter[" + counterName + "] " + fromMode + " -> " + toMode + " because " + reason;
+    }
+}
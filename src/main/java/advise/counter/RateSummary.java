@@ -0,0 +1,80 @@
+package advise.counter;
+
+import java.io.Serializable;
+
+/**
+ * 功能: 调用频率摘要, 用于查询
+ * <p>窗口内的调用次数以及平均调用频率 (次/s), 运行时间不足一个窗口时按已运行时间计算频率</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class RateSummary implements Serializable {
+
+    private static final long serialVersionUID = -2685086145243508713L;
+
+    /**
+     * 最近一秒的调用次数
+     */
+    private final long currentRate;
+
+    /**
+     * 最近 1 分钟的调用次数
+     */
+    private final long count1m;
+
+    /**
+     * 最近 5 分钟的调用次数
+     */
+    private final long count5m;
+
+    /**
+     * 最近 15 分钟的调用次数
+     */
+    private final long count15m;
+
+    /**
+     * 统计窗口已覆盖的秒数
+     */
+    private final long elapsedSeconds;
+
+    public RateSummary(long currentRate, long count1m, long count5m, long count15m, long elapsedSeconds) {
+        this.currentRate = currentRate;
+        this.count1m = count1m;
+        this.count5m = count5m;
+        this.count15m = count15m;
+        this.elapsedSeconds = elapsedSeconds;
+    }
+
+    public long getCurrentRate() {
+        return currentRate;
+    }
+
+    public long getCount1m() {
+        return count1m;
+    }
+
+    public long getCount5m() {
+        return count5m;
+    }
+
+    public long getCount15m() {
+        return count15m;
+    }
+
+    public double getRate1m() {
+        return rateOf(count1m, 60L);
+    }
+
+    public double getRate5m() {
+        return rateOf(count5m, 300L);
+    }
+
+    public double getRate15m() {
+        return rateOf(count15m, 900L);
+    }
+
+    private double rateOf(long count, long windowSeconds){
+        return count / (double) Math.max(1L, Math.min(windowSeconds, elapsedSeconds));
+    }
+}
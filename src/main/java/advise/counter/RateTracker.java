@@ -0,0 +1,373 @@
+package advise.counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 功能: 调用频率统计, 记录每个计数槽最近 1 / 5 / 15 分钟的调用次数
+ * <p>调用时不做任何额外的写入: 后台线程每秒读取一次计数槽的调用次数, 把差值写入秒级环形桶 (60 个) 与分钟级环形桶 (16 个)</p>
+ * <p>环形桶只为有调用的计数槽从桶池中分配, 连续 15 分钟没有调用后归还; 上一次的调用次数只保存低 32 位, 差值按 int 回绕计算 (每秒调用不超过 2^31 次)</p>
+ * <p>环形桶按启动以来的秒数 (时钟纪元) 定位, 收割线程被延迟时跳过的桶在下一次收割时清零, 差值记在最新的一秒</p>
+ * <p>1 分钟窗口由秒级桶精确求和; 5 / 15 分钟窗口由分钟级桶求和, 最早的一分钟按窗口覆盖的比例折算</p>
+ * <p>通过 {@link CounterRegistry#add} 写入的次数 (数据库校对等) 不计入调用频率</p>
+ * <p>同一次收割中还会用调用次数 (包含数据库校对的次数) 的差值更新方法 / 类两个 {@link HeavyHitters}</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class RateTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(RateTracker.class);
+
+    /**
+     * 秒级桶个数
+     */
+    private static final int SECONDS = 60;
+
+    /**
+     * 分钟级桶个数, 15 个完整分钟 + 当前分钟
+     */
+    private static final int MINUTES = 16;
+
+    /**
+     * 全局实例, 没有开启时为 null
+     */
+    private static volatile RateTracker instance;
+
+    /**
+     * 计数器注册表
+     */
+    private final CounterRegistry registry;
+
+    /**
+     * 时钟纪元起点 (ns)
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 上一次收割时每个计数槽的调用次数 (低 32 位)
+     */
+    private int[] previous = new int[0];
+
+    /**
+     * 上一次收割时每个计数槽的调用次数 (包含通过 add 写入的次数), 只在开启前 N 名统计时创建
+     * <p>数据库校对一次写入的历史次数可能超过 int 范围, 因此保留完整的 long</p>
+     */
+    private long[] previousTotals;
+
+    /**
+     * 调用次数最多的方法计数槽, 没有开启时为 null
+     */
+    private final HeavyHitters methodHitters;
+
+    /**
+     * 调用次数最多的类 (类计数槽 + 方法计数槽), 没有开启时为 null
+     */
+    private final HeavyHitters classHitters;
+
+    /**
+     * 每个计数槽的环形桶编号 + 1, 没有分配时为 0
+     */
+    private int[] rings = new int[0];
+
+    /**
+     * 秒级桶池, 按 环形桶编号 * SECONDS + 秒 排列
+     */
+    private int[] seconds = new int[0];
+
+    /**
+     * 分钟级桶池, 按 环形桶编号 * MINUTES + 分钟 排列
+     */
+    private long[] minutes = new long[0];
+
+    /**
+     * 已归还的环形桶编号
+     */
+    private int[] freeRings = new int[0];
+
+    private int freeCount;
+
+    /**
+     * 桶池中已经使用过的环形桶个数
+     */
+    private int ringCount;
+
+    /**
+     * 已分配环形桶的计数槽个数
+     */
+    private int active;
+
+    /**
+     * 已跟踪的计数槽个数
+     */
+    private int size;
+
+    /**
+     * 最近一次收割对应的秒数 (自启动以来)
+     */
+    private long tick;
+
+    private RateTracker(CounterRegistry registry, int topCapacity) {
+        this.registry = registry;
+        this.methodHitters = topCapacity > 0 ? new HeavyHitters(topCapacity) : null;
+        this.classHitters = topCapacity > 0 ? new HeavyHitters(topCapacity) : null;
+        this.previousTotals = topCapacity > 0 ? new long[0] : null;
+        grow(registry.size(), true);
+    }
+
+    /**
+     * 开启调用频率统计, 重复调用不会重复启动
+     * @param registry 计数器注册表
+     * @param topCapacity 前 N 名统计保存的条目个数, 不大于 0 时不统计
+     */
+    public static synchronized void start(CounterRegistry registry, int topCapacity){
+        if (instance != null){
+            return;
+        }
+        RateTracker rateTracker = new RateTracker(registry, topCapacity);
+        ScheduledExecutorService harvestExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "beancounter-rate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        harvestExecutor.scheduleAtFixedRate(rateTracker::harvest, 1L, 1L, TimeUnit.SECONDS);
+        instance = rateTracker;
+        logger.info("[beancounter-config] Rate tracking started");
+    }
+
+    /**
+     * @return 全局实例, 没有开启时为 null
+     */
+    public static RateTracker getInstance() {
+        return instance;
+    }
+
+    /**
+     * 收割一次: 轮转环形桶, 并把每个计数槽的调用次数差值写入当前桶
+     */
+    synchronized void harvest(){
+        try {
+            long epoch = (System.nanoTime() - startNanos) / TimeUnit.SECONDS.toNanos(1L);
+            if (epoch <= tick){
+                return;
+            }
+            grow(registry.size(), false);
+
+            // 轮转: 清空从上一次收割到现在经过的秒级桶与分钟级桶
+            for (long second = Math.max(tick + 1, epoch - SECONDS + 1); second <= epoch; second++) {
+                clearSeconds((int) (second % SECONDS));
+            }
+            boolean minuteChanged = epoch / SECONDS > tick / SECONDS;
+            for (long minute = Math.max(tick / SECONDS + 1, epoch / SECONDS - MINUTES + 1); minute <= epoch / SECONDS; minute++) {
+                clearMinutes((int) (minute % MINUTES));
+            }
+            if (minuteChanged){
+                release();
+            }
+            tick = epoch;
+
+            int secondSlot = (int) (epoch % SECONDS);
+            int minuteSlot = (int) (epoch / SECONDS % MINUTES);
+            for (int id = 0; id < size; id++) {
+                int calls = (int) registry.calls(id);
+                int delta = calls - previous[id];
+                if (delta != 0){
+                    previous[id] = calls;
+                    if (rings[id] == 0){
+                        rings[id] = allocate() + 1;
+                    }
+                    int ring = rings[id] - 1;
+                    seconds[ring * SECONDS + secondSlot] += delta;
+                    minutes[ring * MINUTES + minuteSlot] += delta;
+                }
+
+                if (methodHitters != null){
+                    long total = registry.sum(id);
+                    long totalDelta = total - previousTotals[id];
+                    if (totalDelta == 0L){
+                        continue;
+                    }
+                    previousTotals[id] = total;
+                    int owner = registry.owner(id);
+                    if (owner != id){
+                        methodHitters.offer(id, totalDelta);
+                    }
+                    classHitters.offer(owner, totalDelta);
+                }
+            }
+        }catch (Throwable t){
+            logger.error("[beancounter-main] Rate harvest fail!", t);
+        }
+    }
+
+    /**
+     * 跟踪新注册的计数槽
+     * @param newSize 计数槽个数
+     * @param baseline 是否以当前调用次数为起点, 启动之后注册的计数槽从 0 开始
+     */
+    private void grow(int newSize, boolean baseline){
+        if (newSize <= size){
+            return;
+        }
+        previous = Arrays.copyOf(previous, newSize);
+        if (previousTotals != null){
+            previousTotals = Arrays.copyOf(previousTotals, newSize);
+        }
+        rings = Arrays.copyOf(rings, newSize);
+        if (baseline){
+            for (int id = size; id < newSize; id++) {
+                previous[id] = (int) registry.calls(id);
+            }
+        }
+        size = newSize;
+    }
+
+    CounterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return 调用次数最多的方法计数槽, 没有开启时为 null
+     */
+    public HeavyHitters getMethodHitters() {
+        return methodHitters;
+    }
+
+    /**
+     * @return 调用次数最多的类, 条目 id 为类计数槽 id, 没有开启时为 null
+     */
+    public HeavyHitters getClassHitters() {
+        return classHitters;
+    }
+
+    private void clearSeconds(int slot){
+        for (int ring = 0; ring < ringCount; ring++) {
+            seconds[ring * SECONDS + slot] = 0;
+        }
+    }
+
+    private void clearMinutes(int slot){
+        for (int ring = 0; ring < ringCount; ring++) {
+            minutes[ring * MINUTES + slot] = 0L;
+        }
+    }
+
+    /**
+     * 分配一个环形桶, 优先复用已归还的
+     * @return 环形桶编号
+     */
+    private int allocate(){
+        active++;
+        if (freeCount > 0){
+            return freeRings[--freeCount];
+        }
+        if (ringCount * SECONDS == seconds.length){
+            int capacity = ringCount + Math.max(16, ringCount >> 2);
+            seconds = Arrays.copyOf(seconds, capacity * SECONDS);
+            minutes = Arrays.copyOf(minutes, capacity * MINUTES);
+        }
+        return ringCount++;
+    }
+
+    /**
+     * 归还所有分钟级桶都为 0 (15 分钟以上没有调用) 的环形桶
+     */
+    private void release(){
+        for (int id = 0; id < size; id++) {
+            int ring = rings[id] - 1;
+            if (ring < 0 || !isIdle(ring)){
+                continue;
+            }
+            Arrays.fill(seconds, ring * SECONDS, (ring + 1) * SECONDS, 0);
+            rings[id] = 0;
+            if (freeCount == freeRings.length){
+                freeRings = Arrays.copyOf(freeRings, Math.max(16, freeCount * 2));
+            }
+            freeRings[freeCount++] = ring;
+            active--;
+        }
+    }
+
+    private boolean isIdle(int ring){
+        for (int slot = ring * MINUTES; slot < (ring + 1) * MINUTES; slot++) {
+            if (minutes[slot] != 0L){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 估算的占用字节数, 包括环形桶与前 N 名统计
+     */
+    synchronized long footprint(){
+        long footprint = FootprintReport.array(previous.length, FootprintReport.INT)
+                + FootprintReport.array(rings.length, FootprintReport.INT)
+                + FootprintReport.array(seconds.length, FootprintReport.INT)
+                + FootprintReport.array(minutes.length, FootprintReport.LONG)
+                + FootprintReport.array(freeRings.length, FootprintReport.INT);
+        if (previousTotals != null){
+            footprint += FootprintReport.array(previousTotals.length, FootprintReport.LONG)
+                    + methodHitters.footprint() + classHitters.footprint();
+        }
+        return footprint;
+    }
+
+    /**
+     * @return 已分配环形桶的计数槽个数
+     */
+    public synchronized int getActive() {
+        return active;
+    }
+
+    /**
+     * 汇总若干计数槽的调用频率
+     * @param registry 计数器所属的注册表, 不是被跟踪的注册表时 (例如从数据库读取的计数器) 返回 null
+     * @param ids 计数槽 id
+     * @return 调用频率摘要
+     */
+    public synchronized RateSummary getRates(CounterRegistry registry, int... ids){
+        if (registry != this.registry){
+            return null;
+        }
+        long current = 0L;
+        long count1m = 0L;
+        long count5m = 0L;
+        long count15m = 0L;
+        for (int id : ids) {
+            int ring = id < size ? rings[id] - 1 : -1;
+            if (ring < 0){
+                continue;
+            }
+            current += seconds[ring * SECONDS + (int) (tick % SECONDS)];
+            for (int slot = ring * SECONDS; slot < (ring + 1) * SECONDS; slot++) {
+                count1m += seconds[slot];
+            }
+            count5m += windowCount(ring, 5);
+            count15m += windowCount(ring, 15);
+        }
+        return new RateSummary(current, count1m, count5m, count15m, tick);
+    }
+
+    /**
+     * 最近 windowMinutes 分钟的调用次数: 当前分钟 + 之前完整的分钟 + 最早一分钟中仍在窗口内的部分
+     */
+    private long windowCount(int ring, int windowMinutes){
+        long minute = tick / SECONDS;
+        long count = 0L;
+        for (long current = Math.max(0L, minute - windowMinutes + 1); current <= minute; current++) {
+            count += minutes[ring * MINUTES + (int) (current % MINUTES)];
+        }
+        long oldest = minute - windowMinutes;
+        if (oldest >= 0L){
+            // 当前分钟已经过去 (tick % 60 + 1) 秒, 最早一分钟还剩 59 - tick % 60 秒在窗口内
+            count += minutes[ring * MINUTES + (int) (oldest % MINUTES)] * (SECONDS - 1 - tick % SECONDS) / SECONDS;
+        }
+        return count;
+    }
+}
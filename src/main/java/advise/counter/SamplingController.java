@@ -0,0 +1,156 @@
+package advise.counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 功能: 采样控制器
+ * <p>配置了采样率 N 的方法在本进程中的调用次数达到阈值之前保持精确计数; 达到阈值并且最近一分钟的调用频率不低于 N 次/s 时才切换为采样计数,
+ * 频率回落到 N / 2 次/s 以下时恢复精确计数; 采样率被其他控制器 (例如 {@link ThrottleController}) 修改时保持采样状态, 等采样率恢复为 N 之后再切换</p>
+ * <p>调用次数只统计调用产生的次数, 不包括数据库校对合并的历史数据; 调用频率优先使用 {@link RateTracker} 的一分钟频率, 没有开启时按每秒的调用次数增量平滑得到</p>
+ * <p>切换由后台线程每秒检查一次, 调用过程中不做任何判断</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class SamplingController {
+
+    private static final Logger logger = LoggerFactory.getLogger(SamplingController.class);
+
+    /**
+     * 检查间隔 (s)
+     */
+    private static final long CHECK_INTERVAL = 1L;
+
+    /**
+     * 没有 RateTracker 时的平滑系数, 约等于一分钟的滑动平均
+     */
+    private static final double SMOOTHING = 1.0 / 60;
+
+    /**
+     * 计数器注册表
+     */
+    private final CounterRegistry registry;
+
+    /**
+     * 精确计数阈值, 调用次数达到后才可能切换为采样计数
+     */
+    private final long threshold;
+
+    /**
+     * 受控的计数槽
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * 检查执行器, 第一次注册时才创建
+     */
+    private ScheduledExecutorService checkExecutor;
+
+    public SamplingController(CounterRegistry registry, long threshold) {
+        this.registry = registry;
+        this.threshold = threshold;
+    }
+
+    /**
+     * 注册需要采样的计数槽
+     * @param id 计数槽 id
+     * @param sampleRate 目标采样率, 小于等于 1 时忽略
+     */
+    public synchronized void register(int id, int sampleRate){
+        if (sampleRate <= 1){
+            return;
+        }
+        entries.add(new Entry(id, sampleRate, registry.calls(id)));
+
+        if (checkExecutor == null){
+            checkExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "beancounter-sampling");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkExecutor.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 按调用次数与最近的调用频率切换采样计数 / 精确计数
+     */
+    private synchronized void check(){
+        try {
+            RateTracker rateTracker = RateTracker.getInstance();
+            for (Entry entry : entries) {
+                long calls = registry.calls(entry.id);
+                double rate = recentRate(rateTracker, entry, calls);
+
+                if (!entry.sampled && calls >= threshold && rate >= entry.sampleRate){
+                    registry.setSampleRate(entry.id, entry.sampleRate);
+                    entry.sampled = true;
+                    logger.info("[beancounter-main] Counter[" + entry.id + "] reached " + threshold + " calls at " + String.format("%.1f", rate)
+                            + "/s, switch to sampling 1/" + entry.sampleRate);
+                }else if (entry.sampled && rate < entry.sampleRate / 2.0){
+                    // 采样率被其他控制器修改过时保留修改后的采样率, 保持采样状态, 等其他控制器恢复为 N 之后再切换
+                    int current = registry.sampleRate(entry.id);
+                    if (current == entry.sampleRate){
+                        registry.setSampleRate(entry.id, 1);
+                        entry.sampled = false;
+                        logger.info("[beancounter-main] Counter[" + entry.id + "] cooled down to " + String.format("%.1f", rate) + "/s, switch back to exact counting");
+                    }else if (current <= 1){
+                        entry.sampled = false;
+                    }
+                }
+            }
+        }catch (Throwable t){
+            logger.error("[beancounter-main] Sampling check fail!", t);
+        }
+    }
+
+    /**
+     * @return 最近一分钟的调用频率 (次/s)
+     */
+    private double recentRate(RateTracker rateTracker, Entry entry, long calls){
+        long delta = calls - entry.previousCalls;
+        entry.previousCalls = calls;
+        entry.smoothedRate += (delta / (double) CHECK_INTERVAL - entry.smoothedRate) * SMOOTHING;
+
+        RateSummary rates = rateTracker == null ? null : rateTracker.getRates(registry, entry.id);
+        return rates == null ? entry.smoothedRate : rates.getRate1m();
+    }
+
+    /**
+     * 受控计数槽的状态, 只在检查线程中读写
+     */
+    private static final class Entry {
+
+        private final int id;
+
+        /**
+         * 目标采样率
+         */
+        private final int sampleRate;
+
+        private long previousCalls;
+
+        /**
+         * 平滑后的调用频率 (次/s), 没有 RateTracker 时使用
+         */
+        private double smoothedRate;
+
+        /**
+         * 是否已经切换为采样计数
+         */
+        private boolean sampled;
+
+        private Entry(int id, int sampleRate, long previousCalls) {
+            this.id = id;
+            this.sampleRate = sampleRate;
+            this.previousCalls = previousCalls;
+        }
+    }
+}
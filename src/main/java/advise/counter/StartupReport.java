@@ -0,0 +1,230 @@
+package advise.counter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 功能: beancounter 自身的启动开销报告, 按阶段统计耗时, 并记录每个 Bean 创建代理的耗时与生成的代理类个数
+ * <p>阶段之间有包含关系 (例如依赖扫描包含反射扫描, 计数器初始化包含创建代理), 只有顶层阶段可以相加, 即 beancounter 给启动增加的总耗时</p>
+ * <p>所有单例创建完成后输出一次日志, 之后懒加载的 Bean 仍然会继续累加, 可以通过查询接口获取</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class StartupReport {
+
+    private static final StartupReport instance = new StartupReport();
+
+    /**
+     * 日志中输出的最慢的代理个数
+     */
+    private static final int SLOWEST = 10;
+
+    /**
+     * 统计的阶段
+     */
+    public enum Phase {
+
+        /**
+         * 第一层检查: Bean 定义分类 (或恢复启动缓存)
+         */
+        BASIC_CHECK("BeanBasicCheckProcessor", true),
+
+        /**
+         * 第二层检查: 依赖扫描
+         */
+        CIRCULAR_CHECK("BeanCircularCheckProcessor", true),
+
+        /**
+         * 反射扫描 @Resource / @Autowired 字段, 包含在依赖扫描中
+         */
+        POPULATE_INSTANCE("CircularMap.populateBeanInstance", false),
+
+        /**
+         * 第三层检查: 循环依赖检查 + 计数器初始化 + 代理
+         */
+        COUNTER("BeanCounterProcessor", true),
+
+        /**
+         * 循环依赖检查, 包含在第三层检查中
+         */
+        CIRCULAR_DETECT("BeanChecker.circularCheck", false),
+
+        /**
+         * 创建代理, 包含在第三层检查中
+         */
+        PROXY("BeanCounterProcessor.getProxy", false);
+
+        private final String label;
+
+        /**
+         * 是否是顶层阶段, 只有顶层阶段计入总耗时
+         */
+        private final boolean topLevel;
+
+        Phase(String label, boolean topLevel) {
+            this.label = label;
+            this.topLevel = topLevel;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public boolean isTopLevel() {
+            return topLevel;
+        }
+    }
+
+    /**
+     * 每个阶段的累计耗时 (ns)
+     */
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * 每个阶段的调用次数
+     */
+    private final AtomicLongArray phaseCalls = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * Bean 类名 -> 创建代理的耗时 (ns)
+     */
+    private final Map<String, Long> proxyNanos = new ConcurrentHashMap<>();
+
+    /**
+     * 生成的代理类, 复用的代理类只计一次
+     */
+    private final Set<Class<?>> proxyClasses = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean published;
+
+    private StartupReport() { }
+
+    public static StartupReport getInstance(){
+        return instance;
+    }
+
+    /**
+     * 记录一次阶段耗时
+     * @param phase 阶段
+     * @param startNanos 阶段开始时的 System.nanoTime()
+     */
+    public void record(Phase phase, long startNanos){
+        phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - startNanos);
+        phaseCalls.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * 记录一次代理创建
+     * @param beanName Bean 类名
+     * @param proxy 生成的代理
+     * @param startNanos 创建开始时的 System.nanoTime()
+     */
+    public void recordProxy(String beanName, Object proxy, long startNanos){
+        long elapsed = System.nanoTime() - startNanos;
+        phaseNanos.addAndGet(Phase.PROXY.ordinal(), elapsed);
+        phaseCalls.incrementAndGet(Phase.PROXY.ordinal());
+        proxyNanos.merge(beanName, elapsed, Long::sum);
+        if (proxy != null){
+            proxyClasses.add(proxy.getClass());
+        }
+    }
+
+    /**
+     * 标记启动完成
+     * @return 是否是第一次标记, 只有第一次需要输出日志
+     */
+    public synchronized boolean publish(){
+        if (published){
+            return false;
+        }
+        published = true;
+        return true;
+    }
+
+    /**
+     * @return 阶段名 -> 累计耗时 (ms), 按阶段顺序
+     */
+    public Map<String, Double> getPhaseMillis(){
+        Map<String, Double> phaseMillis = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            phaseMillis.put(phase.getLabel(), toMillis(phaseNanos.get(phase.ordinal())));
+        }
+        return phaseMillis;
+    }
+
+    /**
+     * @return 阶段名 -> 调用次数, 按阶段顺序
+     */
+    public Map<String, Long> getPhaseCalls(){
+        Map<String, Long> calls = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            calls.put(phase.getLabel(), phaseCalls.get(phase.ordinal()));
+        }
+        return calls;
+    }
+
+    /**
+     * @return beancounter 给启动增加的总耗时 (ms), 顶层阶段之和
+     */
+    public double getTotalMillis(){
+        long total = 0L;
+        for (Phase phase : Phase.values()) {
+            if (phase.isTopLevel()){
+                total += phaseNanos.get(phase.ordinal());
+            }
+        }
+        return toMillis(total);
+    }
+
+    /**
+     * @return Bean 类名 -> 创建代理的耗时 (ms), 按耗时倒序
+     */
+    public Map<String, Double> getProxyMillis(){
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(proxyNanos.entrySet());
+        entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+        Map<String, Double> proxyMillis = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            proxyMillis.put(entry.getKey(), toMillis(entry.getValue()));
+        }
+        return proxyMillis;
+    }
+
+    public int getProxiedBeans(){
+        return proxyNanos.size();
+    }
+
+    public int getProxyClasses(){
+        return proxyClasses.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-36s %12s %10s%n", "phase", "ms", "calls"));
+        for (Phase phase : Phase.values()) {
+            report.append(String.format("%-36s %12.2f %10d%n", (phase.isTopLevel() ? "" : "  ") + phase.getLabel(),
+                    toMillis(phaseNanos.get(phase.ordinal())), phaseCalls.get(phase.ordinal())));
+        }
+        report.append(String.format("%-36s %12.2f%n", "total", getTotalMillis()));
+        report.append(String.format("proxied beans: %d, generated proxy classes: %d", getProxiedBeans(), getProxyClasses()));
+        int index = 0;
+        for (Map.Entry<String, Double> entry : getProxyMillis().entrySet()) {
+            if (index++ == SLOWEST){
+                break;
+            }
+            report.append(String.format("%n  %-70s %10.2f", entry.getKey(), entry.getValue()));
+        }
+        return report.toString();
+    }
+
+    private static double toMillis(long nanos){
+        return nanos / 1_000_000D;
+    }
+}
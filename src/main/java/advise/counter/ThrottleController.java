@@ -0,0 +1,311 @@
+package advise.counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 功能: 自适应降级控制器, 后台线程每秒执行一次
+ * <p>1. 方法调用频率超过阈值时逐级降级: 关闭耗时统计 -> 采样计数, 频率回落到阈值一半以下时逐级恢复</p>
+ * <p>2. 计数自身的开销超过 CPU 预算时, 每秒降级一个当前调用频率最高的方法; 因此降级的方法在保持期内不按调用频率恢复,
+ * 同一个方法每次因为 CPU 预算再次降级时保持期加倍, 避免降级与恢复来回切换</p>
+ * <p>所有切换都会打印日志, 并保留最近的切换记录供查询</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class ThrottleController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThrottleController.class);
+
+    /**
+     * 检查间隔 (s)
+     */
+    private static final long CHECK_INTERVAL = 1L;
+
+    /**
+     * 保留的切换记录个数
+     */
+    private static final int MAX_TRANSITIONS = 256;
+
+    /**
+     * 降级等级: 正常
+     */
+    private static final int LEVEL_NORMAL = 0;
+
+    /**
+     * 降级等级: 关闭耗时统计
+     */
+    private static final int LEVEL_NO_TIMING = 1;
+
+    /**
+     * 降级等级: 采样计数
+     */
+    private static final int LEVEL_SAMPLED = 2;
+
+    /**
+     * 因为 CPU 预算降级后的初始保持期 (s)
+     */
+    private static final long BUDGET_HOLD_DOWN = 60L;
+
+    /**
+     * 因为 CPU 预算降级后的最大保持期 (s)
+     */
+    private static final long MAX_BUDGET_HOLD_DOWN = 3600L;
+
+    /**
+     * 计数自身的开销 (ns), 由拦截器按比例测量后放大写入
+     */
+    private static final LongAdder overheadNanos = new LongAdder();
+
+    /**
+     * 是否需要测量计数自身的开销, 控制器启动后才开启, 没有启动时拦截器不做任何测量
+     */
+    private static volatile boolean measuring;
+
+    /**
+     * 计数器注册表
+     */
+    private final CounterRegistry registry;
+
+    /**
+     * 受控的方法
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * 最近的切换记录
+     */
+    private final Deque<ModeTransition> transitions = new ArrayDeque<>();
+
+    /**
+     * 调用频率阈值 (次/s)
+     */
+    private long rateThreshold;
+
+    /**
+     * CPU 预算 (%)
+     */
+    private double cpuBudget;
+
+    /**
+     * 降级时使用的采样率
+     */
+    private int sampleRate;
+
+    /**
+     * 检查执行器, 启动时才创建
+     */
+    private ScheduledExecutorService checkExecutor;
+
+    /**
+     * 已经执行的检查次数, 用于计算保持期
+     */
+    private long ticks;
+
+    public ThrottleController(CounterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 记录计数自身的开销
+     * @param nanos 开销 (ns)
+     */
+    public static void recordOverhead(long nanos){
+        overheadNanos.add(nanos);
+    }
+
+    /**
+     * @return 拦截器是否需要测量计数自身的开销
+     */
+    public static boolean isMeasuring(){
+        return measuring;
+    }
+
+    /**
+     * 启动控制器, 重复调用不会重复启动
+     * @param rateThreshold 调用频率阈值 (次/s)
+     * @param cpuBudget CPU 预算 (%)
+     * @param sampleRate 降级时使用的采样率
+     */
+    public synchronized void start(long rateThreshold, double cpuBudget, int sampleRate){
+        if (checkExecutor != null){
+            return;
+        }
+        this.rateThreshold = rateThreshold;
+        this.cpuBudget = cpuBudget;
+        this.sampleRate = sampleRate;
+        measuring = true;
+        this.checkExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "beancounter-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checkExecutor.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+        logger.info("[beancounter-config] Throttle started with rate threshold " + rateThreshold + "/s and cpu budget " + cpuBudget + "%");
+    }
+
+    /**
+     * 注册受控的方法
+     * @param methodCounter 方法计数器
+     * @param counterName 计数器名称: 类名#方法名
+     */
+    public synchronized void register(MethodCounter methodCounter, String counterName){
+        entries.add(new Entry(methodCounter.getId(), counterName, registry.calls(methodCounter.getId())));
+    }
+
+    /**
+     * @return 最近的切换记录, 按时间先后排列
+     */
+    public synchronized List<ModeTransition> getTransitions(){
+        return new ArrayList<>(transitions);
+    }
+
+    private synchronized void check(){
+        try {
+            ticks += CHECK_INTERVAL;
+            double overheadPercent = overheadNanos.sumThenReset() * 100.0
+                    / (TimeUnit.SECONDS.toNanos(CHECK_INTERVAL) * (double) Runtime.getRuntime().availableProcessors());
+
+            // 按调用频率降级 / 恢复
+            Entry hottest = null;
+            for (Entry entry : entries) {
+                // 只统计调用次数, 数据库校对合并的历史数据不计入调用频率
+                long count = registry.calls(entry.id);
+                entry.rate = (count - entry.previousCount) / CHECK_INTERVAL;
+                entry.previousCount = count;
+
+                if (entry.rate > rateThreshold && entry.level < LEVEL_SAMPLED){
+                    degrade(entry, "call rate " + entry.rate + "/s is over " + rateThreshold + "/s");
+                }else if (entry.rate < rateThreshold / 2 && entry.level > LEVEL_NORMAL && overheadPercent < cpuBudget / 2
+                        && ticks >= entry.holdUntil){
+                    restore(entry, "call rate " + entry.rate + "/s is under " + rateThreshold / 2 + "/s"
+                            + (entry.budgetDegraded ? " and budget hold-down " + entry.holdDown + "s elapsed" : ""));
+                }
+
+                if (entry.level < LEVEL_SAMPLED && (hottest == null || entry.rate > hottest.rate)){
+                    hottest = entry;
+                }
+            }
+
+            // 按 CPU 预算降级
+            if (overheadPercent > cpuBudget && hottest != null && hottest.rate > 0){
+                hottest.holdDown = hottest.holdDown == 0L ? BUDGET_HOLD_DOWN : Math.min(hottest.holdDown * 2, MAX_BUDGET_HOLD_DOWN);
+                hottest.holdUntil = ticks + hottest.holdDown;
+                hottest.budgetDegraded = true;
+                degrade(hottest, String.format("instrumentation overhead %.3f%% is over budget %.3f%%, hold for %ds",
+                        overheadPercent, cpuBudget, hottest.holdDown));
+            }
+        }catch (Throwable t){
+            logger.error("[beancounter-main] Throttle check fail!", t);
+        }
+    }
+
+    /**
+     * 降级一级, 没有开启耗时统计的方法直接降级为采样计数
+     */
+    private void degrade(Entry entry, String reason){
+        int before = registry.mode(entry.id);
+        if (entry.level == LEVEL_NORMAL){
+            entry.timing = CounterMode.isTiming(before);
+            registry.setTiming(entry.id, false);
+            entry.level = LEVEL_NO_TIMING;
+            if (entry.timing){
+                transition(entry, before, reason);
+                return;
+            }
+        }
+        if (entry.level == LEVEL_NO_TIMING){
+            entry.sampleRate = registry.sampleRate(entry.id);
+            registry.setSampleRate(entry.id, Math.max(entry.sampleRate, sampleRate));
+            entry.level = LEVEL_SAMPLED;
+        }
+        transition(entry, before, reason);
+    }
+
+    /**
+     * 恢复一级, 没有开启耗时统计的方法直接恢复为正常
+     */
+    private void restore(Entry entry, String reason){
+        int before = registry.mode(entry.id);
+        if (entry.level == LEVEL_SAMPLED){
+            // 采样率被其他控制器修改过时保留修改后的采样率
+            if (CounterMode.sampleRate(before) == Math.max(entry.sampleRate, sampleRate)){
+                registry.setSampleRate(entry.id, entry.sampleRate);
+            }
+            entry.level = entry.timing ? LEVEL_NO_TIMING : LEVEL_NORMAL;
+        }else if (entry.level == LEVEL_NO_TIMING){
+            registry.setTiming(entry.id, entry.timing);
+            entry.level = LEVEL_NORMAL;
+        }
+        if (entry.level == LEVEL_NORMAL){
+            entry.budgetDegraded = false;
+        }
+        transition(entry, before, reason);
+    }
+
+    private void transition(Entry entry, int before, String reason){
+        ModeTransition transition = new ModeTransition(System.currentTimeMillis(), entry.counterName,
+                CounterMode.describe(before), CounterMode.describe(registry.mode(entry.id)), reason);
+        logger.warn("[beancounter-main] " + transition);
+        if (transitions.size() == MAX_TRANSITIONS){
+            transitions.removeFirst();
+        }
+        transitions.addLast(transition);
+    }
+
+    /**
+     * 受控方法的状态, 只在检查线程中读写
+     */
+    private static final class Entry {
+
+        private final int id;
+
+        private final String counterName;
+
+        private long previousCount;
+
+        private long rate;
+
+        private int level = LEVEL_NORMAL;
+
+        /**
+         * 降级前是否开启了耗时统计
+         */
+        private boolean timing;
+
+        /**
+         * 降级前的采样率
+         */
+        private int sampleRate;
+
+        /**
+         * 是否因为 CPU 预算降级过, 完全恢复后清除
+         */
+        private boolean budgetDegraded;
+
+        /**
+         * 最近一次因为 CPU 预算降级的保持期 (s), 再次因为 CPU 预算降级时加倍
+         */
+        private long holdDown;
+
+        /**
+         * 保持期结束时的检查时间 (s), 在此之前不按调用频率恢复
+         */
+        private long holdUntil;
+
+        private Entry(int id, String counterName, long previousCount) {
+            this.id = id;
+            this.counterName = counterName;
+            this.previousCount = previousCount;
+        }
+    }
+}
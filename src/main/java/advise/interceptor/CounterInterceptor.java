@@ -0,0 +1,72 @@
+package advise.interceptor;
+
+import advise.counter.CounterRegistry;
+import advise.counter.MethodCounter;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * 功能: 计数拦截器, 在代理创建时就绑定好对应的计数槽
+ * <p>调用时不再需要反射获取方法, 也不需要通过类名 / 方法名查询计数器</p>
+ * <p>类调用次数由计数槽汇总得到, 所以每次调用只需要更新一个计数槽</p>
+ * <p>采样率与耗时开关来自计数槽模式, 可以在运行时被调整</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterInterceptor implements MethodInterceptor {
+
+    /**
+     * 计数器注册表
+     */
+    private final CounterRegistry registry;
+
+    /**
+     * 绑定的计数槽 id: 方法计数槽, 或者继承而来的 public 方法使用的类计数槽
+     */
+    private final int id;
+
+    /**
+     * 绑定的方法计数器, 为 null 时不统计耗时
+     */
+    private final MethodCounter methodCounter;
+
+    public CounterInterceptor(CounterRegistry registry, int id) {
+        this(registry, id, null);
+    }
+
+    public CounterInterceptor(CounterRegistry registry, int id, MethodCounter methodCounter) {
+        this.registry = registry;
+        this.id = id;
+        this.methodCounter = methodCounter;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation methodInvocation) throws Throwable {
+        long start = CounterSupport.enter(registry, id);
+
+        // 继续执行方法, 业务异常原样抛出
+        if (!CounterSupport.needExit(methodCounter, start)){
+            return methodInvocation.proceed();
+        }
+
+        // 耗时统计 / 调用关系出栈, 抛出异常的调用同样记录
+        try {
+            return methodInvocation.proceed();
+        }finally {
+            CounterSupport.exit(methodCounter, start);
+        }
+    }
+
+    public CounterRegistry getRegistry() {
+        return registry;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public MethodCounter getMethodCounter() {
+        return methodCounter;
+    }
+}
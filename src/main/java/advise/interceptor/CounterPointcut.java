@@ -0,0 +1,73 @@
+package advise.interceptor;
+
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * 功能: 计数切点, 每一个切点只匹配一个方法
+ * <p>匹配结果由 Spring 按方法缓存, 所以匹配只会在每个方法第一次调用时进行</p>
+ * <p>使用方法名 + 参数类型匹配, 从而兼容被代理对象本身就是代理类的情况</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class CounterPointcut extends StaticMethodMatcherPointcut {
+
+    /**
+     * 匹配的方法, 为 null 时匹配所有没有在 klass 中声明的 public 方法 (不包括 Object 中声明的方法)
+     */
+    private final Method method;
+
+    /**
+     * 底层类
+     */
+    private final Class<?> klass;
+
+    private CounterPointcut(Class<?> klass, Method method) {
+        this.klass = klass;
+        this.method = method;
+    }
+
+    /**
+     * 匹配 klass 中声明的某个方法
+     * @param klass 底层类
+     * @param method 声明的方法
+     * @return 切点
+     */
+    public static CounterPointcut forMethod(Class<?> klass, Method method){
+        return new CounterPointcut(klass, method);
+    }
+
+    /**
+     * 匹配 klass 继承而来的 public 方法, 只统计类调用次数
+     * @param klass 底层类
+     * @return 切点
+     */
+    public static CounterPointcut forInherited(Class<?> klass){
+        return new CounterPointcut(klass, null);
+    }
+
+    @Override
+    public boolean matches(Method method, Class<?> targetClass) {
+        if (this.method != null){
+            return sameSignature(this.method, method);
+        }
+        if (!Modifier.isPublic(method.getModifiers()) || method.getDeclaringClass() == Object.class){
+            return false;
+        }
+        try {
+            this.klass.getDeclaredMethod(method.getName(), method.getParameterTypes());
+            return false;
+        }catch (NoSuchMethodException e){
+            return true;
+        }
+    }
+
+    private static boolean sameSignature(Method expected, Method actual){
+        return expected.getName().equals(actual.getName())
+                && Arrays.equals(expected.getParameterTypes(), actual.getParameterTypes());
+    }
+}
@@ -0,0 +1,176 @@
+package advise.interceptor;
+
+import advise.counter.CallGraph;
+import advise.counter.CounterMode;
+import advise.counter.CounterRegistry;
+import advise.counter.LatencyHistogram;
+import advise.counter.MethodCounter;
+import advise.counter.ThrottleController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 功能: 计数入口, 由 {@link CounterInterceptor} 与生成的字节码代理共同使用
+ * <p>计数过程中的任何错误都不进行补救, 从而保障正常业务的进行</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public final class CounterSupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(CounterSupport.class);
+
+    /**
+     * 自身开销的测量比例, 1/64 的 {@link #enter} / {@link #exit} / {@link #count} 会测量自身的全部耗时 (proceed() 之外的部分)
+     * <p>只有 {@link ThrottleController} 启动后才测量, 被关闭的计数槽不测量</p>
+     */
+    private static final int OVERHEAD_SAMPLE_MASK = 63;
+
+    /**
+     * 计数槽被关闭时 {@link #enter} 的返回值, 此时 {@link #exit} 不做任何事情
+     */
+    public static final long DISABLED = Long.MIN_VALUE;
+
+    private CounterSupport() { }
+
+    /**
+     * 调用开始: 更新计数槽, 开启调用关系统计时同时入栈
+     * <p>返回之后必须调用 {@link #exit}, 包括抛出异常的情况</p>
+     * @param registry 计数器注册表
+     * @param id 计数槽 id
+     * @return 计数槽开启耗时统计时返回开始时间 (ns), 计数槽被关闭时返回 {@link #DISABLED}, 否则为 0
+     */
+    public static long enter(CounterRegistry registry, int id){
+        int mode = mode(registry, id);
+        if (CounterMode.isOff(mode)){
+            return DISABLED;
+        }
+        if (!ThrottleController.isMeasuring() || !sampleOverhead()){
+            return doEnter(registry, id, mode);
+        }
+        long overheadStart = System.nanoTime();
+        long start = doEnter(registry, id, mode);
+        recordOverhead(overheadStart);
+        return start;
+    }
+
+    private static long doEnter(CounterRegistry registry, int id, int mode){
+        update(registry, id, mode);
+        CallGraph callGraph = CallGraph.getInstance();
+        if (callGraph != null){
+            try {
+                callGraph.enter(id);
+            }catch (Throwable t){
+                logger.error("[beancounter-main] Record call graph fail in the main process!", t);
+            }
+        }
+        return CounterMode.isTiming(mode) ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * 只更新计数槽, 不需要调用 {@link #exit}
+     * <p>计数槽被关闭时只读取一次模式</p>
+     * @param registry 计数器注册表
+     * @param id 计数槽 id
+     * @return 计数槽模式
+     */
+    public static int count(CounterRegistry registry, int id){
+        int mode = mode(registry, id);
+        if (CounterMode.isOff(mode)){
+            return mode;
+        }
+        if (!ThrottleController.isMeasuring() || !sampleOverhead()){
+            update(registry, id, mode);
+            return mode;
+        }
+        long overheadStart = System.nanoTime();
+        update(registry, id, mode);
+        recordOverhead(overheadStart);
+        return mode;
+    }
+
+    /**
+     * @return 计数槽模式, 读取失败时按关闭处理
+     */
+    private static int mode(CounterRegistry registry, int id){
+        try {
+            return registry.mode(id);
+        }catch (Throwable t){
+            logger.error("[beancounter-main] Read counter mode fail in the main process!", t);
+            return CounterMode.OFF;
+        }
+    }
+
+    private static void update(CounterRegistry registry, int id, int mode){
+        try {
+            registry.update(id, mode);
+        }catch (Throwable t){
+            logger.error("[beancounter-main] Update count fail in the main process!", t);
+        }
+    }
+
+    /**
+     * 调用结束: 出栈并记录耗时, 抛出异常的调用同样需要调用
+     * @param methodCounter 方法计数器, 为 null 时不记录耗时
+     * @param start {@link #enter} 返回的开始时间, 为 0 时不记录耗时, 为 {@link #DISABLED} 时直接返回
+     */
+    public static void exit(MethodCounter methodCounter, long start){
+        if (start == DISABLED){
+            return;
+        }
+        if (!ThrottleController.isMeasuring() || !sampleOverhead()){
+            doExit(methodCounter, start);
+            return;
+        }
+        long overheadStart = System.nanoTime();
+        doExit(methodCounter, start);
+        recordOverhead(overheadStart);
+    }
+
+    private static void doExit(MethodCounter methodCounter, long start){
+        CallGraph callGraph = CallGraph.getInstance();
+        if (callGraph != null){
+            callGraph.exit();
+        }
+        if (start == 0L || methodCounter == null){
+            return;
+        }
+        try {
+            LatencyHistogram histogram = methodCounter.getHistogram();
+            if (histogram != null){
+                histogram.record(System.nanoTime() - start);
+            }
+        }catch (Throwable t){
+            logger.error("[beancounter-main] Record latency fail in the main process!", t);
+        }
+    }
+
+    /**
+     * @return 本次调用是否测量自身开销
+     */
+    private static boolean sampleOverhead(){
+        return (ThreadLocalRandom.current().nextInt() & OVERHEAD_SAMPLE_MASK) == 0;
+    }
+
+    /**
+     * 按测量比例放大后记录自身开销
+     * @param overheadStart 测量开始时的 System.nanoTime()
+     */
+    private static void recordOverhead(long overheadStart){
+        ThrottleController.recordOverhead((System.nanoTime() - overheadStart) * (OVERHEAD_SAMPLE_MASK + 1));
+    }
+
+    /**
+     * @param methodCounter 方法计数器
+     * @param start {@link #enter} 返回的开始时间
+     * @return 是否需要调用 {@link #exit}
+     */
+    public static boolean needExit(MethodCounter methodCounter, long start){
+        if (start == DISABLED){
+            return false;
+        }
+        return (start != 0L && methodCounter != null) || CallGraph.isEnabled();
+    }
+}
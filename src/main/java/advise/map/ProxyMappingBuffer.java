@@ -1,9 +1,14 @@
 package advise.map;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 功能: 类映射关系缓存类, 防止每一次都要通过被包装的类找到原类
+ * <p>按对象身份 (==) 查找, 不调用 Bean 自己的 equals / hashCode</p>
+ * <p>代理类与底层类都是弱引用: 只缓存静态目标, 代理类存活时底层类一定可达; 代理类被回收后 (例如刷新上下文, 原型 Bean) 映射在下一次写入时清理</p>
  *
  * @author unknown100name
  * @date 2021.10.06
@@ -22,7 +27,12 @@ public class ProxyMappingBuffer {
      * 映射关系信息
      * 被包装类 -> 底层类
      */
-    private final ConcurrentHashMap<Object, Object> proxyMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<IdentityKey, WeakReference<Object>> proxyMap = new ConcurrentHashMap<>();
+
+    /**
+     * 已经被回收的代理类
+     */
+    private final ReferenceQueue<Object> collectedProxies = new ReferenceQueue<>();
 
     /**
      * 将信息添加进 Map 中
@@ -31,24 +41,75 @@ public class ProxyMappingBuffer {
      * @throws Exception Exception
      */
     public void addProxyMap(Object proxy, Object target) throws Exception{
-        // 包含多个底层类
-        if (this.proxyMap.containsKey(proxy) && this.proxyMap.get(proxy) != target){
-            throw new Exception("Conflict \"proxy -> target\" found in ProxyMap, Class[" + proxy + "] have two target Object, one is [" + this.proxyMap.get(proxy) + "]. and another is [" + target + "]");
-        }
         // 包含代理类为 null 或底层类为 null
         if (proxy == null || target == null){
-            throw new NullPointerException((proxy == null ? "proxy" : "target") + "is null");
+            throw new NullPointerException((proxy == null ? "proxy" : "target") + " is null");
+        }
+        expungeCollected();
+        WeakReference<Object> existing = this.proxyMap.putIfAbsent(new IdentityKey(proxy, collectedProxies), new WeakReference<>(target));
+        // 包含多个底层类
+        if (existing != null && existing.get() != target){
+            throw new Exception("Conflict \"proxy -> target\" found in ProxyMap, Class[" + proxy.getClass().getName() + "] have two target Object, one is [" + existing.get() + "]. and another is [" + target + "]");
         }
-        // 正常情况
-        this.proxyMap.put(proxy, target);
     }
 
     /**
      * 根据代理类获取底层类
      * @param object 代理类
-     * @return 底层类
+     * @return 底层类, 没有缓存时为 null
      */
     public Object getTargetFromMap(Object object){
-        return this.proxyMap.get(object);
+        if (object == null){
+            return null;
+        }
+        WeakReference<Object> target = this.proxyMap.get(new IdentityKey(object, null));
+        return target == null ? null : target.get();
+    }
+
+    /**
+     * @return 缓存的映射个数, 包括还没有清理的已回收映射
+     */
+    public int size(){
+        return this.proxyMap.size();
+    }
+
+    /**
+     * 清理已经被回收的代理类的映射
+     */
+    private void expungeCollected(){
+        Reference<?> collected;
+        while ((collected = collectedProxies.poll()) != null){
+            this.proxyMap.remove(collected);
+        }
+    }
+
+    /**
+     * 按对象身份比较的弱引用 Key, 回收后仍然可以按原来的 hash 与自身从 Map 中删除
+     */
+    private static final class IdentityKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        private IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other){
+                return true;
+            }
+            if (!(other instanceof IdentityKey)){
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey) other).get();
+        }
     }
 }
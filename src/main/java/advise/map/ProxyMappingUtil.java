@@ -1,16 +1,21 @@
 package advise.map;
 
-import advise.counter.MethodCounter;
+import advise.proxy.GeneratedProxy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.aop.TargetSource;
 import org.springframework.aop.framework.AdvisedSupport;
-import org.springframework.aop.framework.AopProxy;
 import org.springframework.aop.support.AopUtils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
 
 /**
  * 功能: 映射关系工具类
+ * <p>展开成功的代理写入 {@link ProxyMappingBuffer}, 同一个代理再次展开时直接命中; 反射字段按类缓存为 MethodHandle, 不再重复查找与 setAccessible</p>
  *
  * @author unknown100name
  * @date 2021.10.06
@@ -24,12 +29,41 @@ public class ProxyMappingUtil {
      */
     private static final ProxyMappingBuffer proxyMappingBuffer = ProxyMappingBuffer.getInstance();
 
+    /**
+     * CGLIB 代理中保存 DynamicAdvisedInterceptor 的字段
+     */
+    private static final String CGLIB_CALLBACK = "CGLIB$CALLBACK_0";
+
+    /**
+     * CGLIB 代理类 -> CGLIB$CALLBACK_0 的 getter
+     */
+    private static final ClassValue<MethodHandle> CGLIB_CALLBACK_GETTERS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return findGetter(type, CGLIB_CALLBACK);
+        }
+    };
+
+    /**
+     * JdkDynamicAopProxy / DynamicAdvisedInterceptor -> advised 的 getter
+     */
+    private static final ClassValue<MethodHandle> ADVISED_GETTERS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return findGetter(type, "advised");
+        }
+    };
+
     /**
      * 获取单层代理关系
      * @param proxyObject 代理类
      * @return 底层类
      */
     private static Object getOriObject(Object proxyObject){
+        // 字节码代理引擎生成的代理类
+        if (proxyObject instanceof GeneratedProxy){
+            return ((GeneratedProxy) proxyObject).getBeanCounterTarget();
+        }
         if (!AopUtils.isAopProxy(proxyObject)){
             return proxyObject;
         }
@@ -40,118 +74,130 @@ public class ProxyMappingUtil {
             return target;
         }
 
-        // 是否被 JDK 代理
         if (AopUtils.isJdkDynamicProxy(proxyObject)){
-            return getOriObjectFromJdkProxy(proxyObject);
+            // 被 JDK 代理
+            target = getOriObjectFromJdkProxy(proxyObject);
+        }else if (AopUtils.isCglibProxy(proxyObject)){
+            // 被 CGLIB 代理
+            target = getOriObjectFromCglibProxy(proxyObject);
+        }else {
+            // 返回默认原值
+            return proxyObject;
         }
-        // 是否被 CGLIB 代理
-        if (AopUtils.isCglibProxy(proxyObject)){
-            return getOriObjectFromCglibProxy(proxyObject);
+
+        // 写入缓存, 没有展开的代理 (目标不是静态的) 每次都需要重新判断
+        if (target != null && target != proxyObject){
+            try {
+                proxyMappingBuffer.addProxyMap(proxyObject, target);
+            }catch (Exception e){
+                logger.warn("[beancounter-start] Cache proxy object[" + proxyObject.getClass() + "] fail", e);
+            }
         }
-        // 返回默认原值
-        return proxyObject;
+        return target;
     }
 
     /**
      * 获取多层底层类
+     * <p>无法展开的代理 (目标不是静态的, 或者获取失败) 停在当前这一层, 不会返回 null</p>
      * @param proxyObject 代理类
      * @return 最底层类
      */
     public static Object getFullOriObject(Object proxyObject){
-        while(AopUtils.isAopProxy(proxyObject)){
-            proxyObject = getOriObject(proxyObject);
+        while(AopUtils.isAopProxy(proxyObject) || proxyObject instanceof GeneratedProxy){
+            Object oriObject = getOriObject(proxyObject);
+            if (oriObject == null || oriObject == proxyObject){
+                break;
+            }
+            proxyObject = oriObject;
         }
         return proxyObject;
     }
 
+    /**
+     * 从代理配置中获取底层类
+     * <p>作用域代理 (request / session) / 原型 / 池化的 TargetSource 不是静态的, 每次获取都会解析或创建实例, 作用域之外还会抛出异常, 所以不展开</p>
+     * @param proxyObject 代理类
+     * @param advisedSupport 代理配置
+     * @return 底层类, 不展开时为代理类本身
+     */
+    private static Object getTarget(Object proxyObject, AdvisedSupport advisedSupport) throws Exception {
+        TargetSource targetSource = advisedSupport.getTargetSource();
+        if (targetSource == null || !targetSource.isStatic()){
+            return proxyObject;
+        }
+        return targetSource.getTarget();
+    }
+
     /**
      * 从 JDK 代理的类中获取底层类
      * @param proxyObject 代理类
      * @return 底层类
      */
     private static Object getOriObjectFromJdkProxy(Object proxyObject) {
-        Field callback = null;
-
-        try{
-            callback = proxyObject.getClass().getDeclaredField("h");
-        }catch (NoSuchFieldException e) {
-            logger.error("[beancounter-start] JDK proxy object[" + proxyObject.getClass() + "] doesn't have filed [h]", e);
-            return null;
-        }
-
-        callback.setAccessible(true);
-        AopProxy aopProxy = null;
+        // InvocationHandler 字段 h 声明在 java.lang.reflect.Proxy 中, 通过公开方法获取
+        InvocationHandler aopProxy = Proxy.getInvocationHandler(proxyObject);
+        return getOriObjectFromCallback(proxyObject, aopProxy, "h");
+    }
 
-        try {
-            aopProxy = (AopProxy) callback.get(proxyObject);
-        } catch (IllegalAccessException e) {
-            logger.error("[beancounter-start] JDK proxy object[" + proxyObject.getClass() + "]#[h] is null", e);
+    /**
+     * 从 CGLIB 代理的类中获取底层类
+     * @param proxyObject 代理类
+     * @return 底层类
+     */
+    private static Object getOriObjectFromCglibProxy(Object proxyObject) {
+        MethodHandle callback = CGLIB_CALLBACK_GETTERS.get(proxyObject.getClass());
+        if (callback == null){
             return null;
         }
 
-        Field advised = null;
-
+        Object dynamicAdvisedInterceptor;
         try {
-            advised = aopProxy.getClass().getDeclaredField("advised");
-        } catch (NoSuchFieldException e) {
-            logger.error("[beancounter-start] JDK proxy object[" + proxyObject.getClass() + "]#[h] doesn't have filed [advised]", e);
-            return null;
-        }
-
-        advised.setAccessible(true);
-        Object oriObject = null;
-
-        try {
-            oriObject = ((AdvisedSupport) advised.get(aopProxy)).getTargetSource().getTarget();
-            return oriObject;
-        } catch (Exception e) {
-            logger.error("[beancounter-start] JDK proxy object[" + proxyObject.getClass() + "]#[h]#[advised] doesn't have field [" + aopProxy + "] to get the targetSource", e);
+            dynamicAdvisedInterceptor = callback.invoke(proxyObject);
+        }catch (Throwable t){
+            logger.error("[beancounter-start] Cglib proxy object[" + proxyObject.getClass() + "]#[" + CGLIB_CALLBACK + "] read fail", t);
             return null;
         }
+        return getOriObjectFromCallback(proxyObject, dynamicAdvisedInterceptor, CGLIB_CALLBACK);
     }
 
     /**
-     * 从 CGLIB 代理的类中获取底层类
+     * 从代理的回调 (JdkDynamicAopProxy / DynamicAdvisedInterceptor) 中获取底层类
      * @param proxyObject 代理类
+     * @param callback 回调
+     * @param callbackName 回调字段名, 用于日志
      * @return 底层类
      */
-    private static Object getOriObjectFromCglibProxy(Object proxyObject) {
-        Field callback = null;
-
-        try{
-            callback = proxyObject.getClass().getDeclaredField("CGLIB$CALLBACK_0");
-        }catch (NoSuchFieldException e) {
-            logger.error("[beancounter-start] Cglib proxy object[" + proxyObject.getClass() + "] doesn't have filed [CGLIB$CALLBACK_0]", e);
+    private static Object getOriObjectFromCallback(Object proxyObject, Object callback, String callbackName){
+        if (callback == null){
+            logger.error("[beancounter-start] Proxy object[" + proxyObject.getClass() + "]#[" + callbackName + "] is null");
             return null;
         }
-
-        callback.setAccessible(true);
-        Object dynamicAdvisedInterceptor = null;
-
-        try {
-            dynamicAdvisedInterceptor = callback.get(proxyObject);
-        } catch (IllegalAccessException e) {
-            logger.error("[beancounter-start] Cglib proxy object[" + proxyObject.getClass() + "]#[CGLIB$CALLBACK_0] is null", e);
+        MethodHandle advised = ADVISED_GETTERS.get(callback.getClass());
+        if (advised == null){
             return null;
         }
 
-        Field advised = null;
-
         try {
-            advised = dynamicAdvisedInterceptor.getClass().getDeclaredField("advised");
-        } catch (NoSuchFieldException e) {
-            logger.error("[beancounter-start] Cglib proxy object[" + proxyObject.getClass() + "]#[CGLIB$CALLBACK_0] doesn't have filed [advised]", e);
+            return getTarget(proxyObject, (AdvisedSupport) advised.invoke(callback));
+        }catch (Throwable t){
+            logger.error("[beancounter-start] Proxy object[" + proxyObject.getClass() + "]#[" + callbackName + "]#[advised] doesn't have field [" + callback + "] to get the targetSource", t);
             return null;
         }
+    }
 
-        advised.setAccessible(true);
-        Object oriObject = null;
-
+    /**
+     * 查找字段并转换为 MethodHandle, 每个类只执行一次
+     * @param klass 类
+     * @param fieldName 字段名
+     * @return 字段的 getter, 字段不存在或不可访问时为 null
+     */
+    private static MethodHandle findGetter(Class<?> klass, String fieldName){
         try {
-            oriObject = ((AdvisedSupport) advised.get(dynamicAdvisedInterceptor)).getTargetSource().getTarget();
-            return oriObject;
-        } catch (Exception e) {
-            logger.error("[beancounter-start] Cglib proxy object[" + proxyObject.getClass() + "]#[CGLIB$CALLBACK_0]#[advised] doesn't have field [" + dynamicAdvisedInterceptor + "] to get the targetSource", e);
+            Field field = klass.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field);
+        }catch (Throwable t){
+            logger.error("[beancounter-start] Proxy class[" + klass + "] doesn't have accessible field [" + fieldName + "]", t);
             return null;
         }
     }
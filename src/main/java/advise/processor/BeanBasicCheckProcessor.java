@@ -2,6 +2,7 @@ package advise.processor;
 
 import advise.checker.BeanChecker;
 import advise.checker.CircularMap;
+import advise.counter.StartupReport;
 import config.BeanCounterConfig;
 import config.BeanCounterExclude;
 import org.slf4j.Logger;
@@ -10,19 +11,26 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.core.type.AnnotationMetadata;
 import org.springframework.stereotype.Component;
+import store.cache.StartupCache;
 import util.ConvertUtil;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * 功能: 第一层检查
  * <p>1. 构建 BeanWrapper</p>
  * <p>2. 扫描 DependsOn 并添加依赖关系</p>
+ * <p>Bean 定义的元数据检查互不相关, Bean 定义较多时并行分类; 分类结果最后在一个线程中统一写入依赖图和检查集合</p>
+ * <p>启动缓存命中时直接恢复上一次的检查结果与依赖关系, 不再分类</p>
  *
  * @author unknown100name
  * @date 2021.10.06
@@ -33,6 +41,11 @@ public class BeanBasicCheckProcessor implements BeanFactoryPostProcessor {
 
     private static final Logger logger = LoggerFactory.getLogger(BeanBasicCheckProcessor.class);
 
+    /**
+     * Bean 定义个数达到该值时并行分类, 较少时线程调度的开销比检查本身更大
+     */
+    private static final int PARALLEL_THRESHOLD = 512;
+
     /**
      * 依赖图
      */
@@ -40,79 +53,138 @@ public class BeanBasicCheckProcessor implements BeanFactoryPostProcessor {
 
     @Override
     public void postProcessBeanFactory(ConfigurableListableBeanFactory configurableListableBeanFactory) throws BeansException {
+        long start = System.nanoTime();
+        try {
+            check(configurableListableBeanFactory);
+        }finally {
+            StartupReport.getInstance().record(StartupReport.Phase.BASIC_CHECK, start);
+        }
+    }
+
+    private void check(ConfigurableListableBeanFactory configurableListableBeanFactory){
         // 获取所有 Bean 的名称
         String[] beanNames = configurableListableBeanFactory.getBeanDefinitionNames();
-        for (String simpleBeanName : beanNames) {
-            // SimpleBeanName 用于从 beanFactory 中获取 Bean
-            // FullBeanName 用于 beanCounter 全局唯一定位
-            String fullBeanName = ConvertUtil.convertToFullName(simpleBeanName, configurableListableBeanFactory);
-
+        if (StartupCache.getInstance().restore(beanNames, configurableListableBeanFactory)){
+            return;
+        }
+        Stream<String> stream = Arrays.stream(beanNames);
+        if (beanNames.length >= PARALLEL_THRESHOLD){
+            stream = stream.parallel();
+        }
+        // 按原有顺序返回分类结果
+        Classification[] classifications = stream
+                .map(simpleBeanName -> classify(simpleBeanName, configurableListableBeanFactory))
+                .toArray(Classification[]::new);
+
+        List<String> ignoredBeans = new ArrayList<>();
+        List<String> checkedBeans = new ArrayList<>();
+        for (Classification classification : classifications) {
             // 没有 FullBeanName
-            if (fullBeanName == null){
-                logger.info("[beancounter-start] Exclude bean[" + simpleBeanName + "] because it's not a annotatedBeanDefinition beanFactory");
-                BeanChecker.ignoredBean(simpleBeanName);
+            if (classification.fullBeanName == null){
+                logger.info("[beancounter-start] Exclude bean[" + classification.simpleBeanName + "] because " + classification.excludeReason);
+                ignoredBeans.add(classification.simpleBeanName);
                 continue;
             }
+            // Spring 注册的依赖只有简称, 记录对应关系
+            circularMap.registerBeanName(classification.simpleBeanName, classification.fullBeanName);
 
-            BeanDefinition beanDefinition = configurableListableBeanFactory.getBeanDefinition(simpleBeanName);
-            AnnotationMetadata metadata = ((AnnotatedBeanDefinition) beanDefinition).getMetadata();
-
-            // Final 类无法被 CGLIB 继承
-            if (metadata.isFinal()){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's a final class");
-                BeanChecker.ignoredBean(fullBeanName);
+            if (classification.excludeReason != null){
+                logger.info("[beancounter-start] Exclude bean[" + classification.fullBeanName + "] because " + classification.excludeReason);
+                ignoredBeans.add(classification.fullBeanName);
                 continue;
             }
 
-            // 接口和抽象类不需要扩展
-            if (metadata.isAbstract() || metadata.isInterface()){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's a abstract class or interface");
-                BeanChecker.ignoredBean(fullBeanName);
-                continue;
-            }
+            // 初始化 BeanWrapper
+            circularMap.initBeanWrapper(classification.fullBeanName);
+            // 扫描 DependsOn 信息
+            circularMap.populateDependence(classification.simpleBeanName, classification.fullBeanName, configurableListableBeanFactory);
+            // 表示自己 Checked 了这个 Bean
+            checkedBeans.add(classification.fullBeanName);
+        }
+        BeanChecker.ignoredBeans(ignoredBeans);
+        BeanChecker.checkedBeans(checkedBeans);
+        logger.info("[beancounter-start] Classified " + beanNames.length + " bean definitions, checked: " + checkedBeans.size() + ", excluded: " + ignoredBeans.size());
+    }
 
-            // 注解类不需要扩展
-            if (metadata.isAnnotation()){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's a annotation class");
-                BeanChecker.ignoredBean(fullBeanName);
-                continue;
-            }
+    /**
+     * 检查 Bean 定义的元数据, 只读取 BeanFactory, 可以并行执行
+     * @param simpleBeanName Bean 简称
+     * @param beanFactory BeanFactory
+     * @return 分类结果
+     */
+    private static Classification classify(String simpleBeanName, ConfigurableListableBeanFactory beanFactory){
+        // SimpleBeanName 用于从 beanFactory 中获取 Bean
+        // FullBeanName 用于 beanCounter 全局唯一定位
+        BeanDefinition beanDefinition;
+        try {
+            beanDefinition = beanFactory.getBeanDefinition(simpleBeanName);
+        }catch (Throwable t){
+            beanDefinition = null;
+        }
+        String fullBeanName = ConvertUtil.convertToFullName(beanDefinition);
+        if (fullBeanName == null){
+            return new Classification(simpleBeanName, null, "it's not a annotatedBeanDefinition beanFactory");
+        }
+        return new Classification(simpleBeanName, fullBeanName, excludeReason(fullBeanName, beanDefinition));
+    }
 
-            // 不是单例模式, 之后的 Bean 实例不好确定, 这里直接排除
-            if (!beanDefinition.isSingleton()){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's not a singleton class");
-                BeanChecker.ignoredBean(fullBeanName);
-                continue;
-            }
+    /**
+     * @return 排除原因, 不需要排除时为 null
+     */
+    private static String excludeReason(String fullBeanName, BeanDefinition beanDefinition){
+        AnnotationMetadata metadata = ((AnnotatedBeanDefinition) beanDefinition).getMetadata();
 
-            // 人工排除
-            if (metadata.isAnnotated(BeanCounterExclude.class.getName())){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's a manual exclude class");
-                BeanChecker.ignoredBean(fullBeanName);
-                continue;
-            }
+        // Final 类无法被 CGLIB 继承
+        if (metadata.isFinal()){
+            return "it's a final class";
+        }
 
-            // 不是我们所需要扫描的路径
-            if (!fullBeanName.startsWith(BeanCounterConfig.SCAN_PATH)){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's not a project class");
-                BeanChecker.ignoredBean(fullBeanName);
-                continue;
-            }
+        // 接口和抽象类不需要扩展
+        if (metadata.isAbstract() || metadata.isInterface()){
+            return "it's a abstract class or interface";
+        }
 
-            // BFPP 和 BPP 不需要扩展
-            if (Arrays.stream(metadata.getInterfaceNames()).anyMatch(interfaceName -> interfaceName.startsWith("BeanFactoryPostProcessor") || interfaceName.startsWith("BeanPostProcessor"))){
-                logger.info("[beancounter-start] Exclude bean[" + fullBeanName + "] because it's a BeanPostProcessor or BeanFactoryPostProcessor class");
-                BeanChecker.ignoredBean(fullBeanName);
-                continue;
-            }
+        // 注解类不需要扩展
+        if (metadata.isAnnotation()){
+            return "it's a annotation class";
+        }
 
-            // 初始化 BeanWrapper
-            circularMap.initBeanWrapper(fullBeanName);
-            // 扫描 DependsOn 信息
-            circularMap.populateDependence(simpleBeanName, fullBeanName, configurableListableBeanFactory);
-            // 表示自己 Checked 了这个 Bean
-            BeanChecker.checkedBean(fullBeanName);
+        // 人工排除
+        if (metadata.isAnnotated(BeanCounterExclude.class.getName())){
+            return "it's a manual exclude class";
+        }
+
+        // 不是我们所需要扫描的路径
+        if (!BeanCounterConfig.inScanPath(fullBeanName)){
+            return "it's not a project class";
+        }
+
+        // BFPP 和 BPP 不需要扩展
+        if (Arrays.stream(metadata.getInterfaceNames()).anyMatch(interfaceName -> interfaceName.equals(BeanFactoryPostProcessor.class.getName())
+                || interfaceName.equals(BeanPostProcessor.class.getName()))){
+            return "it's a BeanPostProcessor or BeanFactoryPostProcessor class";
+        }
+        return null;
+    }
+
+    /**
+     * Bean 定义的分类结果
+     */
+    private static final class Classification {
+
+        private final String simpleBeanName;
+
+        private final String fullBeanName;
+
+        /**
+         * 排除原因, 需要检查时为 null
+         */
+        private final String excludeReason;
 
+        private Classification(String simpleBeanName, String fullBeanName, String excludeReason) {
+            this.simpleBeanName = simpleBeanName;
+            this.fullBeanName = fullBeanName;
+            this.excludeReason = excludeReason;
         }
     }
 }
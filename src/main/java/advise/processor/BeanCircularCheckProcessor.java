@@ -2,24 +2,34 @@ package advise.processor;
 
 import advise.checker.BeanChecker;
 import advise.checker.CircularMap;
+import advise.counter.StartupReport;
 import advise.map.ProxyMappingUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
 import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
+import store.cache.StartupCache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 功能: 第二层检查:
- * <p>1. 检查循环依赖</p>
+ * <p>1. 检查循环依赖, 依赖关系来自 BeanFactory 中注册的依赖信息</p>
+ * <p>启动缓存命中时, 缓存中扫描过依赖的 Bean 不再扫描; 缓存之后才第一次创建的 Bean (懒加载 / 非单例) 照常扫描并写回缓存</p>
+ * <p>依赖关系属于 Bean 定义, 非单例 Bean 只在第一个实例创建时扫描一次</p>
  *
  * @author unknown100name
  * @date 2021.10.06
  */
 @Component
 @Order(1)
-public class BeanCircularCheckProcessor implements BeanPostProcessor {
+public class BeanCircularCheckProcessor implements BeanPostProcessor, BeanFactoryAware {
 
     private static final Logger logger = LoggerFactory.getLogger(BeanCircularCheckProcessor.class);
 
@@ -28,25 +38,76 @@ public class BeanCircularCheckProcessor implements BeanPostProcessor {
      */
     private static final CircularMap circularMap = CircularMap.getInstance();
 
+    /**
+     * 启动缓存
+     */
+    private static final StartupCache startupCache = StartupCache.getInstance();
+
+    /**
+     * 启动开销报告
+     */
+    private static final StartupReport startupReport = StartupReport.getInstance();
+
+    /**
+     * BeanFactory, 不是 ConfigurableListableBeanFactory 时为 null, 此时通过反射扫描依赖
+     */
+    private ConfigurableListableBeanFactory beanFactory;
+
+    /**
+     * 已经扫描过依赖的 Bean 简称
+     */
+    private final Set<String> populatedBeans = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        if (beanFactory instanceof ConfigurableListableBeanFactory){
+            this.beanFactory = (ConfigurableListableBeanFactory) beanFactory;
+        }
+    }
+
     @Override
     public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        long start = System.nanoTime();
+        try {
+            populate(bean, beanName);
+        }finally {
+            startupReport.record(StartupReport.Phase.CIRCULAR_CHECK, start);
+        }
+        return bean;
+    }
+
+    private void populate(Object bean, String beanName){
         // 获取内部 Bean
         Object innerBean = ProxyMappingUtil.getFullOriObject(bean);
         String fullBeanName = innerBean.getClass().getName();
 
         // 第一层就被排除掉的 Bean
         if (BeanChecker.isIgnore(fullBeanName)){
-            return bean;
+            return;
         }
 
         // 没有被 BeanBasicCheckProcessor 扫描过的 Bean, 直接排除防止循环依赖
         if (!BeanChecker.isChecked(fullBeanName)){
-            return bean;
+            return;
+        }
+
+        // 依赖关系已经从启动缓存中恢复
+        if (startupCache.isPopulated(fullBeanName)){
+            return;
+        }
+
+        // 非单例 Bean 的后续实例
+        if (!populatedBeans.add(beanName)){
+            return;
         }
 
         // 扫描 Bean 依赖
-        circularMap.populateBeanInstance(fullBeanName, innerBean);
-        return bean;
+        if (beanFactory != null){
+            circularMap.populateRegisteredDependence(beanName, fullBeanName, innerBean, beanFactory);
+        }else {
+            circularMap.populateBeanInstance(fullBeanName, innerBean);
+        }
+        startupCache.markPopulated(fullBeanName);
     }
 
     @Override
@@ -1,52 +1,137 @@
 package advise.processor;
 
+import advise.agent.BeanCounterAgent;
 import advise.checker.BeanChecker;
+import advise.counter.CallGraph;
+import advise.counter.ClassCounter;
+import advise.counter.CounterControl;
 import advise.counter.GeneralCounter;
+import advise.counter.MethodCounter;
+import advise.counter.MethodTable;
+import advise.counter.RateTracker;
+import advise.counter.SamplingController;
+import advise.counter.StartupReport;
+import advise.counter.ThrottleController;
 import advise.map.ProxyMappingUtil;
-import org.aopalliance.intercept.MethodInterceptor;
-import org.aopalliance.intercept.MethodInvocation;
+import advise.proxy.BytecodeProxyEngine;
+import advise.proxy.SpringProxyEngine;
+import config.BeanCounterConfig;
+import config.BeanCounterExclude;
+import config.ProxyEngineType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
-import store.StoreStatus;
+import store.cache.StartupCache;
 import store.database.manager.DataStoreManager;
 
 import javax.annotation.Resource;
-import java.lang.reflect.Method;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 功能: 第三层检查
  * <p>1. 检查循环依赖</p>
  * <p>2. 对通过检查的 Bean 进行包装</p>
+ * <p>3. 所有单例创建完成后写入启动缓存, 并输出启动开销报告; 之后扫描到的新依赖在应用关闭时写入</p>
+ * <p>原型 / request / session 等非单例 Bean 的每个实例都会经过这里: 同一个类的计数器只初始化与绑定一次, 代理类也只生成一次, 之后的实例只需要实例化代理</p>
  *
  * @author unknown100name
  * @date 2021.10.06
  */
 @Component
 @Order(Ordered.LOWEST_PRECEDENCE)
-public class BeanCounterProcessor implements BeanPostProcessor {
+public class BeanCounterProcessor implements BeanPostProcessor, SmartInitializingSingleton, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(BeanCounterProcessor.class);
 
     /**
      * 全局计数器
      */
-    private static final GeneralCounter generalCounter = new GeneralCounter();
+    private static final GeneralCounter generalCounter = GeneralCounter.getInstance();
 
     /**
-     * 刷盘标识, 初始化为不需要刷盘防止数据库等还没有初始化就进行刷盘
+     * 自适应降级控制器
      */
-    public static AtomicReference<StoreStatus> storeStatus = new AtomicReference<>(StoreStatus.NO_CHANGED);
+    private static final ThrottleController throttleController = new ThrottleController(generalCounter.getRegistry());
+
+    /**
+     * 运行时计数开关
+     */
+    private static final CounterControl counterControl = new CounterControl(generalCounter);
+
+    /**
+     * 启动缓存, 提供类的方法表
+     */
+    private static final StartupCache startupCache = StartupCache.getInstance();
+
+    /**
+     * 启动开销报告
+     */
+    private static final StartupReport startupReport = StartupReport.getInstance();
+
+    /**
+     * 采样控制器
+     */
+    private final SamplingController samplingController = new SamplingController(generalCounter.getRegistry(), BeanCounterConfig.SAMPLING_THRESHOLD);
+
+    /**
+     * Spring AOP 代理引擎
+     */
+    private final SpringProxyEngine springProxyEngine = new SpringProxyEngine();
+
+    /**
+     * 字节码代理引擎
+     */
+    private final BytecodeProxyEngine bytecodeProxyEngine = new BytecodeProxyEngine();
+
+    /**
+     * 底层类 -> 已经绑定好的类计数器, 非单例 Bean 的后续实例直接复用
+     */
+    private final ConcurrentHashMap<Class<?>, ClassCounter> boundCounters = new ConcurrentHashMap<>();
+
+    /**
+     * 已经输出过的包装日志, 非单例 Bean 的每个实例都会经过这里, 同一条日志只输出一次
+     */
+    private final Set<String> loggedMessages = ConcurrentHashMap.newKeySet();
 
     @Resource
     private DataStoreManager dataStoreManager;
 
+    public BeanCounterProcessor() {
+        if (BeanCounterConfig.RATE){
+            RateTracker.start(generalCounter.getRegistry(), BeanCounterConfig.TOP_CAPACITY);
+        }
+        // 调用关系统计需要在生成第一个代理之前开启, 字节码代理引擎在生成时决定是否出栈
+        if (BeanCounterConfig.CALL_GRAPH){
+            CallGraph.enable(BeanCounterConfig.CALL_GRAPH_CAPACITY, BeanCounterConfig.CALL_GRAPH_MAX_DEPTH);
+        }
+        if (BeanCounterConfig.THROTTLE){
+            throttleController.start(BeanCounterConfig.THROTTLE_RATE_THRESHOLD, BeanCounterConfig.THROTTLE_CPU_BUDGET, BeanCounterConfig.THROTTLE_SAMPLE_RATE);
+        }
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        startupCache.save();
+        if (startupReport.publish()){
+            logger.warn("[beancounter-start] Startup report\n" + startupReport);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        startupCache.save();
+    }
+
     @Override
     public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
         return bean;
@@ -54,14 +139,31 @@ public class BeanCounterProcessor implements BeanPostProcessor {
 
     @Override
     public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        long start = System.nanoTime();
+        try {
+            return process(bean);
+        }finally {
+            startupReport.record(StartupReport.Phase.COUNTER, start);
+        }
+    }
+
+    private Object process(Object bean){
         // 循环依赖检查
         // 每一次到这里都需要经过检查, 因为 BPP 和 Bean 实例注入的顺序是分离不开的, 而是交织的, 从排除循环依赖的 Log 中可以看出
+        long circularStart = System.nanoTime();
         BeanChecker.circularCheck();
+        startupReport.record(StartupReport.Phase.CIRCULAR_DETECT, circularStart);
 
         // 获取内部 Bean
         Object innerBean = ProxyMappingUtil.getFullOriObject(bean);
         String fullBeanName = innerBean.getClass().getName();
 
+        // Java Agent 已经在类加载时织入了计数代码, 不需要代理, 也不受 final / 循环依赖的限制
+        if (BeanCounterAgent.isInstrumented(fullBeanName)){
+            bindClassCounter(innerBean.getClass(), true);
+            return bean;
+        }
+
         // 第一层就被排除掉的 Bean
         if (BeanChecker.isIgnore(fullBeanName)){
             return bean;
@@ -69,69 +171,194 @@ public class BeanCounterProcessor implements BeanPostProcessor {
 
         // 没有被 BeanBasicCheckProcessor 扫描过的 Bean, 直接排除防止循环依赖
         if (!BeanChecker.isChecked(fullBeanName)){
+            // 底层类不是项目类的 JDK 代理 (例如 Spring Data Repository), 按扫描路径下的代理接口统计
+            if (bean instanceof Advised && AopUtils.isJdkDynamicProxy(bean)){
+                Class<?> proxiedInterface = findProjectInterface((Advised) bean);
+                if (proxiedInterface != null){
+                    return attachOrProxy(bean, proxiedInterface);
+                }
+            }
+            return bean;
+        }
+
+        return attachOrProxy(bean, innerBean.getClass());
+    }
+
+    /**
+     * 初始化计数器, 已经是 Spring AOP 代理的 Bean 直接加入计数 Advisor, 否则创建代理
+     * @param bean Bean
+     * @param klass 底层类, JDK 代理时为被代理的接口
+     * @return 加入了计数 Advisor 的原 Bean 或代理类
+     */
+    private Object attachOrProxy(Object bean, Class<?> klass){
+        // 在代理创建时初始化计数器并绑定到每一个方法上, 调用时不再进行任何查找
+        ClassCounter classCounter = bindClassCounter(klass, false);
+
+        // 已有代理: 加入 Advisor 链, 节省一层代理调用和一个生成类
+        if (bean instanceof Advised && !((Advised) bean).isFrozen()){
+            Advised advised = (Advised) bean;
+            if (SpringProxyEngine.isAttached(advised)){
+                return bean;
+            }
+            try {
+                springProxyEngine.attach(advised, klass, classCounter);
+                warnOnce("[beancounter-start] Attach advisors to proxied bean[" + klass.getName() + "]", null);
+                return bean;
+            }catch (Throwable t){
+                warnOnce("[beancounter-start] Attach advisors to proxied bean[" + klass.getName() + "] fail, create a new proxy", t);
+            }
+        }
+
+        // 接口无法再套一层类代理
+        if (klass.isInterface()){
+            warnOnce("[beancounter-start] Exclude bean[" + klass.getName() + "] because it's a frozen JDK proxy", null);
             return bean;
         }
 
         // 代理类
-        logger.warn("[beancounter-start] Proxy bean[" + fullBeanName + "]");
-        return getProxy(bean, methodInvocation -> counterProxy(bean, methodInvocation));
+        warnOnce("[beancounter-start] Proxy bean[" + klass.getName() + "]", null);
+        return getProxy(bean, klass, classCounter);
     }
 
     /**
-     * 获取代理类
-     * @param bean 需要被代理的类
-     * @param methodInterceptor 代理 Interceptor
-     * @return 代理类
+     * 同一条日志只输出一次, 日志内容只和类有关, 个数不会超过类个数的常数倍
+     * @param message 日志
+     * @param t 异常, 没有时为 null
+     */
+    private void warnOnce(String message, Throwable t){
+        if (loggedMessages.add(message)){
+            logger.warn(message, t);
+        }
+    }
+
+    /**
+     * 在 JDK 代理的接口中找到扫描路径下的项目接口
+     * @param advised JDK 代理
+     * @return 项目接口, 没有时为 null
+     */
+    private Class<?> findProjectInterface(Advised advised){
+        for (Class<?> proxiedInterface : advised.getProxiedInterfaces()) {
+            String interfaceName = proxiedInterface.getName();
+            if (BeanCounterConfig.inScanPath(interfaceName)
+                    && !BeanChecker.isIgnore(interfaceName)
+                    && !proxiedInterface.isAnnotationPresent(BeanCounterExclude.class)){
+                return proxiedInterface;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 初始化并绑定类计数器, 同一个类只执行一次
+     * @param klass 底层类
+     * @param instrumented 是否已经被 Java Agent 织入, 织入的方法只计数
+     * @return 类计数器
+     */
+    private ClassCounter bindClassCounter(Class<?> klass, boolean instrumented){
+        ClassCounter bound = boundCounters.get(klass);
+        if (bound != null){
+            return bound;
+        }
+        return boundCounters.computeIfAbsent(klass, key -> {
+            ClassCounter classCounter = initClassCounter(key);
+            // Java Agent 织入的类不经过代理, 计数代码通过类定位计数器
+            if (instrumented){
+                classCounter.setKlass(key);
+            }
+            bindCounters(key, classCounter, !instrumented && BeanCounterConfig.TIMING);
+            return classCounter;
+        });
+    }
+
+    /**
+     * 初始化类计数器 (同一个类只会初始化一次)
+     * @param klass 底层类
+     * @return 类计数器
+     */
+    private ClassCounter initClassCounter(Class<?> klass){
+        if (generalCounter.containsClass(klass)){
+            return generalCounter.getClassCounters().get(klass.getName());
+        }
+
+        ClassCounter classCounter = generalCounter.putIfAbsent(klass, startupCache.methodTable(klass));
+        // 数据库双向校验, 历史数据在刷盘线程中从启动时预读的数据合并, 不阻塞 Bean 创建
+        if (BeanCounterConfig.needProofreadWithDatabase() && !classCounter.isProofread()){
+            dataStoreManager.requestProofread();
+        }
+        return classCounter;
+    }
+
+    /**
+     * 为每一个可以被拦截的方法注册采样 / 耗时 / 自适应降级
+     * @param klass 底层类
+     * @param classCounter 类计数器
+     * @param timing 是否开启耗时统计, Java Agent 织入的方法只计数
      */
-    private Object getProxy(Object bean, MethodInterceptor methodInterceptor){
-        ProxyFactory proxyFactory = new ProxyFactory(bean);
-        proxyFactory.setProxyTargetClass(true);
-        proxyFactory.addAdvice(methodInterceptor);
-        return proxyFactory.getProxy();
+    private void bindCounters(Class<?> klass, ClassCounter classCounter, boolean timing){
+        int samplingRate = BeanCounterConfig.getSamplingRate(klass.getName());
+        // 重载方法共用同一个方法计数器, 只注册一次
+        Set<MethodCounter> registered = new HashSet<>();
+        // 无法拦截 private / static / final 方法, 方法表中已经排除
+        MethodTable methodTable = startupCache.methodTable(klass);
+        for (String methodName : methodTable.getBindableNames()) {
+            MethodCounter methodCounter = classCounter.getMethodCounters().get(methodName);
+            if (methodCounter == null || !registered.add(methodCounter)){
+                continue;
+            }
+            // 配置了采样率的方法达到阈值后才开始采样
+            samplingController.register(methodCounter.getId(), samplingRate);
+            // 开启耗时统计
+            if (timing){
+                methodCounter.enableTiming();
+            }
+            // 自适应降级
+            if (BeanCounterConfig.THROTTLE){
+                throttleController.register(methodCounter, klass.getName() + "#" + methodName);
+            }
+        }
+        // 运行时开关设置过的规则对新绑定的计数器同样生效
+        counterControl.applyRules(klass.getName(), classCounter);
     }
 
     /**
-     * 代理方法
+     * 获取代理类, 字节码引擎生成失败时退回 Spring AOP 引擎
      * @param bean 需要被代理的类
-     * @param methodInvocation 代理 Invocation
-     * @return 执行方法
+     * @param klass 底层类
+     * @param classCounter 类计数器
+     * @return 代理类
      */
-    private Object counterProxy(Object bean, MethodInvocation methodInvocation){
-        // 在整体方法中的任何操作, 如果发生错误, 不进行任何补救措施, 从而保障正常业务的进行
+    private Object getProxy(Object bean, Class<?> klass, ClassCounter classCounter){
+        long start = System.nanoTime();
+        Object proxy = null;
         try {
-            // 获取底层类
-            bean = ProxyMappingUtil.getFullOriObject(bean);
-            // 获取调用的类和方法
-            Class<?> klass = bean.getClass();
-            Method method = methodInvocation.getMethod();
-
-            // 如果计数器不包含当前类, 则需要更新计数器(启动时)
-            if (!generalCounter.containsClass(klass)){
-                generalCounter.put(klass);
-                // 数据库双向校验
-                dataStoreManager.proofreadWithDatabase(generalCounter, klass);
-            }
+            proxy = createProxy(bean, klass, classCounter);
+            return proxy;
+        }finally {
+            startupReport.recordProxy(klass.getName(), proxy, start);
+        }
+    }
 
+    private Object createProxy(Object bean, Class<?> klass, ClassCounter classCounter){
+        // 字节码代理引擎优先使用构建时预生成的代理类; SPRING 引擎不使用预生成的代理类, 保证配置的引擎就是实际使用的引擎
+        if (BeanCounterConfig.PROXY_ENGINE == ProxyEngineType.BYTECODE){
             try {
-                // 获取原始的方法进行更新
-                Method oriMethod = klass.getMethod(method.getName(), method.getParameterTypes());
-                generalCounter.update(klass, oriMethod);
-            }catch (Throwable ignored){
-                // 不进行任何补偿
+                return bytecodeProxyEngine.createProxy(bean, klass, classCounter);
+            }catch (Throwable t){
+                logger.warn("[beancounter-start] Generate bytecode proxy for bean[" + klass.getName() + "] fail, fall back to spring proxy", t);
             }
-
-            // 刷库标记更新
-            storeStatus.set(StoreStatus.CHANGED);
-            // 继续执行方法
-            return methodInvocation.proceed();
-        }catch (Throwable t){
-            logger.error("[beancounter-main] Update count fail in the main process!", t);
-            // FIXME: 发生错误不执行
-            return bean;
         }
+        return springProxyEngine.createProxy(bean, klass, classCounter);
     }
 
     public static GeneralCounter getGeneralCounter() {
         return generalCounter;
     }
+
+    public static ThrottleController getThrottleController() {
+        return throttleController;
+    }
+
+    public static CounterControl getCounterControl() {
+        return counterControl;
+    }
 }
@@ -0,0 +1,497 @@
+package advise.proxy;
+
+import advise.counter.CallGraph;
+import advise.counter.ClassCounter;
+import advise.counter.CounterRegistry;
+import advise.counter.MethodCounter;
+import advise.interceptor.CounterSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.Label;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.asm.Type;
+import org.springframework.cglib.core.ReflectUtils;
+import org.springframework.objenesis.SpringObjenesis;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 功能: 字节码代理引擎, 为每一个 Bean 类型生成一个委托子类
+ * <p>Bean 在进入 BeanPostProcessor 时已经完成初始化, 所以生成的子类不调用 super.method(), 而是持有原 Bean 并直接调用 target.method()</p>
+ * <p>计数槽 id 以常量写入字节码, 每个方法的调用过程为:</p>
+ * <p>1. CounterSupport.enter(registry, id)</p>
+ * <p>2. target.method(args)</p>
+ * <p>3. CounterSupport.exit(methodCounter, start), 只有方法计数槽或开启了调用关系统计时需要</p>
+ * <p>调用过程中不会创建 MethodInvocation, 也不会经过拦截器链</p>
+ * <p>代理类定义在原类的包与 ClassLoader 中, 从而可以覆盖包级私有方法; 实例通过 Objenesis 创建, 不会执行构造方法</p>
+ * <p>构建时可以用 {@link ProxyPregenerator} 预生成代理类 (类名 + {@link #PREGENERATED_SUFFIX}): 计数槽 id 在运行时才分配, 所以预生成的代理类从静态 id 表中读取,
+ * 方法表与方法签名以常量写入; 运行时只需要填写 id 表, 签名与当前的类不一致 (类在预生成之后被修改) 时退回运行时生成</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class BytecodeProxyEngine implements ProxyEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(BytecodeProxyEngine.class);
+
+    /**
+     * 代理类名后缀
+     */
+    private static final String PROXY_SUFFIX = "$$BeanCounterProxy$$";
+
+    private static final String TARGET_FIELD = "$$target";
+
+    private static final String REGISTRY_FIELD = "$$registry";
+
+    private static final String COUNTERS_FIELD = "$$counters";
+
+    /**
+     * 预生成代理类名后缀
+     */
+    static final String PREGENERATED_SUFFIX = "$$BeanCounterAot";
+
+    /**
+     * 预生成代理类的计数槽 id 表, 下标与方法表一致
+     */
+    private static final String IDS_FIELD = "$$ids";
+
+    /**
+     * 预生成代理类的方法表: 方法名用 , 分隔, 继承而来的方法为 *
+     */
+    private static final String METHODS_FIELD = "$$methods";
+
+    /**
+     * 预生成代理类的方法签名, 用于判断类在预生成之后是否被修改
+     */
+    private static final String SIGNATURE_FIELD = "$$signature";
+
+    /**
+     * 方法表中继承而来的方法, 只统计类调用次数
+     */
+    private static final String INHERITED = "*";
+
+    private static final String SUPPORT = Type.getInternalName(CounterSupport.class);
+
+    private static final String REGISTRY_DESC = Type.getDescriptor(CounterRegistry.class);
+
+    private static final String COUNTERS_DESC = Type.getDescriptor(MethodCounter[].class);
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * 底层类 -> 代理类, 同一个类的计数器只会初始化一次, 所以代理类可以复用
+     */
+    private final ConcurrentHashMap<Class<?>, Class<?>> proxyClasses = new ConcurrentHashMap<>();
+
+    /**
+     * 没有可用的预生成代理类的底层类, 不再重复查找
+     */
+    private final Set<Class<?>> notPregenerated = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 代理类 -> 保存底层 Bean 的字段, 非单例 Bean 的每个实例都需要写入
+     */
+    private final ConcurrentHashMap<Class<?>, Field> targetFields = new ConcurrentHashMap<>();
+
+    private final SpringObjenesis objenesis = new SpringObjenesis();
+
+    @Override
+    public Object createProxy(Object bean, Class<?> klass, ClassCounter classCounter) throws Exception {
+        Class<?> proxyClass = proxyClasses.get(klass);
+        if (proxyClass == null){
+            proxyClass = bindPregenerated(klass, classCounter);
+            if (proxyClass == null){
+                proxyClass = defineProxyClass(klass, classCounter);
+            }
+            Class<?> existing = proxyClasses.putIfAbsent(klass, proxyClass);
+            if (existing != null){
+                proxyClass = existing;
+            }
+        }
+        return instantiate(proxyClass, bean);
+    }
+
+    private Object instantiate(Class<?> proxyClass, Object bean) throws Exception {
+        Object proxy = objenesis.newInstance(proxyClass);
+        Field target = targetFields.get(proxyClass);
+        if (target == null){
+            target = proxyClass.getDeclaredField(TARGET_FIELD);
+            target.setAccessible(true);
+            targetFields.putIfAbsent(proxyClass, target);
+        }
+        target.set(proxy, bean);
+        return proxy;
+    }
+
+    /**
+     * 生成并定义代理类, 同时写入注册表与方法计数器
+     */
+    private Class<?> defineProxyClass(Class<?> klass, ClassCounter classCounter) throws Exception {
+        if (Modifier.isFinal(klass.getModifiers())){
+            throw new IllegalArgumentException("Class[" + klass.getName() + "] is final");
+        }
+
+        String proxyName = klass.getName() + PROXY_SUFFIX + sequence.getAndIncrement();
+        List<MethodCounter> counters = new ArrayList<>();
+        byte[] bytecode = generate(klass, proxyName, classCounter, counters);
+
+        // 代理类与被代理类在同一个包中, 传入被代理类作为上下文, JDK 16+ 没有开放 java.lang 时通过 privateLookupIn(klass).defineClass 定义
+        Class<?> proxyClass = ReflectUtils.defineClass(proxyName, bytecode, klass.getClassLoader(), klass.getProtectionDomain(), klass);
+        setStatic(proxyClass, REGISTRY_FIELD, classCounter.getRegistry());
+        setStatic(proxyClass, COUNTERS_FIELD, counters.toArray(new MethodCounter[0]));
+        return proxyClass;
+    }
+
+    /**
+     * 查找预生成的代理类并填写计数槽 id 表, 同一个底层类只会填写一次
+     * @return 预生成的代理类, 没有或者已经过期时为 null
+     */
+    private Class<?> bindPregenerated(Class<?> klass, ClassCounter classCounter) throws Exception {
+        if (notPregenerated.contains(klass)){
+            return null;
+        }
+        Class<?> proxyClass;
+        try {
+            proxyClass = Class.forName(klass.getName() + PREGENERATED_SUFFIX, false, klass.getClassLoader());
+        }catch (ClassNotFoundException | LinkageError e){
+            notPregenerated.add(klass);
+            return null;
+        }
+        if (proxyClass.getSuperclass() != klass || !GeneratedProxy.class.isAssignableFrom(proxyClass)
+                || !signature(collectMethods(klass)).equals(proxyClass.getField(SIGNATURE_FIELD).get(null))){
+            logger.warn("[beancounter-start] Pregenerated proxy for bean[" + klass.getName() + "] is stale, generate it at runtime");
+            notPregenerated.add(klass);
+            return null;
+        }
+
+        String table = (String) proxyClass.getField(METHODS_FIELD).get(null);
+        String[] methodNames = table.isEmpty() ? new String[0] : table.split(",");
+        int[] ids = new int[methodNames.length];
+        MethodCounter[] counters = new MethodCounter[methodNames.length];
+        for (int i = 0; i < methodNames.length; i++) {
+            MethodCounter methodCounter = INHERITED.equals(methodNames[i]) ? null : classCounter.getMethodCounters().get(methodNames[i]);
+            ids[i] = methodCounter == null ? classCounter.getId() : methodCounter.getId();
+            counters[i] = methodCounter;
+        }
+        setStatic(proxyClass, REGISTRY_FIELD, classCounter.getRegistry());
+        setStatic(proxyClass, COUNTERS_FIELD, counters);
+        setStatic(proxyClass, IDS_FIELD, ids);
+        return proxyClass;
+    }
+
+    /**
+     * 生成预生成代理类的字节码, 不依赖计数器, 可以在构建时执行
+     * @param klass 底层类
+     * @return 字节码, 类名为 底层类名 + {@link #PREGENERATED_SUFFIX}
+     */
+    static byte[] generatePregenerated(Class<?> klass){
+        String owner = (klass.getName() + PREGENERATED_SUFFIX).replace('.', '/');
+        String superName = Type.getInternalName(klass);
+        String targetDesc = Type.getDescriptor(klass);
+        ClassWriter classWriter = begin(klass, owner);
+        classWriter.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, IDS_FIELD, "[I", null, null).visitEnd();
+
+        List<Method> methods = collectMethods(klass);
+        List<String> methodNames = new ArrayList<>();
+        for (Method method : methods) {
+            int index = -1;
+            if (method.getDeclaringClass() == klass){
+                index = methodNames.size();
+                methodNames.add(method.getName());
+            }else if (Modifier.isPublic(method.getModifiers())){
+                index = methodNames.size();
+                methodNames.add(INHERITED);
+            }
+            generateMethod(classWriter, owner, superName, targetDesc, method, index, index, true);
+        }
+
+        classWriter.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, METHODS_FIELD, "Ljava/lang/String;", null,
+                String.join(",", methodNames)).visitEnd();
+        classWriter.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, SIGNATURE_FIELD, "Ljava/lang/String;", null,
+                signature(methods)).visitEnd();
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * 方法签名排序后再计算摘要, getDeclaredMethods() 的顺序没有保证, 构建时与运行时的 JVM 可能不同
+     * @return 需要覆盖的方法的签名摘要, 方法或者父类发生变化时改变
+     */
+    private static String signature(List<Method> methods){
+        try {
+            List<String> signatures = new ArrayList<>(methods.size());
+            for (Method method : methods) {
+                signatures.add(method.getDeclaringClass().getName() + "#" + method.getName() + Type.getMethodDescriptor(method) + ":" + method.getModifiers());
+            }
+            Collections.sort(signatures);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String signature : signatures) {
+                digest.update((signature + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setStatic(Class<?> proxyClass, String name, Object value) throws Exception {
+        Field field = proxyClass.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    /**
+     * 生成代理类字节码
+     * @param klass 底层类
+     * @param proxyName 代理类名
+     * @param classCounter 类计数器
+     * @param counters 输出: 需要统计耗时的方法计数器, 下标写入字节码
+     * @return 字节码
+     */
+    private static byte[] generate(Class<?> klass, String proxyName, ClassCounter classCounter, List<MethodCounter> counters){
+        String owner = proxyName.replace('.', '/');
+        String superName = Type.getInternalName(klass);
+        String targetDesc = Type.getDescriptor(klass);
+        ClassWriter classWriter = begin(klass, owner);
+
+        for (Method method : collectMethods(klass)) {
+            MethodCounter methodCounter = null;
+            int id = -1;
+            if (method.getDeclaringClass() == klass){
+                // 声明的方法统计到方法计数槽
+                methodCounter = classCounter.getMethodCounters().get(method.getName());
+                if (methodCounter != null){
+                    id = methodCounter.getId();
+                }
+            }else if (Modifier.isPublic(method.getModifiers())){
+                // 继承而来的 public 方法只统计类调用次数
+                id = classCounter.getId();
+            }
+
+            int counterIndex = -1;
+            if (methodCounter != null){
+                counterIndex = counters.size();
+                counters.add(methodCounter);
+            }
+            generateMethod(classWriter, owner, superName, targetDesc, method, id, counterIndex, false);
+        }
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * 生成类头: 委托字段 / 注册表 / 方法计数器 与 GeneratedProxy#getBeanCounterTarget
+     * @param klass 底层类
+     * @param owner 代理类内部类名
+     * @return ClassWriter
+     */
+    private static ClassWriter begin(Class<?> klass, String owner){
+        String superName = Type.getInternalName(klass);
+        String targetDesc = Type.getDescriptor(klass);
+
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES){
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                // 只在异常处理处合并栈帧, 不需要加载业务类
+                return "java/lang/Object";
+            }
+        };
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC, owner, null, superName,
+                new String[]{Type.getInternalName(GeneratedProxy.class)});
+        classWriter.visitField(Opcodes.ACC_PRIVATE, TARGET_FIELD, targetDesc, null, null).visitEnd();
+        classWriter.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, REGISTRY_FIELD, REGISTRY_DESC, null, null).visitEnd();
+        classWriter.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, COUNTERS_FIELD, COUNTERS_DESC, null, null).visitEnd();
+
+        // GeneratedProxy#getBeanCounterTarget
+        MethodVisitor getter = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "getBeanCounterTarget", "()Ljava/lang/Object;", null, null);
+        getter.visitCode();
+        getter.visitVarInsn(Opcodes.ALOAD, 0);
+        getter.visitFieldInsn(Opcodes.GETFIELD, owner, TARGET_FIELD, targetDesc);
+        getter.visitInsn(Opcodes.ARETURN);
+        getter.visitMaxs(0, 0);
+        getter.visitEnd();
+
+        return classWriter;
+    }
+
+    /**
+     * 生成一个委托方法
+     * @param id 计数槽 id (预生成时为 id 表下标), 小于 0 时只委托不计数
+     * @param counterIndex 方法计数器下标, 小于 0 时不统计耗时
+     * @param pregenerated 是否预生成: 计数槽 id 从 id 表中读取; 调用关系统计在运行时才确定, 所以计数的方法都需要出栈
+     */
+    private static void generateMethod(ClassWriter classWriter, String owner, String superName, String targetDesc,
+                                       Method method, int id, int counterIndex, boolean pregenerated){
+        String descriptor = Type.getMethodDescriptor(method);
+        int access = method.getModifiers() & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED);
+        String[] exceptions = null;
+        if (method.getExceptionTypes().length > 0){
+            exceptions = new String[method.getExceptionTypes().length];
+            for (int i = 0; i < exceptions.length; i++) {
+                exceptions[i] = Type.getInternalName(method.getExceptionTypes()[i]);
+            }
+        }
+
+        MethodVisitor mv = classWriter.visitMethod(access, method.getName(), descriptor, null, exceptions);
+        mv.visitCode();
+
+        // 参数之后的局部变量用于保存开始时间
+        Type[] argumentTypes = Type.getArgumentTypes(method);
+        int startSlot = 1;
+        for (Type argumentType : argumentTypes) {
+            startSlot += argumentType.getSize();
+        }
+
+        // 方法计数槽需要记录耗时, 开启调用关系统计时所有计数的方法都需要出栈
+        boolean exit = id >= 0 && (pregenerated || counterIndex >= 0 || CallGraph.isEnabled());
+        if (id >= 0){
+            mv.visitFieldInsn(Opcodes.GETSTATIC, owner, REGISTRY_FIELD, REGISTRY_DESC);
+            if (pregenerated){
+                mv.visitFieldInsn(Opcodes.GETSTATIC, owner, IDS_FIELD, "[I");
+                pushInt(mv, id);
+                mv.visitInsn(Opcodes.IALOAD);
+            }else {
+                pushInt(mv, id);
+            }
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, "enter", "(" + REGISTRY_DESC + "I)J", false);
+            if (exit){
+                mv.visitVarInsn(Opcodes.LSTORE, startSlot);
+            }else {
+                mv.visitInsn(Opcodes.POP2);
+            }
+        }
+
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label handler = new Label();
+        if (exit){
+            mv.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+        }
+
+        // target.method(args)
+        mv.visitLabel(tryStart);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, TARGET_FIELD, targetDesc);
+        int slot = 1;
+        for (Type argumentType : argumentTypes) {
+            mv.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), slot);
+            slot += argumentType.getSize();
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, superName, method.getName(), descriptor, false);
+        mv.visitLabel(tryEnd);
+
+        if (exit){
+            generateExit(mv, owner, counterIndex, startSlot);
+        }
+        mv.visitInsn(Type.getReturnType(method).getOpcode(Opcodes.IRETURN));
+
+        // 抛出异常的调用同样记录耗时 / 出栈, 异常原样抛出
+        if (exit){
+            mv.visitLabel(handler);
+            generateExit(mv, owner, counterIndex, startSlot);
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * CounterSupport.exit(counters[counterIndex], start), 没有方法计数器时传入 null (预生成的代理类中对应的元素为 null)
+     */
+    private static void generateExit(MethodVisitor mv, String owner, int counterIndex, int startSlot){
+        if (counterIndex >= 0){
+            mv.visitFieldInsn(Opcodes.GETSTATIC, owner, COUNTERS_FIELD, COUNTERS_DESC);
+            pushInt(mv, counterIndex);
+            mv.visitInsn(Opcodes.AALOAD);
+        }else {
+            mv.visitInsn(Opcodes.ACONST_NULL);
+        }
+        mv.visitVarInsn(Opcodes.LLOAD, startSlot);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, "exit", "(" + Type.getDescriptor(MethodCounter.class) + "J)V", false);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value){
+        if (value >= -1 && value <= 5){
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        }else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        }else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        }else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * 收集需要覆盖的方法, 子类中的方法优先
+     * <p>跳过 static / private / final / 桥接方法, Object 中声明的方法 (与 Spring AOP 引擎一致), 以及其他包中父类的非 public 方法 (无法在代理类中访问)</p>
+     * <p>没有被覆盖的桥接方法会调用到代理类中对应的方法, 所以依然会被统计</p>
+     * @param klass 底层类
+     * @return 需要覆盖的方法
+     */
+    static List<Method> collectMethods(Class<?> klass){
+        Map<String, Method> methods = new LinkedHashMap<>();
+        Set<String> skipped = new HashSet<>();
+        String packageName = packageOf(klass);
+
+        // Object 中的方法 (equals / hashCode / toString 等) 不覆盖, 与 Spring AOP 引擎的继承方法切点一致; 类自己覆盖的照常统计
+        for (Class<?> current = klass; current != null && current != Object.class; current = current.getSuperclass()) {
+            boolean samePackage = packageName.equals(packageOf(current)) && current.getClassLoader() == klass.getClassLoader();
+            for (Method method : current.getDeclaredMethods()) {
+                int modifiers = method.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isPrivate(modifiers)){
+                    continue;
+                }
+                String key = method.getName() + Type.getMethodDescriptor(method);
+                if (methods.containsKey(key) || skipped.contains(key)){
+                    continue;
+                }
+                if (Modifier.isFinal(modifiers) || method.isBridge() || method.isSynthetic() || Modifier.isAbstract(modifiers)
+                        || (!Modifier.isPublic(modifiers) && !samePackage)){
+                    skipped.add(key);
+                    continue;
+                }
+                methods.put(key, method);
+            }
+        }
+
+        // 接口默认方法
+        for (Method method : klass.getMethods()) {
+            if (method.isDefault()){
+                String key = method.getName() + Type.getMethodDescriptor(method);
+                if (!methods.containsKey(key) && !skipped.contains(key)){
+                    methods.put(key, method);
+                }
+            }
+        }
+        return new ArrayList<>(methods.values());
+    }
+
+    private static String packageOf(Class<?> klass){
+        String name = klass.getName();
+        int index = name.lastIndexOf('.');
+        return index < 0 ? "" : name.substring(0, index);
+    }
+}
@@ -0,0 +1,15 @@
+package advise.proxy;
+
+/**
+ * 功能: 字节码代理引擎生成的代理类都会实现该接口, 用于找回被代理的 Bean
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public interface GeneratedProxy {
+
+    /**
+     * @return 被代理的 Bean
+     */
+    Object getBeanCounterTarget();
+}
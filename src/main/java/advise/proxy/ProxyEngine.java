@@ -0,0 +1,22 @@
+package advise.proxy;
+
+import advise.counter.ClassCounter;
+
+/**
+ * 功能: 代理引擎, 为 Bean 创建绑定好计数器的代理
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public interface ProxyEngine {
+
+    /**
+     * 创建代理
+     * @param bean 需要被代理的 Bean (可能本身就是代理类)
+     * @param klass 底层类
+     * @param classCounter 类计数器, 方法计数器已经初始化完成
+     * @return 代理类
+     * @throws Exception 创建失败
+     */
+    Object createProxy(Object bean, Class<?> klass, ClassCounter classCounter) throws Exception;
+}
@@ -0,0 +1,93 @@
+package advise.proxy;
+
+import config.BeanCounterExclude;
+import config.PackageMatcher;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 功能: 构建时预生成代理类, 运行时直接实例化, 不再生成 CGLIB / 字节码代理类
+ * <p>扫描编译输出目录中扫描路径下的 @Component (包括 @Service / @Repository / @Controller 等) 类, 在同一个目录中写入 类名 + $$BeanCounterAot.class,
+ * 打包时与业务类位于同一个包和 ClassLoader 中</p>
+ * <p>运行方式: java -cp (编译输出目录 + 业务依赖 + beancounter 依赖) advise.proxy.ProxyPregenerator [编译输出目录] [扫描路径]</p>
+ * <p>Maven 中可以用 exec-maven-plugin 在 process-classes 阶段执行; 扫描路径的格式与 beancounter.path 相同; 只有 beancounter.proxy-engine 为 BYTECODE 时运行时才会使用</p>
+ * <p>没有预生成的类 (例如 @Bean 方法创建的 Bean) 或预生成之后被修改过的类在运行时照常生成代理</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class ProxyPregenerator {
+
+    public static void main(String[] args) throws Exception {
+        Path classesDirectory = Paths.get(args.length > 0 ? args[0] : "target/classes");
+        PackageMatcher scanMatcher = PackageMatcher.compile(args.length > 1 ? args[1] : System.getProperty("beancounter.path"));
+        if (scanMatcher.isEmpty()){
+            System.err.println("No scan path, usage: ProxyPregenerator [classes directory] [scan path]");
+            return;
+        }
+
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        int generated = 0;
+        int skipped = 0;
+        for (String className : listClasses(classesDirectory)) {
+            if (!scanMatcher.matches(className)){
+                continue;
+            }
+            Class<?> klass;
+            try {
+                klass = Class.forName(className, false, classLoader);
+            }catch (Throwable t){
+                System.err.println("Skip class[" + className + "] because it can't be loaded: " + t);
+                skipped++;
+                continue;
+            }
+            if (!isProxyable(klass)){
+                continue;
+            }
+            try {
+                Path output = classesDirectory.resolve((className + BytecodeProxyEngine.PREGENERATED_SUFFIX).replace('.', '/') + ".class");
+                Files.write(output, BytecodeProxyEngine.generatePregenerated(klass));
+                generated++;
+            }catch (Throwable t){
+                System.err.println("Skip class[" + className + "] because generate proxy fail: " + t);
+                skipped++;
+            }
+        }
+        System.out.println("Pregenerated proxies: " + generated + ", skipped: " + skipped + ", scan path: " + scanMatcher);
+    }
+
+    /**
+     * @return 编译输出目录中的类名, 不包括已经生成的代理类
+     */
+    private static List<String> listClasses(Path classesDirectory) throws IOException {
+        try (Stream<Path> paths = Files.walk(classesDirectory)){
+            return paths.filter(path -> path.toString().endsWith(".class"))
+                    .map(path -> classesDirectory.relativize(path).toString())
+                    .map(name -> name.substring(0, name.length() - ".class".length()).replace('\\', '.').replace('/', '.'))
+                    .filter(name -> !name.contains("$$") && !name.endsWith("package-info") && !name.endsWith("module-info"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * 与 BeanBasicCheckProcessor 的检查保持一致: 只有可以被继承的具体组件类才会被代理
+     */
+    private static boolean isProxyable(Class<?> klass){
+        int modifiers = klass.getModifiers();
+        if (klass.isInterface() || klass.isAnnotation() || klass.isEnum() || klass.isAnonymousClass() || klass.isLocalClass()
+                || Modifier.isAbstract(modifiers) || Modifier.isFinal(modifiers)
+                || (klass.isMemberClass() && !Modifier.isStatic(modifiers))){
+            return false;
+        }
+        return AnnotationUtils.findAnnotation(klass, Component.class) != null && !klass.isAnnotationPresent(BeanCounterExclude.class);
+    }
+}
@@ -0,0 +1,99 @@
+package advise.proxy;
+
+import advise.counter.ClassCounter;
+import advise.counter.MethodCounter;
+import advise.interceptor.CounterInterceptor;
+import advise.interceptor.CounterPointcut;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 功能: Spring AOP 代理引擎, 使用 ProxyFactory + CGLIB 创建代理
+ * <p>每次调用经过 CglibAopProxy -> ReflectiveMethodInvocation -> 拦截器链</p>
+ * <p>已经是 Spring AOP 代理的 Bean 直接加入 Advisor 链, 见 {@link #attach}</p>
+ * <p>同一个类的 Advisor 只构建一次, 非单例 Bean 的每个实例共用同一组 Advisor, CGLIB 因此复用同一个代理类, 每个实例只需要实例化代理</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class SpringProxyEngine implements ProxyEngine {
+
+    /**
+     * 底层类 -> 绑定好计数器的 Advisor, 同一个类的计数器只会初始化一次
+     */
+    private final ConcurrentHashMap<Class<?>, List<Advisor>> advisorCache = new ConcurrentHashMap<>();
+
+    @Override
+    public Object createProxy(Object bean, Class<?> klass, ClassCounter classCounter) {
+        ProxyFactory proxyFactory = new ProxyFactory(bean);
+        proxyFactory.setProxyTargetClass(true);
+        for (Advisor advisor : getAdvisors(klass, classCounter)) {
+            proxyFactory.addAdvisor(advisor);
+        }
+        return proxyFactory.getProxy();
+    }
+
+    /**
+     * 将计数 Advisor 加到已有代理 Advisor 链的最前面, 不再额外套一层代理
+     * <p>计数处于最外层, 与套一层代理时的统计口径一致</p>
+     * @param advised 已有的 Spring AOP 代理 (CGLIB 或 JDK 代理)
+     * @param klass 底层类, JDK 代理时为被代理的接口
+     * @param classCounter 类计数器
+     */
+    public void attach(Advised advised, Class<?> klass, ClassCounter classCounter){
+        List<Advisor> advisors = getAdvisors(klass, classCounter);
+        for (int i = 0; i < advisors.size(); i++) {
+            advised.addAdvisor(i, advisors.get(i));
+        }
+    }
+
+    /**
+     * @param advised 已有的 Spring AOP 代理
+     * @return 是否已经加入过计数 Advisor
+     */
+    public static boolean isAttached(Advised advised){
+        for (Advisor advisor : advised.getAdvisors()) {
+            if (advisor.getAdvice() instanceof CounterInterceptor){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 为每一个可以被拦截的方法构建绑定好计数器的 Advisor
+     * @param klass 底层类
+     * @param classCounter 类计数器
+     * @return Advisor 列表
+     */
+    private List<Advisor> getAdvisors(Class<?> klass, ClassCounter classCounter){
+        return advisorCache.computeIfAbsent(klass, key -> buildAdvisors(key, classCounter));
+    }
+
+    private List<Advisor> buildAdvisors(Class<?> klass, ClassCounter classCounter){
+        List<Advisor> advisors = new ArrayList<>();
+        for (Method method : klass.getDeclaredMethods()) {
+            int modifiers = method.getModifiers();
+            // CGLIB 无法拦截 private / static / final 方法
+            if (Modifier.isPrivate(modifiers) || Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)){
+                continue;
+            }
+            MethodCounter methodCounter = classCounter.getMethodCounters().get(method.getName());
+            if (methodCounter == null){
+                continue;
+            }
+            advisors.add(new DefaultPointcutAdvisor(CounterPointcut.forMethod(klass, method), new CounterInterceptor(methodCounter.getRegistry(), methodCounter.getId(), methodCounter)));
+        }
+        // 继承而来的 public 方法只统计类调用次数
+        advisors.add(new DefaultPointcutAdvisor(CounterPointcut.forInherited(klass), new CounterInterceptor(classCounter.getRegistry(), classCounter.getId())));
+        return advisors;
+    }
+}
@@ -28,7 +28,7 @@ public class BeanCounterParam {
     private Integer maxCount;
 
     /**
-     * 排序方法
+     * 排序方法: alpha / count / rate (最近 1 分钟调用频率倒序)
      */
     private String order;
 
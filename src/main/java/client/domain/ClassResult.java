@@ -19,11 +19,39 @@ public class ClassResult {
      */
     private Long count;
 
+    /**
+     * 类调用次数误差 (95% 置信区间半宽), 采样计数时才有, 精确计数时为 null
+     */
+    private Long countError;
+
     /**
      * 类最新调用时间 (ms)
      */
     private Long lastCallTime;
 
+    /**
+     * 最近一秒的调用次数, 没有开启调用频率统计时为 null
+     */
+    private Long currentRate;
+
+    /**
+     * 最近 1 / 5 / 15 分钟的调用次数, 没有开启调用频率统计时为 null
+     */
+    private Long count1m;
+
+    private Long count5m;
+
+    private Long count15m;
+
+    /**
+     * 最近 1 / 5 / 15 分钟的平均调用频率 (次/s), 没有开启调用频率统计时为 null
+     */
+    private Double rate1m;
+
+    private Double rate5m;
+
+    private Double rate15m;
+
     /**
      * 类下属方法计数器查询结果
      */
@@ -45,6 +73,14 @@ public class ClassResult {
         this.count = count;
     }
 
+    public Long getCountError() {
+        return countError;
+    }
+
+    public void setCountError(Long countError) {
+        this.countError = countError;
+    }
+
     public Long getLastCallTime() {
         return lastCallTime;
     }
@@ -53,6 +89,62 @@ public class ClassResult {
         this.lastCallTime = lastCallTime;
     }
 
+    public Long getCurrentRate() {
+        return currentRate;
+    }
+
+    public void setCurrentRate(Long currentRate) {
+        this.currentRate = currentRate;
+    }
+
+    public Long getCount1m() {
+        return count1m;
+    }
+
+    public void setCount1m(Long count1m) {
+        this.count1m = count1m;
+    }
+
+    public Long getCount5m() {
+        return count5m;
+    }
+
+    public void setCount5m(Long count5m) {
+        this.count5m = count5m;
+    }
+
+    public Long getCount15m() {
+        return count15m;
+    }
+
+    public void setCount15m(Long count15m) {
+        this.count15m = count15m;
+    }
+
+    public Double getRate1m() {
+        return rate1m;
+    }
+
+    public void setRate1m(Double rate1m) {
+        this.rate1m = rate1m;
+    }
+
+    public Double getRate5m() {
+        return rate5m;
+    }
+
+    public void setRate5m(Double rate5m) {
+        this.rate5m = rate5m;
+    }
+
+    public Double getRate15m() {
+        return rate15m;
+    }
+
+    public void setRate15m(Double rate15m) {
+        this.rate15m = rate15m;
+    }
+
     public List<MethodResult> getMethodResultList() {
         return methodResultList;
     }
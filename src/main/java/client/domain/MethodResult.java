@@ -17,11 +17,59 @@ public class MethodResult {
      */
     private Long count;
 
+    /**
+     * 方法调用次数误差 (95% 置信区间半宽), 采样计数时才有, 精确计数时为 null
+     */
+    private Long countError;
+
     /**
      * 方法最新调用时间 (ms)
      */
     private Long lastCallTime;
 
+    /**
+     * 方法耗时中位数 (ns), 没有开启耗时统计时为 null
+     */
+    private Long p50Latency;
+
+    /**
+     * 方法耗时 99 分位数 (ns), 没有开启耗时统计时为 null
+     */
+    private Long p99Latency;
+
+    /**
+     * 方法最大耗时 (ns), 没有开启耗时统计时为 null
+     */
+    private Long maxLatency;
+
+    /**
+     * 方法当前计数模式, 例如 TIMING,COUNT / COUNT / SAMPLED(1/100)
+     */
+    private String mode;
+
+    /**
+     * 最近一秒的调用次数, 没有开启调用频率统计时为 null
+     */
+    private Long currentRate;
+
+    /**
+     * 最近 1 / 5 / 15 分钟的调用次数, 没有开启调用频率统计时为 null
+     */
+    private Long count1m;
+
+    private Long count5m;
+
+    private Long count15m;
+
+    /**
+     * 最近 1 / 5 / 15 分钟的平均调用频率 (次/s), 没有开启调用频率统计时为 null
+     */
+    private Double rate1m;
+
+    private Double rate5m;
+
+    private Double rate15m;
+
     public MethodResult(String methodName, Long count, Long lastCallTime) {
         this.methodName = methodName;
         this.count = count;
@@ -44,6 +92,14 @@ public class MethodResult {
         this.count = count;
     }
 
+    public Long getCountError() {
+        return countError;
+    }
+
+    public void setCountError(Long countError) {
+        this.countError = countError;
+    }
+
     public Long getLastCallTime() {
         return lastCallTime;
     }
@@ -51,4 +107,92 @@ public class MethodResult {
     public void setLastCallTime(Long lastCallTime) {
         this.lastCallTime = lastCallTime;
     }
+
+    public Long getP50Latency() {
+        return p50Latency;
+    }
+
+    public void setP50Latency(Long p50Latency) {
+        this.p50Latency = p50Latency;
+    }
+
+    public Long getP99Latency() {
+        return p99Latency;
+    }
+
+    public void setP99Latency(Long p99Latency) {
+        this.p99Latency = p99Latency;
+    }
+
+    public Long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public void setMaxLatency(Long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public Long getCurrentRate() {
+        return currentRate;
+    }
+
+    public void setCurrentRate(Long currentRate) {
+        this.currentRate = currentRate;
+    }
+
+    public Long getCount1m() {
+        return count1m;
+    }
+
+    public void setCount1m(Long count1m) {
+        this.count1m = count1m;
+    }
+
+    public Long getCount5m() {
+        return count5m;
+    }
+
+    public void setCount5m(Long count5m) {
+        this.count5m = count5m;
+    }
+
+    public Long getCount15m() {
+        return count15m;
+    }
+
+    public void setCount15m(Long count15m) {
+        this.count15m = count15m;
+    }
+
+    public Double getRate1m() {
+        return rate1m;
+    }
+
+    public void setRate1m(Double rate1m) {
+        this.rate1m = rate1m;
+    }
+
+    public Double getRate5m() {
+        return rate5m;
+    }
+
+    public void setRate5m(Double rate5m) {
+        this.rate5m = rate5m;
+    }
+
+    public Double getRate15m() {
+        return rate15m;
+    }
+
+    public void setRate15m(Double rate15m) {
+        this.rate15m = rate15m;
+    }
 }
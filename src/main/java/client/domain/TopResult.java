@@ -0,0 +1,68 @@
+package client.domain;
+
+/**
+ * 功能: 返回结果中使用, 调用次数前 N 名查询结果
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class TopResult {
+
+    /**
+     * 名称: 类名 或 类名#方法名
+     */
+    private String name;
+
+    /**
+     * 估计调用次数, 不低于真实次数
+     */
+    private Long count;
+
+    /**
+     * 误差上界, 真实调用次数不低于 count - countError
+     */
+    private Long countError;
+
+    /**
+     * 是否一定属于真实的前 N 名
+     */
+    private Boolean guaranteed;
+
+    public TopResult(String name, Long count, Long countError, Boolean guaranteed) {
+        this.name = name;
+        this.count = count;
+        this.countError = countError;
+        this.guaranteed = guaranteed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getCount() {
+        return count;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    public Long getCountError() {
+        return countError;
+    }
+
+    public void setCountError(Long countError) {
+        this.countError = countError;
+    }
+
+    public Boolean getGuaranteed() {
+        return guaranteed;
+    }
+
+    public void setGuaranteed(Boolean guaranteed) {
+        this.guaranteed = guaranteed;
+    }
+}
@@ -0,0 +1,38 @@
+package client.service;
+
+import java.util.List;
+
+/**
+ * 功能: 运行时计数开关的 JMX 接口, 注册名为 {@link BeanCounterControlService#OBJECT_NAME}
+ * <p>target 格式: 类名#方法名 / 类名 / 包前缀 (可以以 .* 结尾)</p>
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public interface BeanCounterControlMXBean {
+
+    /**
+     * 关闭计数
+     * @param target 目标
+     * @return 受影响的计数槽个数
+     */
+    int disable(String target);
+
+    /**
+     * 开启计数, 不统计耗时
+     * @param target 目标
+     * @return 受影响的计数槽个数
+     */
+    int enable(String target);
+
+    /**
+     * 开启计数并统计耗时
+     * @param target 目标
+     * @return 受影响的计数槽个数
+     */
+    int enableTiming(String target);
+
+    /**
+     * @return 当前规则, 格式为 目标=状态
+     */
+    List<String> getRules();
+}
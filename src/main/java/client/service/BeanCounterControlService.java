@@ -0,0 +1,91 @@
+package client.service;
+
+import advise.counter.CounterState;
+import advise.processor.BeanCounterProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * 功能: 对外提供运行时计数开关, 同时注册为 JMX MXBean
+ * <p>开关立即生效, 关闭后的方法每次调用只读取一次计数槽模式; 不需要重启, 也不需要 {@link config.BeanCounterExclude}</p>
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+@Service
+public class BeanCounterControlService implements BeanCounterControlMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(BeanCounterControlService.class);
+
+    public static final String OBJECT_NAME = "beancounter:type=CounterControl";
+
+    /**
+     * 注册成功的 JMX 名称, 没有注册时为 null
+     */
+    private ObjectName objectName;
+
+    @PostConstruct
+    public void init() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(name)){
+                logger.warn("[beancounter-start] JMX [" + OBJECT_NAME + "] is already registered, beancounter will skip it");
+                return;
+            }
+            mBeanServer.registerMBean(this, name);
+            objectName = name;
+        }catch (Throwable t){
+            logger.error("[beancounter-start] Register JMX [" + OBJECT_NAME + "] fail", t);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (objectName == null){
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }catch (Throwable t){
+            logger.warn("[beancounter-main] Unregister JMX [" + OBJECT_NAME + "] fail", t);
+        }
+    }
+
+    /**
+     * 设置计数状态
+     * @param target 类名#方法名 / 类名 / 包前缀 (可以以 .* 结尾)
+     * @param state 计数状态
+     * @return 受影响的计数槽个数
+     */
+    public int setState(String target, CounterState state){
+        return BeanCounterProcessor.getCounterControl().apply(target, state);
+    }
+
+    @Override
+    public int disable(String target) {
+        return setState(target, CounterState.OFF);
+    }
+
+    @Override
+    public int enable(String target) {
+        return setState(target, CounterState.COUNT);
+    }
+
+    @Override
+    public int enableTiming(String target) {
+        return setState(target, CounterState.TIMING);
+    }
+
+    @Override
+    public List<String> getRules() {
+        return BeanCounterProcessor.getCounterControl().getRules();
+    }
+}
@@ -1,11 +1,22 @@
 package client.service;
 
+import advise.counter.CallEdge;
+import advise.counter.CallGraph;
 import advise.counter.ClassCounter;
+import advise.counter.CounterDelta;
+import advise.counter.CounterWatermark;
+import advise.counter.FootprintReport;
 import advise.counter.GeneralCounter;
+import advise.counter.HeavyHitter;
+import advise.counter.HeavyHitters;
+import advise.counter.ModeTransition;
+import advise.counter.RateTracker;
+import advise.counter.StartupReport;
 import advise.processor.BeanCounterProcessor;
 import client.domain.BeanCounterParam;
 import client.domain.BeanCounterResult;
 import client.domain.ClassResult;
+import client.domain.TopResult;
 import client.util.ComparatorFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,10 +27,13 @@ import store.database.manager.DataStoreManager;
 import util.ConvertUtil;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 功能: 对外提供查询接口
@@ -34,6 +48,11 @@ public class BeanCounterService {
     @Resource
     private DataStoreManager dataStoreManager;
 
+    /**
+     * 消费方名称 -> 增量快照游标
+     */
+    private final ConcurrentHashMap<String, CounterWatermark> cursors = new ConcurrentHashMap<>();
+
     /**
      * 对外查询方法
      * @param beanCounterParam 查询参数
@@ -72,6 +91,117 @@ public class BeanCounterService {
         return beanCounterResult;
     }
 
+    /**
+     * 查询自适应降级的切换记录
+     * @return 最近的切换记录, 按时间先后排列
+     */
+    public List<ModeTransition> getModeTransitions(){
+        return BeanCounterProcessor.getThrottleController().getTransitions();
+    }
+
+    /**
+     * 查询调用次数最多的方法, 只统计内存中的数据, 数据每秒更新一次
+     * @param n 个数, 不能超过 beancounter.rate.top-capacity
+     * @return 按调用次数倒序, 没有开启前 N 名统计时为空
+     */
+    public List<TopResult> getTopMethods(int n){
+        RateTracker rateTracker = RateTracker.getInstance();
+        if (rateTracker == null || rateTracker.getMethodHitters() == null){
+            return Collections.emptyList();
+        }
+        return convertToTopResultList(rateTracker.getMethodHitters(), n);
+    }
+
+    /**
+     * 查询调用次数最多的类, 只统计内存中的数据, 数据每秒更新一次
+     * @param n 个数, 不能超过 beancounter.rate.top-capacity
+     * @return 按调用次数倒序, 没有开启前 N 名统计时为空
+     */
+    public List<TopResult> getTopClasses(int n){
+        RateTracker rateTracker = RateTracker.getInstance();
+        if (rateTracker == null || rateTracker.getClassHitters() == null){
+            return Collections.emptyList();
+        }
+        return convertToTopResultList(rateTracker.getClassHitters(), n);
+    }
+
+    private List<TopResult> convertToTopResultList(HeavyHitters heavyHitters, int n){
+        if (n > heavyHitters.getCapacity()){
+            logger.warn("[beancounter-main] Top " + n + " is over top-capacity " + heavyHitters.getCapacity() + ", the result will be truncated");
+        }
+        Map<Integer, String> names = BeanCounterProcessor.getGeneralCounter().getCounterNames();
+        List<TopResult> topResultList = new ArrayList<>();
+        for (HeavyHitter heavyHitter : heavyHitters.top(n)) {
+            String name = names.get(heavyHitter.getId());
+            topResultList.add(new TopResult(name == null ? "[" + heavyHitter.getId() + "]" : name,
+                    heavyHitter.getCount(), heavyHitter.getError(), heavyHitter.isGuaranteed()));
+        }
+        return topResultList;
+    }
+
+    /**
+     * 拉取增量快照: 返回该消费方上一次拉取之后发生了变化的计数槽, 只统计内存中的数据
+     * <p>每个消费方各自持有一个游标, 拉取即提交; 计数槽名称通过 {@link #getCounterNames()} 获取</p>
+     * @param consumer 消费方名称
+     * @return 增量快照 (计数槽 id / 调用次数增量 / 最近调用时间)
+     */
+    public CounterDelta pollDelta(String consumer){
+        CounterWatermark cursor = cursors.computeIfAbsent(consumer,
+                name -> new CounterWatermark(BeanCounterProcessor.getGeneralCounter().getRegistry()));
+        synchronized (cursor){
+            CounterDelta delta = cursor.snapshot();
+            cursor.commit(delta);
+            return delta;
+        }
+    }
+
+    /**
+     * @return 计数槽 id -> 名称 (类名 或 类名#方法名)
+     */
+    public Map<Integer, String> getCounterNames(){
+        return BeanCounterProcessor.getGeneralCounter().getCounterNames();
+    }
+
+    /**
+     * 估算内存中计数器的占用
+     * @return 内存占用报告, 包括每个方法占用的字节数
+     */
+    public FootprintReport getFootprint(){
+        return FootprintReport.of(BeanCounterProcessor.getGeneralCounter());
+    }
+
+    /**
+     * 查询 beancounter 自身的启动开销
+     * @return 启动开销报告, 包括每个阶段的耗时 / 每个 Bean 创建代理的耗时 / 生成的代理类个数
+     */
+    public StartupReport getStartupReport(){
+        return StartupReport.getInstance();
+    }
+
+    /**
+     * 查询方法之间的调用边, 只统计内存中的数据
+     * @return 调用边, 按调用次数倒序, 没有开启调用关系统计时为空
+     */
+    public List<CallEdge> getCallGraphEdges(){
+        CallGraph callGraph = CallGraph.getInstance();
+        if (callGraph == null){
+            return Collections.emptyList();
+        }
+        return callGraph.getEdges(BeanCounterProcessor.getGeneralCounter().getCounterNames());
+    }
+
+    /**
+     * 导出火焰图格式 (collapsed stack) 的调用路径, 可以直接交给 flamegraph.pl 等工具
+     * @return 每行为 "调用路径 次数", 没有开启调用关系统计时为空字符串
+     */
+    public String getCollapsedStacks(){
+        CallGraph callGraph = CallGraph.getInstance();
+        if (callGraph == null){
+            return "";
+        }
+        return callGraph.getCollapsedStacks(BeanCounterProcessor.getGeneralCounter().getCounterNames());
+    }
+
     /**
      * 校验查询参数
      * @param beanCounterParam 查询参数
@@ -113,8 +243,8 @@ public class BeanCounterService {
             }
             // 调用次数过滤
             if (beanCounterParam.getMinCount() != null && beanCounterParam.getMinCount() != null &&
-                    ( entry.getValue().getCount().longValue() > (long) beanCounterParam.getMaxCount()
-                    || entry.getValue().getCount().longValue() < (long) beanCounterParam.getMinCount())){
+                    ( entry.getValue().getCount() > (long) beanCounterParam.getMaxCount()
+                    || entry.getValue().getCount() < (long) beanCounterParam.getMinCount())){
                 iterator.remove();
             }
         }
@@ -22,6 +22,7 @@ public class ComparatorFactory {
     static {
         comparatorMap.put("alpha", new AlphaComparator());
         comparatorMap.put("count", new CountComparator());
+        comparatorMap.put("rate", new RateComparator());
         comparatorMap.put("", new DefaultComparator());
         comparatorMap.put(null, new DefaultComparator());
 
@@ -49,6 +50,21 @@ public class ComparatorFactory {
         }
     }
 
+    /**
+     * 按最近 1 分钟的调用频率倒序, 最热的类排在最前面
+     */
+    static class RateComparator implements Comparator<ClassResult> {
+
+        @Override
+        public int compare(ClassResult o1, ClassResult o2) {
+            double rate1 = o1.getRate1m() == null ? 0.0 : o1.getRate1m();
+            double rate2 = o2.getRate1m() == null ? 0.0 : o2.getRate1m();
+            if (Double.compare(rate1, rate2) == 0){
+                return o1.getClassName().compareTo(o2.getClassName());
+            }
+            return Double.compare(rate2, rate1);
+        }
+    }
 
     static class DefaultComparator implements Comparator<ClassResult> {
         @Override
@@ -19,6 +19,8 @@ import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -30,11 +32,31 @@ import java.util.stream.Collectors;
  * <p></p>
  * <p>配置表</p>
  * <p>beancounter:</p>
- * <p>&nbsp;&nbsp;&nbsp;&nbsp;path: {@link BeanCounterConfig#SCAN_PATH} 扫描目录</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;path: {@link BeanCounterConfig#SCAN_PATH} 扫描目录, 多个用 , 分隔, 以 ! 开头的为排除, 例如 com.demo,com.other,!com.demo.generated</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;search-source: {@link BeanCounterConfig#SEARCH_SOURCE} 查询来源: DATABASE / MEMORY</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;proxy-engine: {@link BeanCounterConfig#PROXY_ENGINE} 代理引擎: SPRING / BYTECODE</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;timing: {@link BeanCounterConfig#TIMING} 是否统计方法耗时: true / false</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;sampling:</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;rate: {@link BeanCounterConfig#SAMPLING_RATE} 全局采样率 N (1/N 的调用会被记录)</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;packages: {@link BeanCounterConfig#SAMPLING_PACKAGES} 按包前缀配置采样率, 格式为 前缀:N,前缀:N</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;threshold: {@link BeanCounterConfig#SAMPLING_THRESHOLD} 方法调用次数达到阈值后才开始采样</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;throttle:</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;enabled: {@link BeanCounterConfig#THROTTLE} 是否开启自适应降级: true / false</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;rate-threshold: {@link BeanCounterConfig#THROTTLE_RATE_THRESHOLD} 方法调用频率阈值 (次/s)</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;cpu-budget: {@link BeanCounterConfig#THROTTLE_CPU_BUDGET} 计数开销的 CPU 预算 (%)</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;sample-rate: {@link BeanCounterConfig#THROTTLE_SAMPLE_RATE} 降级时使用的采样率 N</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;rate:</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;enabled: {@link BeanCounterConfig#RATE} 是否统计最近 1 / 5 / 15 分钟的调用频率: true / false</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;top-capacity: {@link BeanCounterConfig#TOP_CAPACITY} 调用次数前 N 名统计保存的条目个数, 0 表示不统计</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;call-graph:</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;enabled: {@link BeanCounterConfig#CALL_GRAPH} 是否统计方法之间的调用关系: true / false</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;capacity: {@link BeanCounterConfig#CALL_GRAPH_CAPACITY} 调用路径节点的最大个数</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;max-depth: {@link BeanCounterConfig#CALL_GRAPH_MAX_DEPTH} 最大调用深度</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;store:</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;interval: {@link BeanCounterConfig#STORE_FILE_INTERVAL} 文件持久化间隔时间(s)</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;path: {@link BeanCounterConfig#STORE_FILE_PATH} 文件持久化路径(不需要后缀名, 格式为 json)</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;startup-cache:</p>
+ * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;path: {@link BeanCounterConfig#STARTUP_CACHE_PATH} 启动缓存路径(不需要后缀名, 格式为 json), 为空时不缓存</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;database:</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;interval: {@link BeanCounterConfig#STORE_DATABASE_INTERVAL} 数据库时间花时间间隔(s)</p>
  * <p>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;show-sql: {@link BeanCounterConfig#SHOW_SQL} 是否打印数据库 SQL: true / false</p>
@@ -57,16 +79,105 @@ public class BeanCounterConfig implements EnvironmentAware, PriorityOrdered, Bea
 
     /**
      * 扫描路径
-     * <p>默认为 !@#$%^&*()_ 从而达到什么都不扫描的目的</p>
+     * <p>默认为空, 什么都不扫描</p>
      */
     public static String SCAN_PATH;
 
+    /**
+     * 扫描路径编译后的前缀树
+     */
+    public static PackageMatcher SCAN_MATCHER = PackageMatcher.NONE;
+
     /**
      * 查询来源: DATABASE / MEMORY
      * <p>默认为 MEMORY</p>
      */
     public static SearchSource SEARCH_SOURCE;
 
+    /**
+     * 代理引擎: SPRING / BYTECODE
+     * <p>默认为 SPRING</p>
+     */
+    public static ProxyEngineType PROXY_ENGINE = ProxyEngineType.SPRING;
+
+    /**
+     * 是否统计方法耗时 (p50 / p99 / max)
+     * <p>默认为 false</p>
+     */
+    public static Boolean TIMING = false;
+
+    /**
+     * 全局采样率 N, 1/N 的调用会被记录, 每次记录 N 次
+     * <p>默认为 1, 即精确计数</p>
+     */
+    public static Integer SAMPLING_RATE = 1;
+
+    /**
+     * 按包前缀配置的采样率, 最长前缀优先, 没有匹配时使用全局采样率
+     * <p>默认为空</p>
+     */
+    public static Map<String, Integer> SAMPLING_PACKAGES = new HashMap<>();
+
+    /**
+     * 方法调用次数达到阈值后才开始采样, 冷方法保持精确计数
+     * <p>默认为 10000</p>
+     */
+    public static Long SAMPLING_THRESHOLD = 10000L;
+
+    /**
+     * 是否开启自适应降级, 热点方法或计数开销超出预算时自动关闭耗时统计 / 切换为采样计数
+     * <p>默认为 false</p>
+     */
+    public static Boolean THROTTLE = false;
+
+    /**
+     * 自适应降级的方法调用频率阈值 (次/s), 回落到一半以下时恢复
+     * <p>默认为 100000</p>
+     */
+    public static Long THROTTLE_RATE_THRESHOLD = 100000L;
+
+    /**
+     * 自适应降级的 CPU 预算 (%), 计数自身开销占全部 CPU 的比例
+     * <p>默认为 1.0</p>
+     */
+    public static Double THROTTLE_CPU_BUDGET = 1.0;
+
+    /**
+     * 自适应降级时使用的采样率 N
+     * <p>默认为 100</p>
+     */
+    public static Integer THROTTLE_SAMPLE_RATE = 100;
+
+    /**
+     * 是否统计最近 1 / 5 / 15 分钟的调用频率
+     * <p>默认为 true</p>
+     */
+    public static Boolean RATE = true;
+
+    /**
+     * 调用次数前 N 名统计保存的条目个数, 查询的 N 不能超过该值, 0 表示不统计, 依赖调用频率统计
+     * <p>默认为 1024</p>
+     */
+    public static Integer TOP_CAPACITY = 1024;
+
+    /**
+     * 是否统计方法之间的调用关系 (调用边与调用路径), 只支持代理模式
+     * <p>默认为 false</p>
+     */
+    public static Boolean CALL_GRAPH = false;
+
+    /**
+     * 调用路径节点的最大个数, 用完之后新的调用路径记录为 [overflow]
+     * <p>默认为 65536</p>
+     */
+    public static Integer CALL_GRAPH_CAPACITY = 65536;
+
+    /**
+     * 最大调用深度, 更深的调用记录为 [truncated]
+     * <p>默认为 64</p>
+     */
+    public static Integer CALL_GRAPH_MAX_DEPTH = 64;
+
     /**
      * 持久化方法: DATABASE / FILE
      * <p>多种持久化方式用 , 隔离</p>
@@ -86,6 +197,12 @@ public class BeanCounterConfig implements EnvironmentAware, PriorityOrdered, Bea
      */
     public static String STORE_FILE_PATH;
 
+    /**
+     * 启动缓存路径(不需要后缀, 格式为 json), 保存 Bean 检查结果 / 依赖关系 / 方法表, 扫描路径下的类没有变化时下一次启动直接复用
+     * <p>默认为空, 不缓存</p>
+     */
+    public static String STARTUP_CACHE_PATH = "";
+
     /**
      * 数据库时间花时间间隔(s)
      * <p>默认为 10s</p>
@@ -151,14 +268,94 @@ public class BeanCounterConfig implements EnvironmentAware, PriorityOrdered, Bea
         return supportDatabase() && "UPDATE".equalsIgnoreCase(DDL_AUTO);
     }
 
+    /**
+     * 获取类对应的采样率
+     * @param className 类全量名
+     * @return 采样率 N, 1 表示精确计数
+     */
+    public static int getSamplingRate(String className){
+        String matched = null;
+        for (String prefix : SAMPLING_PACKAGES.keySet()) {
+            if (className.startsWith(prefix) && (matched == null || prefix.length() > matched.length())){
+                matched = prefix;
+            }
+        }
+        return matched == null ? SAMPLING_RATE : SAMPLING_PACKAGES.get(matched);
+    }
+
+    /**
+     * @param className 类名
+     * @return 是否在扫描路径中
+     */
+    public static boolean inScanPath(String className){
+        return SCAN_MATCHER.matches(className);
+    }
+
     public static void setScanPath(String scanPath) {
         SCAN_PATH = scanPath;
+        SCAN_MATCHER = PackageMatcher.compile(scanPath);
     }
 
     public static void setSearchSource(SearchSource searchSource) {
         SEARCH_SOURCE = searchSource;
     }
 
+    public static void setProxyEngine(ProxyEngineType proxyEngine) {
+        PROXY_ENGINE = proxyEngine;
+    }
+
+    public static void setTiming(Boolean timing) {
+        TIMING = timing;
+    }
+
+    public static void setSamplingRate(Integer samplingRate) {
+        SAMPLING_RATE = samplingRate;
+    }
+
+    public static void setSamplingPackages(Map<String, Integer> samplingPackages) {
+        SAMPLING_PACKAGES = samplingPackages;
+    }
+
+    public static void setSamplingThreshold(Long samplingThreshold) {
+        SAMPLING_THRESHOLD = samplingThreshold;
+    }
+
+    public static void setThrottle(Boolean throttle) {
+        THROTTLE = throttle;
+    }
+
+    public static void setThrottleRateThreshold(Long throttleRateThreshold) {
+        THROTTLE_RATE_THRESHOLD = throttleRateThreshold;
+    }
+
+    public static void setThrottleCpuBudget(Double throttleCpuBudget) {
+        THROTTLE_CPU_BUDGET = throttleCpuBudget;
+    }
+
+    public static void setThrottleSampleRate(Integer throttleSampleRate) {
+        THROTTLE_SAMPLE_RATE = throttleSampleRate;
+    }
+
+    public static void setRate(Boolean rate) {
+        RATE = rate;
+    }
+
+    public static void setTopCapacity(Integer topCapacity) {
+        TOP_CAPACITY = topCapacity;
+    }
+
+    public static void setCallGraph(Boolean callGraph) {
+        CALL_GRAPH = callGraph;
+    }
+
+    public static void setCallGraphCapacity(Integer callGraphCapacity) {
+        CALL_GRAPH_CAPACITY = callGraphCapacity;
+    }
+
+    public static void setCallGraphMaxDepth(Integer callGraphMaxDepth) {
+        CALL_GRAPH_MAX_DEPTH = callGraphMaxDepth;
+    }
+
     public static void setStoreType(Set<String> storeType) {
         STORE_TYPE = storeType;
     }
@@ -171,6 +368,10 @@ public class BeanCounterConfig implements EnvironmentAware, PriorityOrdered, Bea
         STORE_FILE_PATH = storeFilePath;
     }
 
+    public static void setStartupCachePath(String startupCachePath) {
+        STARTUP_CACHE_PATH = startupCachePath;
+    }
+
     public static void setStoreDatabaseInterval(Integer storeDatabaseInterval) {
         STORE_DATABASE_INTERVAL = storeDatabaseInterval;
     }
@@ -213,7 +414,30 @@ public class BeanCounterConfig implements EnvironmentAware, PriorityOrdered, Bea
             logger.warn("[beancounter-config] No beancounter.properties in resource, beancounter will ignore it");
         }
 
-        setScanPath(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.path", String.class, "!@#$%^&*()_"));
+        setScanPath(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.path", String.class, ""));
+        if (SCAN_MATCHER.isEmpty()){
+            logger.warn("[beancounter-config] No beancounter.path, beancounter will not count any bean");
+        }
+        ProxyEngineType proxyEngine = ProxyEngineType.get(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.proxy-engine", String.class, "SPRING"));
+        if (proxyEngine == null){
+            logger.warn("[beancounter-config] Unsupported proxy-engine choice, beanCounter set the defaultValue [SPRING]");
+            proxyEngine = ProxyEngineType.SPRING;
+        }
+        setProxyEngine(proxyEngine);
+        setTiming(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.timing", Boolean.class, false));
+        setSamplingRate(Math.max(1, getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.sampling.rate", Integer.class, 1)));
+        setSamplingPackages(parseSamplingPackages(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.sampling.packages", String.class, "")));
+        setSamplingThreshold(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.sampling.threshold", Long.class, 10000L));
+        setThrottle(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.throttle.enabled", Boolean.class, false));
+        setThrottleRateThreshold(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.throttle.rate-threshold", Long.class, 100000L));
+        setThrottleCpuBudget(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.throttle.cpu-budget", Double.class, 1.0));
+        setThrottleSampleRate(Math.max(2, getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.throttle.sample-rate", Integer.class, 100)));
+        setRate(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.rate.enabled", Boolean.class, true));
+        setTopCapacity(Math.max(0, getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.rate.top-capacity", Integer.class, 1024)));
+        setCallGraph(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.call-graph.enabled", Boolean.class, false));
+        setCallGraphCapacity(Math.max(16, getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.call-graph.capacity", Integer.class, 65536)));
+        setCallGraphMaxDepth(Math.max(1, getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.call-graph.max-depth", Integer.class, 64)));
+        setStartupCachePath(getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.startup-cache.path", String.class, "").trim());
         String[] supportEnduranceProperties = getFromProperties(environment, ymlProperties, customizeProperties, "beancounter.store.support", String.class, "").split(",");
         setStoreType(Arrays.stream(supportEnduranceProperties).collect(Collectors.toSet()));
 
@@ -253,6 +477,27 @@ public class BeanCounterConfig implements EnvironmentAware, PriorityOrdered, Bea
         }
     }
 
+    /**
+     * 解析按包前缀配置的采样率
+     * @param samplingPackages 前缀:N,前缀:N
+     * @return 包前缀 -> 采样率
+     */
+    private Map<String, Integer> parseSamplingPackages(String samplingPackages){
+        Map<String, Integer> result = new HashMap<>();
+        for (String item : samplingPackages.split(",")) {
+            if (StringUtils.isBlank(item)){
+                continue;
+            }
+            String[] pair = item.trim().split(":");
+            try {
+                result.put(pair[0].trim(), Math.max(1, Integer.parseInt(pair[1].trim())));
+            }catch (Throwable t){
+                logger.warn("[beancounter-config] Unsupported sampling package [" + item + "], beancounter will ignore it");
+            }
+        }
+        return result;
+    }
+
     private <TYPE> TYPE getFromProperties(Environment environment, Properties ymlProperties, Properties customizeProperties, String key, Class<TYPE> klass, TYPE defaultValue){
         TYPE propertiesValue = null;
         TYPE yamlValue = null;
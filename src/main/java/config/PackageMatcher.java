@@ -0,0 +1,148 @@
+package config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 功能: 扫描路径匹配, 多个包含 / 排除的包前缀编译为一棵前缀树
+ * <p>配置格式: com.demo,com.other,!com.demo.generated, 以 ! 开头的为排除; 末尾的 .* / .** 会被去掉</p>
+ * <p>匹配时沿类名逐个字符走一遍前缀树, 只在 . / $ 处或类名结尾认为前缀匹配, 最长的匹配决定包含还是排除</p>
+ * <p>类名中的 / 与 . 等价, Java Agent 的内部类名 (com/demo/Foo) 不需要转换</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class PackageMatcher {
+
+    /**
+     * 不包含任何路径
+     */
+    public static final PackageMatcher NONE = new PackageMatcher(Collections.emptyList(), Collections.emptyList());
+
+    private final Node root = new Node();
+
+    /**
+     * 包含的包前缀
+     */
+    private final List<String> includes;
+
+    /**
+     * 排除的包前缀
+     */
+    private final List<String> excludes;
+
+    private PackageMatcher(List<String> includes, List<String> excludes) {
+        this.includes = Collections.unmodifiableList(includes);
+        this.excludes = Collections.unmodifiableList(excludes);
+        for (String include : includes) {
+            insert(include, Boolean.TRUE);
+        }
+        // 包含与排除使用同一个前缀时, 排除优先
+        for (String exclude : excludes) {
+            insert(exclude, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * 解析扫描路径
+     * @param patterns 逗号分隔的包前缀, 以 ! 开头的为排除
+     * @return 扫描路径匹配器
+     */
+    public static PackageMatcher compile(String patterns){
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        if (patterns != null){
+            for (String item : patterns.split(",")) {
+                String pattern = item.trim();
+                boolean exclude = pattern.startsWith("!");
+                pattern = normalize(exclude ? pattern.substring(1) : pattern);
+                if (pattern.isEmpty()){
+                    continue;
+                }
+                (exclude ? excludes : includes).add(pattern);
+            }
+        }
+        return new PackageMatcher(includes, excludes);
+    }
+
+    /**
+     * @param className 类名, . 或 / 分隔
+     * @return 是否在扫描路径中 (最长的匹配是包含)
+     */
+    public boolean matches(String className){
+        Node node = root;
+        Boolean matched = null;
+        int length = className.length();
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.children.get(separatorOf(className.charAt(i)));
+            if (node != null && node.include != null && isBoundary(className, i + 1)){
+                matched = node.include;
+            }
+        }
+        return matched != null && matched;
+    }
+
+    /**
+     * @return 是否没有任何包含的路径
+     */
+    public boolean isEmpty(){
+        return includes.isEmpty();
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    @Override
+    public String toString() {
+        return "include" + includes + " exclude" + excludes;
+    }
+
+    private void insert(String pattern, Boolean include){
+        Node node = root;
+        for (int i = 0; i < pattern.length(); i++) {
+            node = node.children.computeIfAbsent(separatorOf(pattern.charAt(i)), c -> new Node());
+        }
+        node.include = include;
+    }
+
+    private static String normalize(String pattern){
+        int end = pattern.length();
+        while (end > 0 && "*./".indexOf(pattern.charAt(end - 1)) >= 0){
+            end--;
+        }
+        return pattern.substring(0, end).trim();
+    }
+
+    private static boolean isBoundary(String className, int index){
+        if (index == className.length()){
+            return true;
+        }
+        char c = className.charAt(index);
+        return c == '.' || c == '/' || c == '$';
+    }
+
+    private static char separatorOf(char c){
+        return c == '/' ? '.' : c;
+    }
+
+    /**
+     * 前缀树节点
+     */
+    private static final class Node {
+
+        private final Map<Character, Node> children = new HashMap<>(4);
+
+        /**
+         * 以该节点结尾的前缀: TRUE 包含, FALSE 排除, null 不是前缀
+         */
+        private Boolean include;
+    }
+}
@@ -0,0 +1,40 @@
+package config;
+
+import java.util.Arrays;
+
+/**
+ * 功能: 代理引擎类型
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public enum ProxyEngineType {
+
+    /**
+     * Spring AOP (ProxyFactory + CGLIB)
+     */
+    SPRING(1, "SPRING"),
+
+    /**
+     * 生成的字节码委托子类
+     */
+    BYTECODE(2, "BYTECODE");
+
+    private final Integer id;
+    private final String engine;
+
+    ProxyEngineType(Integer id, String engine) {
+        this.id = id;
+        this.engine = engine;
+    }
+
+    /**
+     * 根据引擎名称获取对应的枚举值
+     * @param engine 引擎名称
+     * @return 枚举值
+     */
+    public static ProxyEngineType get(String engine){
+        return Arrays.stream(values())
+                .filter(value -> value.engine.equalsIgnoreCase(engine)).findFirst()
+                .orElse(null);
+    }
+}
@@ -0,0 +1,443 @@
+package store.cache;
+
+import advise.checker.BeanChecker;
+import advise.checker.CircularMap;
+import advise.counter.MethodTable;
+import com.alibaba.fastjson.JSONObject;
+import config.BeanCounterConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import util.ConvertUtil;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 功能: 启动缓存, 保存启动时的分析结果, 扫描路径下的类没有变化时下一次启动直接复用
+ * <p>缓存内容: Bean 简称 -> 全量名, 排除 / 检查过的 Bean, 依赖关系 (循环依赖由依赖关系重新得到), 类的方法表</p>
+ * <p>指纹: 每个 Bean 定义的 简称 + 类名 + scope + dependsOn, 以及扫描路径下的类文件的 大小 + 修改时间, 再加上扫描路径配置, 取 SHA-256</p>
+ * <p>命中时跳过 Bean 定义的分类, 只有缓存中扫描过依赖的 Bean 跳过依赖扫描 (懒加载 / 非单例 Bean 可能在写入缓存之后才第一次创建); 方法表只复用参与了指纹计算的类</p>
+ * <p>没有命中时在所有单例创建完成后写入; 之后新扫描的依赖或新的方法表会标记缓存需要重新写入, 在应用关闭时再写一次</p>
+ * <p>缓存文件先写临时文件再替换, 多个实例共用同一个路径时不会读到写了一半的文件</p>
+ *
+ * @author unknown100name
+ * @date 2021.10.06
+ */
+public class StartupCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupCache.class);
+
+    private static final StartupCache instance = new StartupCache();
+
+    /**
+     * 缓存格式版本, 格式变化时修改, 旧的缓存文件全部失效
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Bean 定义个数达到该值时并行读取类文件信息
+     */
+    private static final int PARALLEL_THRESHOLD = 512;
+
+    private final CircularMap circularMap = CircularMap.getInstance();
+
+    /**
+     * 本次启动的指纹, 没有开启缓存或计算失败时为 null
+     */
+    private volatile String fingerprint;
+
+    /**
+     * 参与了指纹计算的类, 只有这些类的方法表可以缓存
+     */
+    private volatile Set<String> fingerprintedClasses = new HashSet<>();
+
+    /**
+     * 命中的缓存内容, 没有命中时为 null
+     */
+    private volatile Snapshot restored;
+
+    /**
+     * 本次启动得到的方法表
+     */
+    private final Map<String, MethodTable> methodTables = new ConcurrentHashMap<>();
+
+    /**
+     * 扫描过依赖的 Bean 全量名, 包括从缓存中恢复的
+     */
+    private final Set<String> populatedBeans = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 是否有新的内容需要写入: 没有命中时为 true, 命中之后有新的方法表或新扫描了依赖时为 true
+     */
+    private volatile boolean dirty;
+
+    private StartupCache() { }
+
+    public static StartupCache getInstance(){
+        return instance;
+    }
+
+    /**
+     * 计算指纹并读取缓存, 命中时恢复检查结果与依赖关系
+     * @param beanNames 所有 Bean 定义的简称
+     * @param beanFactory BeanFactory
+     * @return 是否命中
+     */
+    public boolean restore(String[] beanNames, ConfigurableListableBeanFactory beanFactory){
+        if (BeanCounterConfig.STARTUP_CACHE_PATH.isEmpty()){
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            fingerprint = fingerprint(beanNames, beanFactory);
+        }catch (Throwable t){
+            logger.warn("[beancounter-cache] Compute fingerprint fail, startup cache is disabled", t);
+            return false;
+        }
+
+        Snapshot snapshot = read();
+        if (snapshot == null){
+            dirty = true;
+            return false;
+        }
+        if (snapshot.getVersion() != VERSION || !fingerprint.equals(snapshot.getFingerprint())){
+            logger.warn("[beancounter-cache] Startup cache is stale, analyze beans again");
+            dirty = true;
+            return false;
+        }
+
+        for (Map.Entry<String, String> entry : snapshot.getBeanNames().entrySet()) {
+            circularMap.registerBeanName(entry.getKey(), entry.getValue());
+        }
+        BeanChecker.ignoredBeans(snapshot.getIgnoredBeans());
+        BeanChecker.checkedBeans(snapshot.getCheckedBeans());
+        for (String checkedBean : snapshot.getCheckedBeans()) {
+            circularMap.initBeanWrapper(checkedBean);
+        }
+        circularMap.restoreDependencies(snapshot.getDependencies());
+        populatedBeans.addAll(snapshot.getPopulatedBeans());
+        for (Map.Entry<String, MethodTable> entry : snapshot.getMethodTables().entrySet()) {
+            if (fingerprintedClasses.contains(entry.getKey())){
+                methodTables.put(entry.getKey(), entry.getValue());
+            }
+        }
+        restored = snapshot;
+        logger.warn("[beancounter-cache] Restore startup cache in " + (System.currentTimeMillis() - start) + "ms, checked: " + snapshot.getCheckedBeans().size()
+                + ", excluded: " + snapshot.getIgnoredBeans().size() + ", circular: " + snapshot.getCircularBeans().size() + ", method tables: " + methodTables.size());
+        return true;
+    }
+
+    /**
+     * @return 是否命中了缓存
+     */
+    public boolean isRestored(){
+        return restored != null;
+    }
+
+    /**
+     * @param fullBeanName Bean 全量名
+     * @return 依赖是否已经从缓存中恢复, 恢复了的 Bean 不需要再扫描
+     */
+    public boolean isPopulated(String fullBeanName){
+        return restored != null && populatedBeans.contains(fullBeanName);
+    }
+
+    /**
+     * 记录扫描过依赖的 Bean, 新扫描的 Bean 需要重新写入缓存
+     * @param fullBeanName Bean 全量名
+     */
+    public void markPopulated(String fullBeanName){
+        if (fingerprint != null && populatedBeans.add(fullBeanName)){
+            dirty = true;
+        }
+    }
+
+    /**
+     * 获取类的方法表, 缓存中没有时反射得到
+     * @param klass 类
+     * @return 方法表
+     */
+    public MethodTable methodTable(Class<?> klass){
+        MethodTable methodTable = methodTables.get(klass.getName());
+        if (methodTable != null){
+            return methodTable;
+        }
+        methodTable = MethodTable.of(klass);
+        if (fingerprint != null && fingerprintedClasses.contains(klass.getName())){
+            methodTables.put(klass.getName(), methodTable);
+            dirty = true;
+        }
+        return methodTable;
+    }
+
+    /**
+     * 写入缓存, 在所有单例创建完成后与应用关闭时调用, 没有新的内容时不写
+     */
+    public synchronized void save(){
+        if (fingerprint == null || !dirty){
+            return;
+        }
+        // 先清除标记, 写入过程中新增的内容在下一次写入
+        dirty = false;
+        Snapshot snapshot = new Snapshot();
+        snapshot.setVersion(VERSION);
+        snapshot.setFingerprint(fingerprint);
+        snapshot.setBeanNames(new HashMap<>(circularMap.getFullBeanNames()));
+        snapshot.setIgnoredBeans(new ArrayList<>(BeanChecker.getIgnoredBeans()));
+        snapshot.setCheckedBeans(new ArrayList<>(BeanChecker.getCheckedBeans()));
+        snapshot.setCircularBeans(new ArrayList<>(BeanChecker.getCircularBeans()));
+        Map<String, List<String>> dependencies = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : circularMap.getDependencies().entrySet()) {
+            dependencies.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        snapshot.setDependencies(dependencies);
+        snapshot.setPopulatedBeans(new ArrayList<>(populatedBeans));
+        snapshot.setMethodTables(new HashMap<>(methodTables));
+        try {
+            write(JSONObject.toJSONString(snapshot));
+            logger.warn("[beancounter-cache] Save startup cache to [" + getFileName() + "], checked: " + snapshot.getCheckedBeans().size()
+                    + ", excluded: " + snapshot.getIgnoredBeans().size() + ", populated: " + snapshot.getPopulatedBeans().size() + ", method tables: " + methodTables.size());
+        }catch (Throwable t){
+            dirty = true;
+            logger.error("[beancounter-cache] Save startup cache fail!", t);
+        }
+    }
+
+    /**
+     * 计算指纹, 类文件信息可以并行读取, 摘要按 Bean 定义的顺序计算
+     */
+    private String fingerprint(String[] beanNames, ConfigurableListableBeanFactory beanFactory) throws Exception {
+        ClassLoader classLoader = beanFactory.getBeanClassLoader() == null ? Thread.currentThread().getContextClassLoader() : beanFactory.getBeanClassLoader();
+        Stream<String> stream = Arrays.stream(beanNames);
+        if (beanNames.length >= PARALLEL_THRESHOLD){
+            stream = stream.parallel();
+        }
+        String[][] entries = stream.map(beanName -> describe(beanName, beanFactory, classLoader)).toArray(String[][]::new);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        update(digest, "version=" + VERSION + ";path=" + BeanCounterConfig.SCAN_PATH);
+        Set<String> classes = new HashSet<>();
+        for (String[] entry : entries) {
+            update(digest, entry[0]);
+            if (entry[1] != null){
+                classes.add(entry[1]);
+            }
+        }
+        fingerprintedClasses = classes;
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return [Bean 定义的描述, 参与指纹计算的类名 (不在扫描路径下时为 null)]
+     */
+    private static String[] describe(String beanName, ConfigurableListableBeanFactory beanFactory, ClassLoader classLoader){
+        BeanDefinition beanDefinition;
+        try {
+            beanDefinition = beanFactory.getBeanDefinition(beanName);
+        }catch (Throwable t){
+            return new String[]{beanName + ";missing", null};
+        }
+        String className = ConvertUtil.convertToFullName(beanDefinition);
+        if (className == null){
+            className = beanDefinition.getBeanClassName();
+        }
+        String description = beanName + ";" + className + ";" + beanDefinition.getScope() + ";" + Arrays.toString(beanDefinition.getDependsOn());
+        if (className == null || !BeanCounterConfig.inScanPath(className)){
+            return new String[]{description, null};
+        }
+        return new String[]{description + ";" + classStamp(className, classLoader), className};
+    }
+
+    /**
+     * @return 类文件的 大小:修改时间, 找不到时为 missing
+     */
+    private static String classStamp(String className, ClassLoader classLoader){
+        URL url = classLoader == null ? null : classLoader.getResource(className.replace('.', '/') + ".class");
+        if (url == null){
+            return "missing";
+        }
+        try {
+            if ("file".equals(url.getProtocol())){
+                File file = new File(url.toURI());
+                return file.length() + ":" + file.lastModified();
+            }
+            // jar 中的类: 条目大小 + jar 文件的修改时间
+            URLConnection connection = url.openConnection();
+            return connection.getContentLengthLong() + ":" + connection.getLastModified();
+        }catch (Throwable t){
+            // 无法读取时每次都不同, 不会误用旧的缓存
+            return "unknown:" + System.nanoTime();
+        }
+    }
+
+    private static void update(MessageDigest digest, String value){
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+    }
+
+    private Snapshot read(){
+        Path path = Paths.get(getFileName());
+        if (!Files.isRegularFile(path)){
+            logger.warn("[beancounter-cache] No startup cache [" + path + "], analyze beans and save it after startup");
+            return null;
+        }
+        try {
+            return JSONObject.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), Snapshot.class);
+        }catch (Throwable t){
+            logger.warn("[beancounter-cache] Read startup cache [" + path + "] fail, analyze beans again", t);
+            return null;
+        }
+    }
+
+    private void write(String json) throws Exception {
+        Path path = Paths.get(getFileName()).toAbsolutePath();
+        if (path.getParent() != null){
+            Files.createDirectories(path.getParent());
+        }
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, json.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String getFileName(){
+        return BeanCounterConfig.STARTUP_CACHE_PATH + ".json";
+    }
+
+    /**
+     * 缓存文件内容
+     */
+    public static class Snapshot {
+
+        private int version;
+
+        private String fingerprint;
+
+        /**
+         * Bean 简称 -> 全量名
+         */
+        private Map<String, String> beanNames = new HashMap<>();
+
+        private List<String> ignoredBeans = new ArrayList<>();
+
+        private List<String> checkedBeans = new ArrayList<>();
+
+        /**
+         * 因为循环依赖被排除的 Bean, 已经包含在 ignoredBeans 中, 这里只用于日志
+         */
+        private List<String> circularBeans = new ArrayList<>();
+
+        /**
+         * Full Bean Name -> 被依赖的 Full Bean Name
+         */
+        private Map<String, List<String>> dependencies = new HashMap<>();
+
+        /**
+         * 扫描过依赖的 Bean 全量名, 只有这些 Bean 在命中时跳过依赖扫描
+         */
+        private List<String> populatedBeans = new ArrayList<>();
+
+        /**
+         * 类名 -> 方法表
+         */
+        private Map<String, MethodTable> methodTables = new HashMap<>();
+
+        public int getVersion() {
+            return version;
+        }
+
+        public void setVersion(int version) {
+            this.version = version;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public void setFingerprint(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public Map<String, String> getBeanNames() {
+            return beanNames;
+        }
+
+        public void setBeanNames(Map<String, String> beanNames) {
+            this.beanNames = beanNames;
+        }
+
+        public List<String> getIgnoredBeans() {
+            return ignoredBeans;
+        }
+
+        public void setIgnoredBeans(List<String> ignoredBeans) {
+            this.ignoredBeans = ignoredBeans;
+        }
+
+        public List<String> getCheckedBeans() {
+            return checkedBeans;
+        }
+
+        public void setCheckedBeans(List<String> checkedBeans) {
+            this.checkedBeans = checkedBeans;
+        }
+
+        public List<String> getCircularBeans() {
+            return circularBeans;
+        }
+
+        public void setCircularBeans(List<String> circularBeans) {
+            this.circularBeans = circularBeans;
+        }
+
+        public Map<String, List<String>> getDependencies() {
+            return dependencies;
+        }
+
+        public void setDependencies(Map<String, List<String>> dependencies) {
+            this.dependencies = dependencies;
+        }
+
+        public List<String> getPopulatedBeans() {
+            return populatedBeans;
+        }
+
+        public void setPopulatedBeans(List<String> populatedBeans) {
+            this.populatedBeans = populatedBeans;
+        }
+
+        public Map<String, MethodTable> getMethodTables() {
+            return methodTables;
+        }
+
+        public void setMethodTables(Map<String, MethodTable> methodTables) {
+            this.methodTables = methodTables;
+        }
+    }
+}
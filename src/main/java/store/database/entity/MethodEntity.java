@@ -37,6 +37,24 @@ public class MethodEntity {
     @Column(name = "last_call_time", unique = false, nullable = true)
     private Long lastCallTime;
 
+    /**
+     * 耗时中位数 (ns)
+     */
+    @Column(name = "p50_latency", unique = false, nullable = true)
+    private Long p50Latency;
+
+    /**
+     * 耗时 99 分位数 (ns)
+     */
+    @Column(name = "p99_latency", unique = false, nullable = true)
+    private Long p99Latency;
+
+    /**
+     * 最大耗时 (ns)
+     */
+    @Column(name = "max_latency", unique = false, nullable = true)
+    private Long maxLatency;
+
     public Long getId() {
         return id;
     }
@@ -68,4 +86,28 @@ public class MethodEntity {
     public void setLastCallTime(Long lastCallTime) {
         this.lastCallTime = lastCallTime;
     }
+
+    public Long getP50Latency() {
+        return p50Latency;
+    }
+
+    public void setP50Latency(Long p50Latency) {
+        this.p50Latency = p50Latency;
+    }
+
+    public Long getP99Latency() {
+        return p99Latency;
+    }
+
+    public void setP99Latency(Long p99Latency) {
+        this.p99Latency = p99Latency;
+    }
+
+    public Long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public void setMaxLatency(Long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
 }
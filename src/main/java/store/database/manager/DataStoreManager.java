@@ -1,6 +1,8 @@
 package store.database.manager;
 
 import advise.counter.ClassCounter;
+import advise.counter.CounterDelta;
+import advise.counter.CounterWatermark;
 import advise.counter.GeneralCounter;
 import advise.counter.MethodCounter;
 import advise.processor.BeanCounterProcessor;
@@ -10,7 +12,6 @@ import org.slf4j.LoggerFactory;
 import config.BeanCounterConfig;
 import store.AbstractStoreManager;
 import store.StoreManager;
-import store.StoreStatus;
 import store.database.entity.ClassEntity;
 import store.database.entity.MethodEntity;
 import util.ConvertUtil;
@@ -20,9 +21,12 @@ import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 功能: 数据库持久类
+ * <p>双向校验: 启动时在刷盘线程中一次性读取数据库中的全部类, 之后新建的类计数器同样在刷盘线程中合并历史数据,
+ * Bean 创建与调用线程不会等待数据库; 刷盘前总是先合并, 合并之后才创建的类留到下一次刷盘, 防止内存中的数据覆盖数据库中的历史数据</p>
  * @author unknown100name
  * @date 2021.10.06
  */
@@ -33,34 +37,75 @@ public class DataStoreManager extends AbstractStoreManager implements StoreManag
     @Resource
     private DataStoreRepository dataStoreRepository;
 
+    /**
+     * 数据库刷盘水位, 只在刷盘线程中使用
+     */
+    private CounterWatermark watermark;
+
+    /**
+     * 启动时读取的数据库数据 (类名 -> 类), 合并之后移除, 读取失败时为 null, 只在刷盘线程中使用
+     */
+    private volatile Map<String, ClassEntity> preloaded;
+
+    /**
+     * 是否已经提交了校对任务, 多个类同时创建时只提交一次
+     */
+    private final AtomicBoolean proofreadScheduled = new AtomicBoolean();
+
     @Override
     @PostConstruct
     public void init() {
-        super.init();
-
-        // 是否开启了双向校验
+        // 是否开启了双向校验, 预读任务需要排在第一次刷盘之前
         if (BeanCounterConfig.needProofreadWithDatabase()){
             logger.warn("[beancounter-config] Beancounter will read your record from database to proofread with the newest code if exists");
+            flashDiskExecutor.execute(this::preload);
         }
+
+        super.init();
     }
 
     @Override
     public void initFlush() {
         flush = () -> {
             try {
-                // 当不需要刷盘的时候直接跳过
-                if (BeanCounterProcessor.storeStatus.get() == StoreStatus.NO_CHANGED){
+                // 获取计数器
+                GeneralCounter generalCounter = BeanCounterProcessor.getGeneralCounter();
+                if (watermark == null){
+                    watermark = new CounterWatermark(generalCounter.getRegistry());
+                }
+
+                // 还没有和数据库校对过的类 (例如 Java Agent 在类加载时创建的计数器) 先校对, 防止覆盖数据库中的历史数据
+                if (BeanCounterConfig.needProofreadWithDatabase()){
+                    proofreadPending(generalCounter);
+                }
+
+                // 只刷入自上一次成功刷盘之后发生了变化的类, 没有变化时直接跳过
+                CounterDelta delta = watermark.snapshot();
+                Map<String, ClassCounter> changedClassCounters = generalCounter.getChangedClassCounters(delta);
+
+                // 校对之后才创建的类计数器这一次不刷入 (刷盘写入的是总数, 会覆盖数据库中的历史数据), 也不提交水位, 校对完成后的刷盘写入完整的总数
+                if (BeanCounterConfig.needProofreadWithDatabase()){
+                    Set<Integer> unproofread = new HashSet<>();
+                    changedClassCounters.values().removeIf(classCounter -> {
+                        if (classCounter.isProofread()){
+                            return false;
+                        }
+                        unproofread.add(classCounter.getId());
+                        return true;
+                    });
+                    if (!unproofread.isEmpty()){
+                        delta = delta.retain(id -> !unproofread.contains(generalCounter.getRegistry().owner(id)));
+                    }
+                }
+                if (changedClassCounters.isEmpty()){
                     return ;
                 }
 
-                // 获取计数器
-                GeneralCounter copy = BeanCounterProcessor.getGeneralCounter();
                 // 刷盘
-                flushDatabase(copy);
+                flushDatabase(changedClassCounters);
 
-                // CAS
-                BeanCounterProcessor.storeStatus.compareAndSet(StoreStatus.CHANGED, StoreStatus.DB_DONE);
-                BeanCounterProcessor.storeStatus.compareAndSet(StoreStatus.FILE_DONE, StoreStatus.NO_CHANGED);
+                // 刷盘成功之后才提交水位
+                watermark.commit(delta);
             }catch (Throwable t){
                 logger.error("[beancounter-database] Flush disk fail!", t);
             }
@@ -69,11 +114,11 @@ public class DataStoreManager extends AbstractStoreManager implements StoreManag
 
     /**
      * 刷盘实际操作
-     * @param generalCounter 计数器
+     * @param classCounters 需要刷盘的类计数器 (类名 -> 类计数器)
      */
-    private void flushDatabase(GeneralCounter generalCounter){
+    private void flushDatabase(Map<String, ClassCounter> classCounters){
         // 获取类名
-        List<String> classNames = new ArrayList<>(generalCounter.getClassCounters().keySet());
+        List<String> classNames = new ArrayList<>(classCounters.keySet());
         // 获取数据库数据
         List<ClassEntity> classCounterList = dataStoreRepository.getByClassNameIn(classNames);
         Map<String, ClassEntity> classEntityMap = new HashMap<>();
@@ -81,7 +126,7 @@ public class DataStoreManager extends AbstractStoreManager implements StoreManag
                 classEntityMap.put(classEntity.getClassName(), classEntity));
 
         // 将内存中的数据刷入数据库中
-        List<ClassEntity> classEntities = ConvertUtil.convertToClassEntityListWithDatabase(generalCounter, classEntityMap);
+        List<ClassEntity> classEntities = ConvertUtil.convertToClassEntityListWithDatabase(classCounters, classEntityMap);
         dataStoreRepository.save(classEntities);
     }
 
@@ -106,45 +151,123 @@ public class DataStoreManager extends AbstractStoreManager implements StoreManag
 
 
     /**
-     * 从数据库中拿出信息放入 GeneralCounter 中
+     * 一次性读取数据库中的全部类, 并合并已经创建的类计数器
+     */
+    private void preload(){
+        try {
+            Map<String, ClassEntity> classEntityMap = new ConcurrentHashMap<>();
+            for (ClassEntity classEntity : dataStoreRepository.findAll()) {
+                classEntityMap.put(classEntity.getClassName(), classEntity);
+            }
+            preloaded = classEntityMap;
+            logger.warn("[beancounter-database] Preload " + classEntityMap.size() + " classes from database");
+        }catch (Throwable t){
+            logger.error("[beancounter-database] Preload from database fail, proofread by class name instead", t);
+        }
+        try {
+            proofreadPending(BeanCounterProcessor.getGeneralCounter());
+        }catch (Throwable t){
+            logger.error("[beancounter-database] Proofread with database fail", t);
+        }
+    }
+
+    /**
+     * 在刷盘线程中校对新建的类计数器, 调用方不等待数据库
+     */
+    public void requestProofread(){
+        if (!proofreadScheduled.compareAndSet(false, true)){
+            return;
+        }
+        flashDiskExecutor.execute(() -> {
+            proofreadScheduled.set(false);
+            try {
+                proofreadPending(BeanCounterProcessor.getGeneralCounter());
+            }catch (Throwable t){
+                logger.error("[beancounter-database] Proofread with database fail", t);
+            }
+        });
+    }
+
+    /**
+     * 校对所有还没有和数据库校对过的类, 优先使用启动时读取的数据, 读取失败时按类名批量查询
      * @param generalCounter 当前内存的 GeneralCounter
-     * @param klass 需要被检索出来的 Class
      */
-    public void proofreadWithDatabase(GeneralCounter generalCounter, Class<?> klass){
-        // 获取内存中的信息
-        ClassCounter classCounter = generalCounter.getClassCounters().get(klass.getName());
-        // 获取数据库中的信息
-        ClassEntity classEntity = dataStoreRepository.getByClassNameEquals(klass.getName());
-
-        if (classEntity != null) {
-
-            // 总量更新
-            classCounter.getCount().add(classEntity.getCount());
-            // 数据库中的方法 List
-            ListIterator<MethodEntity> methodEntityIterator = classEntity.getMethodEntityList().listIterator();
-            // 内存中的方法 Map
-            ConcurrentHashMap<String, MethodCounter> newMethodCounter = classCounter.getMethodCounters();
-
-            for (MethodEntity methodEntity : classEntity.getMethodEntityList()) {
-                // 如果包含, 则将数据添加进内存中
-                if (newMethodCounter.containsKey(methodEntity.getMethodName())){
-                    newMethodCounter.get(methodEntity.getMethodName()).getCount().add(methodEntity.getCount());
-                }
-                // 如果不包含, 则证明这个方法被删除掉了, 这届排除
-                else {
-                    methodEntityIterator.remove();
-                }
+    private void proofreadPending(GeneralCounter generalCounter){
+        List<String> pending = new ArrayList<>();
+        for (Map.Entry<String, ClassCounter> entry : generalCounter.getClassCounters().entrySet()) {
+            if (!entry.getValue().isProofread()){
+                pending.add(entry.getKey());
+            }
+        }
+        if (pending.isEmpty()){
+            return;
+        }
+
+        // 查询失败时不标记, 下一次刷盘前重试
+        Map<String, ClassEntity> classEntityMap = preloaded;
+        if (classEntityMap == null){
+            classEntityMap = new HashMap<>();
+            for (ClassEntity classEntity : dataStoreRepository.getByClassNameIn(pending)) {
+                classEntityMap.put(classEntity.getClassName(), classEntity);
             }
+        }
 
-            // 更新数据库
+        List<ClassEntity> pruned = new ArrayList<>();
+        for (String className : pending) {
+            ClassCounter classCounter = generalCounter.getClassCounters().get(className);
+            if (!classCounter.markProofread()){
+                continue;
+            }
+            ClassEntity classEntity = classEntityMap.remove(className);
+            if (classEntity != null && proofreadWithDatabase(classCounter, classEntity)){
+                pruned.add(classEntity);
+            }
+        }
+
+        // 更新数据库
+        if (!pruned.isEmpty()){
             try {
-                dataStoreRepository.save(classEntity);
+                dataStoreRepository.save(pruned);
             }catch (Throwable t){
                 logger.error("[beancounter-database] Update classEntity to database fail", t);
             }
         }
     }
 
+    /**
+     * 把数据库中的信息合并进类计数器
+     * @param classCounter 内存中的类计数器
+     * @param classEntity 数据库中的类
+     * @return 是否删除了已经不存在的方法, 需要更新数据库
+     */
+    private boolean proofreadWithDatabase(ClassCounter classCounter, ClassEntity classEntity){
+        // 数据库中的方法 List
+        ListIterator<MethodEntity> methodEntityIterator = classEntity.getMethodEntityList().listIterator();
+        // 内存中的方法 Map
+        Map<String, MethodCounter> newMethodCounter = classCounter.getMethodCounters();
+        // 已经合并进方法计数器中的次数
+        long methodCount = 0L;
+        boolean pruned = false;
+
+        while (methodEntityIterator.hasNext()) {
+            MethodEntity methodEntity = methodEntityIterator.next();
+            // 如果包含, 则将数据添加进内存中
+            if (newMethodCounter.containsKey(methodEntity.getMethodName())){
+                newMethodCounter.get(methodEntity.getMethodName()).addCount(methodEntity.getCount());
+                methodCount += methodEntity.getCount();
+            }
+            // 如果不包含, 则证明这个方法被删除掉了, 这届排除
+            else {
+                methodEntityIterator.remove();
+                pruned = true;
+            }
+        }
+
+        // 总量更新, 类调用次数由计数槽汇总得到, 所以类自身只补上不属于任何现存方法的部分
+        classCounter.addCount(classEntity.getCount() - methodCount);
+        return pruned;
+    }
+
     /**
      * 从数据库中查询计数器结果
      * @param beanCounterParam 查询参数
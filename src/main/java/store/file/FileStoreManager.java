@@ -1,5 +1,8 @@
 package store.file;
 
+import advise.counter.ClassCounter;
+import advise.counter.CounterDelta;
+import advise.counter.CounterWatermark;
 import advise.counter.GeneralCounter;
 import advise.processor.BeanCounterProcessor;
 import com.alibaba.fastjson.JSONObject;
@@ -9,13 +12,14 @@ import config.BeanCounterConfig;
 import org.springframework.stereotype.Component;
 import store.AbstractStoreManager;
 import store.StoreManager;
-import store.StoreStatus;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * 功能: 文件持久化类
@@ -29,6 +33,16 @@ public class FileStoreManager extends AbstractStoreManager implements StoreManag
 
     private final FileStoreRepository fileStoreRepository = FileStoreRepository.getInstance();
 
+    /**
+     * 文件刷盘水位, 只在刷盘线程中使用
+     */
+    private CounterWatermark watermark;
+
+    /**
+     * 类名 -> 上一次序列化的 JSON 片段, 只在刷盘线程中使用
+     */
+    private final Map<String, String> fragments = new HashMap<>();
+
     @Override
     @PostConstruct
     public void init() {
@@ -39,27 +53,60 @@ public class FileStoreManager extends AbstractStoreManager implements StoreManag
     public void initFlush() {
         flush = () -> {
             try {
-                // 当不需要刷盘的时候直接跳过
-                if (BeanCounterProcessor.storeStatus.get() == StoreStatus.NO_CHANGED){
+                // 获取计数器
+                GeneralCounter generalCounter = BeanCounterProcessor.getGeneralCounter();
+                if (watermark == null){
+                    watermark = new CounterWatermark(generalCounter.getRegistry());
+                }
+
+                // 当自上一次成功刷盘之后没有任何变化时直接跳过
+                CounterDelta delta = watermark.snapshot();
+                Map<String, ClassCounter> changedClassCounters = generalCounter.getChangedClassCounters(delta);
+                if (changedClassCounters.isEmpty()){
                     return ;
                 }
 
-                // 获取计数器
-                GeneralCounter copy = BeanCounterProcessor.getGeneralCounter();
-                String json = JSONObject.toJSONString(copy);
+                String json = toJson(generalCounter, changedClassCounters);
                 String fileName = BeanCounterConfig.getStoreFileName();
                 // 刷盘
                 flushDisk(fileName, json);
 
-                // CAS
-                BeanCounterProcessor.storeStatus.compareAndSet(StoreStatus.CHANGED, StoreStatus.FILE_DONE);
-                BeanCounterProcessor.storeStatus.compareAndSet(StoreStatus.DB_DONE, StoreStatus.NO_CHANGED);
+                // 刷盘成功之后才提交水位
+                watermark.commit(delta);
             }catch (Throwable t){
                 logger.error("[beancounter-file] Flush disk fail!", t);
             }
         };
     }
 
+    /**
+     * 拼接文件内容, 与直接序列化 GeneralCounter 的格式一致
+     * <p>每个类的 JSON 片段会被缓存, 只有发生了变化或者第一次出现的类需要重新序列化</p>
+     * @param generalCounter 全局计数器
+     * @param changedClassCounters 发生了变化的类计数器
+     * @return 文件内容
+     */
+    private String toJson(GeneralCounter generalCounter, Map<String, ClassCounter> changedClassCounters){
+        for (Map.Entry<String, ClassCounter> entry : changedClassCounters.entrySet()) {
+            fragments.put(entry.getKey(), JSONObject.toJSONString(entry.getValue()));
+        }
+        StringBuilder json = new StringBuilder("{\"classCounters\":{");
+        boolean first = true;
+        for (Map.Entry<String, ClassCounter> entry : generalCounter.getClassCounters().entrySet()) {
+            String fragment = fragments.get(entry.getKey());
+            if (fragment == null){
+                fragment = JSONObject.toJSONString(entry.getValue());
+                fragments.put(entry.getKey(), fragment);
+            }
+            if (!first){
+                json.append(',');
+            }
+            json.append(JSONObject.toJSONString(entry.getKey())).append(':').append(fragment);
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+
     private void flushDisk(String fileName, String json) throws IOException {
         File file = fileStoreRepository.getOrCreateFileByName(fileName, "");
         FileOutputStream fos = new FileOutputStream(file);
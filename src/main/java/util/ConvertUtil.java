@@ -2,7 +2,9 @@ package util;
 
 import advise.counter.ClassCounter;
 import advise.counter.GeneralCounter;
+import advise.counter.LatencySummary;
 import advise.counter.MethodCounter;
+import advise.counter.RateSummary;
 import client.domain.ClassResult;
 import client.domain.MethodResult;
 import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
@@ -16,8 +18,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -34,22 +34,24 @@ public class ConvertUtil {
      */
     public static GeneralCounter convertToGeneralCounter(List<ClassEntity> classEntityList){
         GeneralCounter generalCounter = new GeneralCounter();
-        generalCounter.setClassCounters(new ConcurrentHashMap<>());
         for (ClassEntity classEntity : classEntityList) {
-            ClassCounter classCounter = new ClassCounter();
-            classCounter.setCount(new LongAdder());
-            classCounter.getCount().add(classEntity.getCount());
-            classCounter.setLastCallTime(classEntity.getLastCallTime());
-            classCounter.setMethodCounters(new ConcurrentHashMap<>());
+            ClassCounter classCounter = new ClassCounter(generalCounter.getRegistry());
+            // 类调用次数由计数槽汇总得到, 所以类自身只记录不属于任何方法的部分
+            long methodCount = 0L;
 
             for (MethodEntity methodEntity : classEntity.getMethodEntityList()) {
-                MethodCounter methodCounter = new MethodCounter();
-                methodCounter.setCount(new LongAdder());
-                methodCounter.getCount().add(methodEntity.getCount());
+                MethodCounter methodCounter = new MethodCounter(generalCounter.getRegistry(), classCounter.getId());
+                methodCounter.addCount(methodEntity.getCount());
                 methodCounter.setLastCallTime(methodEntity.getLastCallTime());
+                if (methodEntity.getMaxLatency() != null){
+                    methodCounter.setPersistedLatency(new LatencySummary(methodEntity.getP50Latency(), methodEntity.getP99Latency(), methodEntity.getMaxLatency()));
+                }
                 classCounter.getMethodCounters().put(methodEntity.getMethodName(), methodCounter);
+                methodCount += methodEntity.getCount();
             }
 
+            classCounter.addCount(classEntity.getCount() - methodCount);
+            classCounter.setLastCallTime(classEntity.getLastCallTime());
             generalCounter.getClassCounters().put(classEntity.getClassName(), classCounter);
         }
 
@@ -70,11 +72,22 @@ public class ConvertUtil {
         for (Map.Entry<String, ClassCounter> entry : generalCounter.getClassCounters().entrySet()) {
             classResult = new ClassResult();
             classResult.setClassName(entry.getKey());
-            classResult.setCount(entry.getValue().getCount().longValue());
+            classResult.setCount(entry.getValue().getCount());
+            classResult.setCountError(entry.getValue().getCountError());
             classResult.setLastCallTime(entry.getValue().getLastCallTime());
+            RateSummary rates = entry.getValue().getRates();
+            if (rates != null){
+                classResult.setCurrentRate(rates.getCurrentRate());
+                classResult.setCount1m(rates.getCount1m());
+                classResult.setCount5m(rates.getCount5m());
+                classResult.setCount15m(rates.getCount15m());
+                classResult.setRate1m(rates.getRate1m());
+                classResult.setRate5m(rates.getRate5m());
+                classResult.setRate15m(rates.getRate15m());
+            }
             if (containsMethod){
                 List<MethodResult> methodResultList = entry.getValue().getMethodCounters().entrySet().stream()
-                        .map(methodEntry -> new MethodResult(methodEntry.getKey(), methodEntry.getValue().getCount().longValue(), methodEntry.getValue().getLastCallTime()))
+                        .map(methodEntry -> convertToMethodResult(methodEntry.getKey(), methodEntry.getValue()))
                         .collect(Collectors.toList());
                 classResult.setMethodResultList(methodResultList);
              }
@@ -84,20 +97,49 @@ public class ConvertUtil {
         return classResultList;
     }
 
+    /**
+     * 将方法计数器转换为结果格式
+     * @param methodName 方法名
+     * @param methodCounter 方法计数器
+     * @return 结果格式
+     */
+    private static MethodResult convertToMethodResult(String methodName, MethodCounter methodCounter){
+        MethodResult methodResult = new MethodResult(methodName, methodCounter.getCount(), methodCounter.getLastCallTime());
+        methodResult.setCountError(methodCounter.getCountError());
+        methodResult.setMode(methodCounter.getMode());
+        LatencySummary latency = methodCounter.getLatency();
+        if (latency != null){
+            methodResult.setP50Latency(latency.getP50());
+            methodResult.setP99Latency(latency.getP99());
+            methodResult.setMaxLatency(latency.getMax());
+        }
+        RateSummary rates = methodCounter.getRates();
+        if (rates != null){
+            methodResult.setCurrentRate(rates.getCurrentRate());
+            methodResult.setCount1m(rates.getCount1m());
+            methodResult.setCount5m(rates.getCount5m());
+            methodResult.setCount15m(rates.getCount15m());
+            methodResult.setRate1m(rates.getRate1m());
+            methodResult.setRate5m(rates.getRate5m());
+            methodResult.setRate15m(rates.getRate15m());
+        }
+        return methodResult;
+    }
+
     /**
      * 将内存格式转换为数据库个事
-     * @param generalCounter 内存格式
+     * @param classCounters 内存格式 (类名 -> 类计数器)
      * @param classEntityMap 数据库格式源
      * @return 数据库格式
      */
-    public static List<ClassEntity> convertToClassEntityListWithDatabase(GeneralCounter generalCounter, Map<String, ClassEntity> classEntityMap){
+    public static List<ClassEntity> convertToClassEntityListWithDatabase(Map<String, ClassCounter> classCounters, Map<String, ClassEntity> classEntityMap){
         List<ClassEntity> classEntityList = new ArrayList<>();
 
-        for (Map.Entry<String, ClassCounter> entry : generalCounter.getClassCounters().entrySet()) {
+        for (Map.Entry<String, ClassCounter> entry : classCounters.entrySet()) {
             ClassCounter classCounter = entry.getValue();
             ClassEntity classEntity = Optional.ofNullable(classEntityMap.get(entry.getKey())).orElse(new ClassEntity());
             classEntity.setClassName(entry.getKey());
-            classEntity.setCount(classCounter.getCount().longValue());
+            classEntity.setCount(classCounter.getCount());
             classEntity.setLastCallTime(classCounter.getLastCallTime());
             classEntity.setMethodEntityList(Optional.ofNullable(classEntity.getMethodEntityList()).orElse(new ArrayList<>()));
 
@@ -108,8 +150,14 @@ public class ConvertUtil {
                         .filter(m -> m.getMethodName().equals(methodEntry.getKey())).findFirst()
                         .orElse(new MethodEntity());
                 methodEntity.setMethodName(methodEntry.getKey());
-                methodEntity.setCount(methodCounter.getCount().longValue());
+                methodEntity.setCount(methodCounter.getCount());
                 methodEntity.setLastCallTime(methodCounter.getLastCallTime());
+                LatencySummary latency = methodCounter.getLatency();
+                if (latency != null){
+                    methodEntity.setP50Latency(latency.getP50());
+                    methodEntity.setP99Latency(latency.getP99());
+                    methodEntity.setMaxLatency(latency.getMax());
+                }
 
                 if (methodEntity.getId() == null){
                     classEntity.getMethodEntityList().add(methodEntity);
@@ -129,11 +177,23 @@ public class ConvertUtil {
      */
     public static String convertToFullName(String simpleBeanName, ConfigurableListableBeanFactory beanFactory){
         try {
-            BeanDefinition beanDefinition = beanFactory.getBeanDefinition(simpleBeanName);
-            // 防止强转出错
-            if (!(beanDefinition instanceof AnnotatedBeanDefinition)){
-                return null;
-            }
+            return convertToFullName(beanFactory.getBeanDefinition(simpleBeanName));
+        }catch (Throwable t){
+            return null;
+        }
+    }
+
+    /**
+     * 获取 Bean 的全量名
+     * @param beanDefinition Bean 定义
+     * @return Bean 的全量名, 不是 AnnotatedBeanDefinition 时为 null
+     */
+    public static String convertToFullName(BeanDefinition beanDefinition){
+        // 防止强转出错
+        if (!(beanDefinition instanceof AnnotatedBeanDefinition)){
+            return null;
+        }
+        try {
             AnnotationMetadata metadata = ((AnnotatedBeanDefinition) beanDefinition).getMetadata();
             return metadata.getClassName();
         }catch (Throwable t){